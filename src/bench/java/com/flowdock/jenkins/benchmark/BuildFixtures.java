@@ -0,0 +1,138 @@
+package com.flowdock.jenkins.benchmark;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Lightweight builds for the benchmarks. Only the methods the message rendering
+ * calls are stubbed, nothing needs a running Jenkins.
+ */
+public final class BuildFixtures {
+    public static final String ROOT_URL = "http://jenkins.example.com/";
+
+    private BuildFixtures() {
+    }
+
+    /**
+     * A failed build of a freestyle project following a successful one, with the given
+     * number of commits in its change set.
+     */
+    public static AbstractBuild failedBuild(int commits) {
+        return failedBuild(1234, commits);
+    }
+
+    /**
+     * A failed build with the given number, whose environment is {@link #environment(int)}.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static AbstractBuild failedBuild(int number, int commits) {
+        AbstractProject project = mock(AbstractProject.class);
+        when(project.getDisplayName()).thenReturn("flowdock-plugin");
+        when(project.getFullName()).thenReturn("flowdock-plugin");
+        when(project.getRootProject()).thenReturn(project);
+
+        AbstractBuild previous = mock(AbstractBuild.class);
+        when(previous.getResult()).thenReturn(Result.SUCCESS);
+
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getProject()).thenReturn(project);
+        when(build.getResult()).thenReturn(Result.FAILURE);
+        when(build.getPreviousBuild()).thenReturn(previous);
+        when(build.getNumber()).thenReturn(number);
+        when(build.getDisplayName()).thenReturn("#" + number);
+        when(build.getFullDisplayName()).thenReturn("flowdock-plugin #" + number);
+        when(build.getUrl()).thenReturn("job/flowdock-plugin/" + number + "/");
+        when(build.getChangeSet()).thenReturn(new FakeChangeLogSet(build, commits));
+        try {
+            when(build.getEnvironment(any(TaskListener.class))).thenReturn(environment(number));
+        } catch(Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        return build;
+    }
+
+    public static EnvVars environment() {
+        return environment(1234);
+    }
+
+    public static EnvVars environment(int number) {
+        EnvVars env = new EnvVars();
+        env.put("BUILD_NUMBER", String.valueOf(number));
+        env.put("GIT_BRANCH", "origin/master");
+        env.put("GIT_URL", "git@github.com:jenkinsci/flowdock-plugin.git");
+        env.put("GIT_COMMIT", "3f1c2a9e0b7d4c6f8a5e2d1b0c9f8e7d6a5b4c3d");
+        return env;
+    }
+
+    static class FakeChangeLogSet extends ChangeLogSet<FakeEntry> {
+        private final List<FakeEntry> entries;
+
+        FakeChangeLogSet(AbstractBuild<?, ?> build, int commits) {
+            super(build);
+            User author = mock(User.class);
+            when(author.toString()).thenReturn("Jane Developer");
+            List<FakeEntry> list = new ArrayList<FakeEntry>(commits);
+            for(int i = 0; i < commits; i++) {
+                list.add(new FakeEntry(author, String.format("%040x", i),
+                    "Fix <issue> #" + i + " & make the notifier äö faster"));
+            }
+            entries = Collections.unmodifiableList(list);
+        }
+
+        @Override
+        public boolean isEmptySet() {
+            return entries.isEmpty();
+        }
+
+        public Iterator<FakeEntry> iterator() {
+            return entries.iterator();
+        }
+    }
+
+    static class FakeEntry extends ChangeLogSet.Entry {
+        private final User author;
+        private final String commitId;
+        private final String msg;
+
+        FakeEntry(User author, String commitId, String msg) {
+            this.author = author;
+            this.commitId = commitId;
+            this.msg = msg;
+        }
+
+        @Override
+        public String getMsg() {
+            return msg;
+        }
+
+        @Override
+        public User getAuthor() {
+            return author;
+        }
+
+        @Override
+        public String getCommitId() {
+            return commitId;
+        }
+
+        @Override
+        public Collection<String> getAffectedPaths() {
+            return Collections.singletonList("src/main/java/com/flowdock/jenkins/FlowdockNotifier.java");
+        }
+    }
+}
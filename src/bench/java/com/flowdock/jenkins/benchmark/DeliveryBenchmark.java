@@ -0,0 +1,104 @@
+package com.flowdock.jenkins.benchmark;
+
+import com.flowdock.jenkins.BuildResult;
+import com.flowdock.jenkins.ChatMessage;
+import com.flowdock.jenkins.FlowdockAPI;
+import com.flowdock.jenkins.FlowdockDispatcher;
+import com.flowdock.jenkins.FlowdockNotification;
+import com.flowdock.jenkins.FlowdockTransport;
+import com.flowdock.jenkins.HttpURLConnectionTransport;
+import com.flowdock.jenkins.OverflowPolicy;
+import com.flowdock.jenkins.RetryingTransport;
+import com.flowdock.jenkins.TeamInboxMessage;
+import com.flowdock.jenkins.exception.FlowdockException;
+import hudson.model.AbstractBuild;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Posting to a Flowdock stand-in on the loopback interface, both directly through
+ * the API and through the dispatcher the notifier uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeliveryBenchmark {
+    private static final String FLOW_TOKEN = "0123456789abcdef0123456789abcdef";
+
+    @Param({"10", "1000"})
+    public int commits;
+
+    private FakeFlowdockServer server;
+    private FlowdockTransport transport;
+    private FlowdockAPI api;
+    private FlowdockDispatcher dispatcher;
+    private TeamInboxMessage teamInboxMessage;
+    private ChatMessage chatMessage;
+    private BuildResult buildResult;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new FakeFlowdockServer().start();
+        // no rate limiting, the benchmark measures the client and not the pacing
+        transport = new RetryingTransport(new HttpURLConnectionTransport(), RetryingTransport.DEFAULT_MAX_RETRIES,
+            RetryingTransport.DEFAULT_DEADLINE * 1000L, RetryingTransport.DEFAULT_BREAKER_THRESHOLD,
+            RetryingTransport.DEFAULT_BREAKER_OPEN * 1000L);
+        api = new FlowdockAPI(server.getApiUrl(), FLOW_TOKEN, transport);
+        dispatcher = new FlowdockDispatcher(FlowdockDispatcher.DEFAULT_THREADS, FlowdockDispatcher.DEFAULT_QUEUE_CAPACITY,
+            OverflowPolicy.SEND_IN_CALLER, transport);
+
+        AbstractBuild build = BuildFixtures.failedBuild(commits);
+        buildResult = BuildResult.fromBuild(build);
+        teamInboxMessage = TeamInboxMessage.fromBuild(build, buildResult, BuildFixtures.environment(),
+            BuildFixtures.ROOT_URL, TeamInboxMessage.DEFAULT_MAX_COMMITS, TeamInboxMessage.DEFAULT_MAX_CHANGES_BYTES);
+        teamInboxMessage.setTags("jenkins,ci");
+        chatMessage = ChatMessage.fromBuild(build, buildResult, BuildFixtures.ROOT_URL);
+        chatMessage.setTags("jenkins,ci");
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+        server.stop();
+    }
+
+    @Benchmark
+    public void postTeamInbox() throws FlowdockException {
+        api.pushTeamInboxMessage(teamInboxMessage);
+    }
+
+    @Benchmark
+    public void postChat() throws FlowdockException {
+        api.pushChatMessage(chatMessage);
+    }
+
+    /**
+     * Queues a notification with both messages and waits until the stand-in has
+     * received them.
+     */
+    @Benchmark
+    public void dispatchAndAwait() throws InterruptedException {
+        long expected = server.getAccepted() + 2;
+        dispatcher.dispatch(new FlowdockNotification(null, null, server.getApiUrl(), FLOW_TOKEN, buildResult,
+            teamInboxMessage, chatMessage));
+        if(!server.awaitAccepted(expected, 10000L))
+            throw new IllegalStateException("Notification was not delivered in 10 seconds");
+    }
+}
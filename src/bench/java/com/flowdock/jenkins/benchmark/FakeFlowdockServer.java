@@ -0,0 +1,286 @@
+package com.flowdock.jenkins.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the Flowdock Push API on the loopback interface. Implements
+ * {@code /messages/team_inbox/{token}} and {@code /messages/chat/{token}}, and can
+ * inject latency, 5xx and 429 responses and dropped connections. Faults are chosen
+ * at random for each request with the configured rates.
+ */
+public class FakeFlowdockServer {
+    private static final String TEAM_INBOX = "/messages/team_inbox/";
+    private static final String CHAT = "/messages/chat/";
+
+    static {
+        // otherwise the server writes the response headers and body in separate segments and
+        // Nagle's algorithm holds the body back until the client's delayed ACK, ~40ms per post
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * Called for every message the server accepted.
+     */
+    public interface Listener {
+        /**
+         * @param type "team_inbox" or "chat".
+         * @param fields the decoded form fields of the message.
+         */
+        void accepted(String type, String flowToken, Map<String, String> fields);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random();
+
+    private volatile int latencyMillis;
+    private volatile int latencyJitterMillis;
+    private volatile double serverErrorRate;
+    private volatile double throttleRate;
+    private volatile int retryAfterSeconds = 1;
+    private volatile double dropRate;
+    private volatile Listener listener;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public FakeFlowdockServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", new PushHandler());
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+    }
+
+    public FakeFlowdockServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the value to use as the Flowdock API URL.
+     */
+    public String getApiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Delays every response by the given time plus a random amount up to the jitter.
+     */
+    public FakeFlowdockServer setLatency(int millis, int jitterMillis) {
+        this.latencyMillis = millis;
+        this.latencyJitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * @param rate share of requests answered with 503 Service Unavailable, 0.0 - 1.0.
+     */
+    public FakeFlowdockServer setServerErrorRate(double rate) {
+        this.serverErrorRate = rate;
+        return this;
+    }
+
+    /**
+     * @param rate share of requests answered with 429 Too Many Requests, 0.0 - 1.0.
+     */
+    public FakeFlowdockServer setThrottleRate(double rate, int retryAfterSeconds) {
+        this.throttleRate = rate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * @param rate share of requests whose connection is closed without a response, 0.0 - 1.0.
+     */
+    public FakeFlowdockServer setDropRate(double rate) {
+        this.dropRate = rate;
+        return this;
+    }
+
+    public FakeFlowdockServer setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getServerErrors() {
+        return serverErrors.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Waits until at least the given number of messages have been accepted.
+     *
+     * @return false if the timeout passed first.
+     */
+    public boolean awaitAccepted(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized(accepted) {
+            while(accepted.get() < count) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0)
+                    return false;
+                accepted.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    private double nextDouble() {
+        synchronized(random) {
+            return random.nextDouble();
+        }
+    }
+
+    private int nextInt(int bound) {
+        synchronized(random) {
+            return random.nextInt(bound);
+        }
+    }
+
+    private class PushHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                byte[] body = read(exchange.getRequestBody());
+                bytes.addAndGet(body.length);
+
+                String path = exchange.getRequestURI().getPath();
+                String type;
+                String flowToken;
+                if(path.startsWith(TEAM_INBOX)) {
+                    type = "team_inbox";
+                    flowToken = path.substring(TEAM_INBOX.length());
+                } else if(path.startsWith(CHAT)) {
+                    type = "chat";
+                    flowToken = path.substring(CHAT.length());
+                } else {
+                    respond(exchange, 404, "{\"message\":\"Not found\"}");
+                    return;
+                }
+                if(!"POST".equals(exchange.getRequestMethod())) {
+                    respond(exchange, 405, "{\"message\":\"Method not allowed\"}");
+                    return;
+                }
+                if(flowToken.length() == 0 || flowToken.indexOf('/') >= 0) {
+                    respond(exchange, 404, "{\"message\":\"Flow not found\"}");
+                    return;
+                }
+
+                int delay = latencyMillis + (latencyJitterMillis > 0 ? nextInt(latencyJitterMillis + 1) : 0);
+                if(delay > 0)
+                    Thread.sleep(delay);
+
+                if(nextDouble() < dropRate) {
+                    dropped.incrementAndGet();
+                    // closing the exchange before the headers are sent closes the connection
+                    return;
+                }
+                if(nextDouble() < serverErrorRate) {
+                    serverErrors.incrementAndGet();
+                    respond(exchange, 503, "{\"message\":\"Service unavailable\"}");
+                    return;
+                }
+                if(nextDouble() < throttleRate) {
+                    throttled.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                    respond(exchange, 429, "{\"message\":\"Too many requests\"}");
+                    return;
+                }
+
+                respond(exchange, 200, "{}");
+                Listener l = listener;
+                if(l != null)
+                    l.accepted(type, flowToken, decode(new String(body, "UTF-8")));
+                synchronized(accepted) {
+                    accepted.incrementAndGet();
+                    accepted.notifyAll();
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private byte[] read(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            return out.toByteArray();
+        }
+
+        private void respond(HttpExchange exchange, int status, String content) throws IOException {
+            byte[] data = content.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, data.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+
+        private Map<String, String> decode(String form) throws IOException {
+            Map<String, String> fields = new HashMap<String, String>();
+            for(String pair : form.split("&")) {
+                int eq = pair.indexOf('=');
+                if(eq > 0)
+                    fields.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+            return fields;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.flowdock.jenkins.benchmark;
+
+import com.flowdock.jenkins.FlowdockNotifier;
+import com.flowdock.jenkins.FlowdockOutbox;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs {@link FlowdockNotifier#perform} for many failed builds from concurrent
+ * threads against a {@link FakeFlowdockServer}, and reports the time spent in
+ * perform, the delivery throughput and latency, and the messages that never arrived.
+ * Each build sends a Team Inbox and a chat message to every flow.
+ * <p>
+ * Settings are read from system properties:
+ * <pre>
+ * mvn -Pbenchmark -DskipTests test-compile exec:java@load-test -Dload.builds=5000 -Dload.errorRate=0.05
+ * </pre>
+ * Properties starting with {@code flowdock.} set the global plugin configuration,
+ * e.g. {@code -Dflowdock.dispatchThreads=8}. Rate limiting is off unless set that way.
+ */
+public class FlowdockLoadTest {
+    private static final String SETTINGS_PREFIX = "flowdock.";
+
+    private final int builds = Integer.getInteger("load.builds", 1000);
+    private final int concurrency = Integer.getInteger("load.concurrency", 20);
+    private final int commits = Integer.getInteger("load.commits", 10);
+    private final int flows = Integer.getInteger("load.flows", 1);
+    private final int latency = Integer.getInteger("load.latency", 20);
+    private final int jitter = Integer.getInteger("load.jitter", 10);
+    private final double errorRate = doubleProperty("load.errorRate", 0.0);
+    private final double throttleRate = doubleProperty("load.throttleRate", 0.0);
+    private final int retryAfter = Integer.getInteger("load.retryAfter", 1);
+    private final double dropRate = doubleProperty("load.dropRate", 0.0);
+    private final int timeout = Integer.getInteger("load.timeout", 300);
+
+    private final ConcurrentMap<String, Long> performStarted = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, AtomicInteger> deliveries = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final AtomicLong lastDelivery = new AtomicLong();
+    private final List<Long> deliveryLatencies = new ArrayList<Long>();
+    private final List<Long> performTimes = new ArrayList<Long>();
+
+    public static void main(String[] args) throws Exception {
+        new FlowdockLoadTest().run();
+    }
+
+    public void run() throws Exception {
+        FakeFlowdockServer server = new FakeFlowdockServer()
+            .setLatency(latency, jitter)
+            .setServerErrorRate(errorRate)
+            .setThrottleRate(throttleRate, retryAfter)
+            .setDropRate(dropRate)
+            .setListener(new DeliveryTracker())
+            .start();
+
+        File outboxDir = File.createTempFile("flowdock-outbox", "");
+        outboxDir.delete();
+        LoadTestNotifier.LoadTestDescriptor descriptor = new LoadTestNotifier.LoadTestDescriptor(outboxDir);
+        descriptor.configure(null, settings(server.getApiUrl()));
+
+        StringBuilder tokens = new StringBuilder();
+        for(int i = 0; i < flows; i++) {
+            tokens.append(i == 0 ? "" : ",").append(String.format("loadtest%024d", i));
+        }
+        final LoadTestNotifier notifier = new LoadTestNotifier(descriptor, tokens.toString());
+        final BuildListener listener = quietListener();
+
+        System.out.println("Preparing " + builds + " builds with " + commits + " commits each");
+        List<AbstractBuild> fixtures = new ArrayList<AbstractBuild>(builds);
+        for(int i = 1; i <= builds; i++) {
+            fixtures.add(BuildFixtures.failedBuild(i, commits));
+        }
+
+        int expected = builds * flows * 2;
+        System.out.println("Sending " + expected + " messages from " + concurrency + " threads to " + server.getApiUrl());
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final CountDownLatch done = new CountDownLatch(builds);
+        long start = System.nanoTime();
+        for(final AbstractBuild build : fixtures) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    long begin = System.nanoTime();
+                    performStarted.put("build-" + build.getNumber(), begin);
+                    try {
+                        notifier.perform(build, null, listener);
+                    } finally {
+                        record(performTimes, System.nanoTime() - begin);
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        long performed = System.nanoTime();
+        executor.shutdown();
+
+        long deadline = performed + TimeUnit.SECONDS.toNanos(timeout);
+        while(delivered.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(100L);
+        }
+        descriptor.getDispatcher().shutdown();
+        server.stop();
+        deleteOutbox(outboxDir);
+
+        report(expected, start, performed, server);
+    }
+
+    private void report(int expected, long start, long performed, FakeFlowdockServer server) {
+        int received = delivered.get();
+        double seconds = (Math.max(lastDelivery.get(), performed) - start) / 1e9;
+        System.out.println();
+        System.out.println(String.format("Builds:           %d x %d flows from %d threads, %d messages",
+            builds, flows, concurrency, expected));
+        System.out.println(String.format("Server faults:    latency %d+%d ms, %.1f%% 5xx, %.1f%% 429, %.1f%% dropped",
+            latency, jitter, errorRate * 100, throttleRate * 100, dropRate * 100));
+        System.out.println(String.format("perform():        %s, all builds done in %.2f s",
+            percentiles(performTimes), (performed - start) / 1e9));
+        System.out.println(String.format("Delivered:        %d in %.2f s, %.1f messages/s",
+            received, seconds, received / seconds));
+        System.out.println(String.format("Lost:             %d (%.2f%%), %d duplicates",
+            expected - received, (expected - received) * 100.0 / expected, duplicates.get()));
+        System.out.println(String.format("Delivery latency: %s", percentiles(deliveryLatencies)));
+        System.out.println(String.format("Server:           %d requests, %d accepted, %d 5xx, %d 429, %d dropped",
+            server.getRequests(), server.getAccepted(), server.getServerErrors(), server.getThrottled(),
+            server.getDropped()));
+    }
+
+    private JSONObject settings(String apiUrl) {
+        JSONObject settings = new JSONObject();
+        settings.put("apiUrl", apiUrl);
+        settings.put("globalRateLimit", "0");
+        settings.put("flowRateLimit", "0");
+        for(Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+            String name = property.getKey().toString();
+            if(name.startsWith(SETTINGS_PREFIX))
+                settings.put(name.substring(SETTINGS_PREFIX.length()), property.getValue().toString());
+        }
+        return settings;
+    }
+
+    private static BuildListener quietListener() {
+        BuildListener listener = mock(BuildListener.class);
+        when(listener.getLogger()).thenReturn(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return listener;
+    }
+
+    private static void record(List<Long> values, long value) {
+        synchronized(values) {
+            values.add(value);
+        }
+    }
+
+    private static String percentiles(List<Long> values) {
+        long[] sorted;
+        synchronized(values) {
+            sorted = new long[values.size()];
+            for(int i = 0; i < sorted.length; i++) {
+                sorted[i] = values.get(i);
+            }
+        }
+        if(sorted.length == 0)
+            return "no samples";
+        Arrays.sort(sorted);
+        return String.format("p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms",
+            percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6,
+            sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static void deleteOutbox(File dir) {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Matches the messages the server accepted with the builds they were sent for,
+     * using the build-N tag every message carries.
+     */
+    private class DeliveryTracker implements FakeFlowdockServer.Listener {
+        public void accepted(String type, String flowToken, Map<String, String> fields) {
+            long now = System.nanoTime();
+            String build = buildTag(fields.get("tags"));
+            Long started = build == null ? null : performStarted.get(build);
+            if(started == null)
+                return;
+
+            AtomicInteger count = new AtomicInteger();
+            AtomicInteger existing = deliveries.putIfAbsent(type + ":" + flowToken + ":" + build, count);
+            if((existing == null ? count : existing).incrementAndGet() > 1) {
+                duplicates.incrementAndGet();
+                return;
+            }
+            delivered.incrementAndGet();
+            record(deliveryLatencies, now - started);
+            long last;
+            do {
+                last = lastDelivery.get();
+            } while(now > last && !lastDelivery.compareAndSet(last, now));
+        }
+
+        private String buildTag(String tags) {
+            if(tags == null)
+                return null;
+            for(String tag : tags.split(",")) {
+                if(tag.startsWith("build-"))
+                    return tag;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The notifier as configured in a job, with a descriptor that keeps its settings
+     * in memory and its outbox in a temporary directory instead of JENKINS_HOME.
+     */
+    static class LoadTestNotifier extends FlowdockNotifier {
+        private final LoadTestDescriptor descriptor;
+
+        LoadTestNotifier(LoadTestDescriptor descriptor, String flowTokens) {
+            super(flowTokens, "loadtest,build-$BUILD_NUMBER", "true", "true", "true", "true", "true", "true", "true");
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public DescriptorImpl getDescriptor() {
+            return descriptor;
+        }
+
+        static class LoadTestDescriptor extends FlowdockNotifier.DescriptorImpl {
+            private final File outboxDir;
+            private FlowdockOutbox outbox;
+
+            LoadTestDescriptor(File outboxDir) {
+                this.outboxDir = outboxDir;
+            }
+
+            @Override
+            public synchronized void load() {
+            }
+
+            @Override
+            public synchronized void save() {
+            }
+
+            @Override
+            public synchronized FlowdockOutbox getOutbox() {
+                if(outbox == null) {
+                    try {
+                        outbox = new FlowdockOutbox(outboxDir, getOutboxCapacity());
+                    } catch(IOException ex) {
+                        throw new IllegalStateException("Cannot open the outbox in " + outboxDir, ex);
+                    }
+                }
+                return outbox;
+            }
+        }
+    }
+}
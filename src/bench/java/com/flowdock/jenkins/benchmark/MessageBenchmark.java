@@ -0,0 +1,89 @@
+package com.flowdock.jenkins.benchmark;
+
+import com.flowdock.jenkins.BuildResult;
+import com.flowdock.jenkins.ChatMessage;
+import com.flowdock.jenkins.FormEncoder;
+import com.flowdock.jenkins.TeamInboxMessage;
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering and form encoding of the messages for change sets of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({"0", "10", "1000", "10000"})
+    public int commits;
+
+    private AbstractBuild build;
+    private EnvVars env;
+    private BuildResult buildResult;
+    private TeamInboxMessage teamInboxMessage;
+    private ChatMessage chatMessage;
+
+    @Setup
+    public void setUp() {
+        build = BuildFixtures.failedBuild(commits);
+        env = BuildFixtures.environment();
+        buildResult = BuildResult.fromBuild(build);
+        teamInboxMessage = renderTeamInbox();
+        teamInboxMessage.setTags("jenkins,ci,#failure");
+        chatMessage = renderChat();
+        chatMessage.setTags("jenkins,ci");
+    }
+
+    @Benchmark
+    public TeamInboxMessage renderTeamInbox() {
+        return TeamInboxMessage.fromBuild(build, buildResult, env, BuildFixtures.ROOT_URL,
+            TeamInboxMessage.DEFAULT_MAX_COMMITS, TeamInboxMessage.DEFAULT_MAX_CHANGES_BYTES);
+    }
+
+    @Benchmark
+    public ChatMessage renderChat() {
+        return ChatMessage.fromBuild(build, buildResult, BuildFixtures.ROOT_URL);
+    }
+
+    @Benchmark
+    public int encodeTeamInbox() {
+        FormEncoder encoder = FormEncoder.forThread();
+        teamInboxMessage.writePostData(encoder);
+        return encoder.size();
+    }
+
+    @Benchmark
+    public int encodeChat() {
+        FormEncoder encoder = FormEncoder.forThread();
+        chatMessage.writePostData(encoder);
+        return encoder.size();
+    }
+
+    /**
+     * Rendering and encoding together, which is what a build pays for before the
+     * notification is queued.
+     */
+    @Benchmark
+    public byte[] renderAndEncode() {
+        FormEncoder encoder = FormEncoder.forThread();
+        renderTeamInbox().writePostData(encoder);
+        return encoder.toByteArray();
+    }
+}
@@ -0,0 +1,211 @@
+package com.flowdock.jenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.remoting.ChannelClosedException;
+import hudson.remoting.RemotingSystemException;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport sending the requests from the agent that ran the build, so that the
+ * network traffic of many finishing builds is spread over the agents instead of
+ * leaving from the controller. The payload is rendered on the controller and the
+ * Jenkins proxy configuration is resolved there and sent along with it.
+ * <p>
+ * Requests are sent with the given controller transport when there is no agent for
+ * the current delivery, the channel to the agent fails or the agent cannot connect to
+ * Flowdock, e.g. because it has no route to the internet. An agent that failed is
+ * skipped for a while, so that the deliveries don't wait for it every time. Errors
+ * after the agent connected are thrown as they are, to be retried like the requests
+ * sent from the controller, since the message may have been delivered.
+ */
+public class AgentTransport implements FlowdockTransport {
+    private static final Logger LOGGER = Logger.getLogger(AgentTransport.class.getName());
+    private static final long UNREACHABLE_MILLIS = 10 * 60 * 1000L;
+
+    // the agent of the delivery running on the current thread, set by the dispatcher
+    private static final ThreadLocal<Agent> CURRENT = new ThreadLocal<Agent>();
+
+    private final FlowdockTransport controller;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final ConcurrentMap<String, Long> unreachableUntil = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * @param controller transport used when the request cannot be sent from an agent.
+     */
+    public AgentTransport(FlowdockTransport controller, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.controller = controller;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Sets the agent the requests made on the current thread are sent from.
+     *
+     * @param agent the agent, or null to send from the controller.
+     * @return the agent that was set before.
+     */
+    static Agent setCurrent(Agent agent) {
+        Agent previous = CURRENT.get();
+        if(agent == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(agent);
+        }
+        return previous;
+    }
+
+    public FlowdockResponse post(URL url, byte[] data, int length) throws IOException {
+        Agent agent = CURRENT.get();
+        if(agent == null || !isReachable(agent))
+            return controller.post(url, data, length);
+
+        byte[] payload = data;
+        if(length != data.length) {
+            payload = new byte[length];
+            System.arraycopy(data, 0, payload, 0, length);
+        }
+        HttpURLConnectionTransport.ProxySettings proxy = HttpURLConnectionTransport.proxySettings();
+        try {
+            return agent.channel.call(new AgentPost(url, payload, connectTimeoutMillis, readTimeoutMillis, proxy));
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending from agent " + agent.name);
+        } catch(RemotingSystemException ex) {
+            return fallBack(agent, ex, url, data, length);
+        } catch(IOException ex) {
+            if(!isChannelFailure(agent, ex) && !isConnectFailure(ex))
+                throw ex;
+            return fallBack(agent, ex, url, data, length);
+        }
+    }
+
+    private FlowdockResponse fallBack(Agent agent, Exception cause, URL url, byte[] data, int length)
+        throws IOException {
+        unreachableUntil.put(agent.name, System.currentTimeMillis() + UNREACHABLE_MILLIS);
+        LOGGER.log(Level.INFO, "Cannot send to Flowdock from agent " + agent.name +
+            ", sending from the controller for the next " + (UNREACHABLE_MILLIS / 60000L) + " minutes", cause);
+        return controller.post(url, data, length);
+    }
+
+    /**
+     * @return true if the exception comes from the channel to the agent rather than
+     *     from the request the agent made.
+     */
+    private static boolean isChannelFailure(Agent agent, IOException ex) {
+        if(agent.channel instanceof Channel && ((Channel) agent.channel).isClosingOrClosed())
+            return true;
+        for(Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if(cause instanceof ChannelClosedException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the agent could not connect to Flowdock or the proxy, so that
+     *     nothing was sent.
+     */
+    private static boolean isConnectFailure(IOException ex) {
+        if(ex instanceof ConnectException || ex instanceof NoRouteToHostException ||
+            ex instanceof UnknownHostException)
+            return true;
+        // a read timeout is a SocketTimeoutException too, the message tells them apart
+        return ex instanceof SocketTimeoutException && ex.getMessage() != null &&
+            ex.getMessage().toLowerCase(Locale.ENGLISH).startsWith("connect");
+    }
+
+    private boolean isReachable(Agent agent) {
+        Long until = unreachableUntil.get(agent.name);
+        if(until == null)
+            return true;
+        if(until < System.currentTimeMillis()) {
+            unreachableUntil.remove(agent.name, until);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * An agent deliveries can be sent from.
+     */
+    static final class Agent {
+        private final String name;
+        private final VirtualChannel channel;
+
+        Agent(String name, VirtualChannel channel) {
+            this.name = name;
+            this.channel = channel;
+        }
+
+        /**
+         * @return the agent that ran the build, or null if it ran on the controller, the
+         *     agent is offline or the run is not a build of a node.
+         */
+        static Agent of(Run run) {
+            if(!(run instanceof AbstractBuild))
+                return null;
+            Node node = ((AbstractBuild) run).getBuiltOn();
+            // the controller is the node without a name
+            if(node == null || node.getNodeName() == null || node.getNodeName().length() == 0)
+                return null;
+            VirtualChannel channel = node.getChannel();
+            return channel == null ? null : new Agent(node.getNodeName(), channel);
+        }
+    }
+
+    /**
+     * Sends a single post on the agent.
+     */
+    private static final class AgentPost implements Callable<FlowdockResponse, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final URL url;
+        private final byte[] data;
+        private final int connectTimeoutMillis;
+        private final int readTimeoutMillis;
+        private final String proxyHost;
+        private final int proxyPort;
+        private final String noProxyHost;
+        private final String proxyUserName;
+        private final String proxyPassword;
+
+        AgentPost(URL url, byte[] data, int connectTimeoutMillis, int readTimeoutMillis,
+            HttpURLConnectionTransport.ProxySettings proxy) {
+            this.url = url;
+            this.data = data;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+            this.proxyHost = proxy == null ? null : proxy.getHost();
+            this.proxyPort = proxy == null ? 0 : proxy.getPort();
+            this.noProxyHost = proxy == null ? null : proxy.getNoProxyHost();
+            this.proxyUserName = proxy == null ? null : proxy.getUserName();
+            this.proxyPassword = proxy == null ? null : proxy.getPassword();
+        }
+
+        public FlowdockResponse call() throws IOException {
+            HttpURLConnectionTransport.ProxySettings proxy = proxyHost == null ? null :
+                new HttpURLConnectionTransport.ProxySettings(null, proxyHost, proxyPort, noProxyHost,
+                    proxyUserName, proxyPassword);
+            return new HttpURLConnectionTransport(connectTimeoutMillis, readTimeoutMillis, proxy)
+                .post(url, data, data.length);
+        }
+    }
+}
@@ -18,8 +18,14 @@ public enum BuildResult {
     }
 
     public static BuildResult fromBuild(AbstractBuild build) {
+        return fromBuild(build, build.getPreviousBuild() != null ? build.getPreviousBuild().getResult() : null);
+    }
+
+    /**
+     * @param prevResult result of the previous build, or null if there is none.
+     */
+    public static BuildResult fromBuild(AbstractBuild build, Result prevResult) {
         if (build.getResult().equals(Result.SUCCESS)) {
-            Result prevResult = build.getPreviousBuild() != null ? build.getPreviousBuild().getResult() : null;
             if (Result.FAILURE.equals(prevResult) || Result.UNSTABLE.equals(prevResult)) {
                 return FIXED;
             }
@@ -0,0 +1,272 @@
+package com.flowdock.jenkins;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rolling counters of the build results, durations and result flips of the jobs
+ * that send a periodic summary instead of a message for every successful build.
+ * Recording a build is a few atomic increments. At the end of each interval the
+ * counters are replaced with new ones and the old ones are summarized; a build
+ * finishing at that very moment may be left out of both summaries.
+ * <p>
+ * The counters are saved a few seconds after they change to a small text file, so
+ * that a restart doesn't lose the current interval. Only the job names are kept; the
+ * flow tokens and tags are looked up from the jobs when the summaries are sent.
+ */
+public class BuildStats {
+    private static final Logger LOGGER = Logger.getLogger(BuildStats.class.getName());
+    private static final long SAVE_DELAY = 30;
+    public static final int DEFAULT_INTERVAL = 60;
+
+    private final File file;
+    private final AtomicReference<Window> window;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    /**
+     * @param file where the counters are saved, or null to keep them in memory only.
+     */
+    public BuildStats(File file) {
+        this.file = file;
+        this.window = new AtomicReference<Window>(new Window(System.currentTimeMillis()));
+        load();
+    }
+
+    /**
+     * @param transition true if the result flipped between success and failure.
+     */
+    public void record(String job, BuildResult result, long durationMillis, boolean transition) {
+        window.get().job(job).record(result, durationMillis, transition);
+        scheduleSave();
+    }
+
+    /**
+     * Starts a new interval if the current one is at least the given length.
+     *
+     * @return the ended interval, or null if it has not ended yet.
+     */
+    public Window roll(long intervalMillis) {
+        Window current = window.get();
+        long now = System.currentTimeMillis();
+        if(now - current.start < intervalMillis || !window.compareAndSet(current, new Window(now)))
+            return null;
+        current.end = now;
+        scheduleSave();
+        return current;
+    }
+
+    public int size() {
+        return window.get().jobs.size();
+    }
+
+    private void scheduleSave() {
+        if(file == null || !saveScheduled.compareAndSet(false, true))
+            return;
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                saveScheduled.set(false);
+                save();
+            }
+        }, SAVE_DELAY, TimeUnit.SECONDS);
+    }
+
+    synchronized void save() {
+        if(file == null)
+            return;
+        Window current = window.get();
+        try {
+            AtomicFileWriter writer = new AtomicFileWriter(file);
+            try {
+                writer.write("window\t" + current.start + "\n");
+                for(JobStats job : current.jobs.values()) {
+                    StringBuilder line = new StringBuilder();
+                    for(int i = 0; i < job.results.length(); i++) {
+                        if(i > 0)
+                            line.append(',');
+                        line.append(job.results.get(i));
+                    }
+                    line.append('\t').append(job.transitions.get());
+                    line.append('\t').append(job.durations.bucketsToString());
+                    line.append('\t').append(job.name).append('\n');
+                    writer.write(line.toString());
+                }
+                writer.commit();
+            } finally {
+                writer.abort();
+            }
+        } catch(IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to save the Flowdock build statistics to " + file, ex);
+        }
+    }
+
+    private void load() {
+        if(file == null || !file.exists())
+            return;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                Window loaded = null;
+                String line;
+                while((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 4);
+                    try {
+                        if(fields.length == 2 && fields[0].equals("window")) {
+                            loaded = new Window(Long.parseLong(fields[1]));
+                        } else if(fields.length == 4 && loaded != null) {
+                            // files of earlier versions also have the flow token and tags before the job
+                            String[] old = fields[3].split("\t", 3);
+                            JobStats job = loaded.job(old.length == 3 ? old[2] : fields[3]);
+                            String[] counts = fields[0].split(",");
+                            for(int i = 0; i < counts.length && i < job.results.length(); i++) {
+                                job.results.set(i, Long.parseLong(counts[i]));
+                            }
+                            job.transitions.set(Long.parseLong(fields[1]));
+                            job.durations.addBuckets(fields[2]);
+                        }
+                    } catch(NumberFormatException ex) {
+                        LOGGER.fine("Skipping invalid line in " + file + ": " + line);
+                    }
+                }
+                if(loaded != null)
+                    window.set(loaded);
+            } finally {
+                reader.close();
+            }
+        } catch(IOException ex) {
+            // the counters start again from the next builds
+            LOGGER.log(Level.WARNING, "Failed to read the Flowdock build statistics from " + file, ex);
+        }
+    }
+
+    /**
+     * The counters of one summary interval.
+     */
+    public static final class Window {
+        private final long start;
+        private volatile long end;
+        private final ConcurrentMap<String, JobStats> jobs = new ConcurrentHashMap<String, JobStats>();
+
+        Window(long start) {
+            this.start = start;
+        }
+
+        JobStats job(String name) {
+            JobStats job = jobs.get(name);
+            if(job == null) {
+                JobStats created = new JobStats(name);
+                job = jobs.putIfAbsent(name, created);
+                if(job == null)
+                    job = created;
+            }
+            return job;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return when the interval ended, 0 if it is the current one.
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public Collection<JobStats> getJobs() {
+            return jobs.values();
+        }
+    }
+
+    /**
+     * The counters of a single job.
+     */
+    public static final class JobStats {
+        private final String name;
+        private final AtomicLongArray results = new AtomicLongArray(BuildResult.values().length);
+        private final AtomicLong transitions = new AtomicLong();
+        private final LatencyHistogram durations;
+
+        JobStats(String name) {
+            this.name = name;
+            this.durations = new LatencyHistogram(name);
+        }
+
+        void record(BuildResult result, long durationMillis, boolean transition) {
+            results.incrementAndGet(result.ordinal());
+            durations.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0L, durationMillis)));
+            if(transition)
+                transitions.incrementAndGet();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount(BuildResult result) {
+            return results.get(result.ordinal());
+        }
+
+        public long getBuilds() {
+            long builds = 0;
+            for(int i = 0; i < results.length(); i++) {
+                builds += results.get(i);
+            }
+            return builds;
+        }
+
+        public long getSuccesses() {
+            return getCount(BuildResult.SUCCESS) + getCount(BuildResult.FIXED);
+        }
+
+        public long getFailures() {
+            return getCount(BuildResult.FAILURE) + getCount(BuildResult.UNSTABLE);
+        }
+
+        /**
+         * @return how many times the result flipped between success and failure.
+         */
+        public long getTransitions() {
+            return transitions.get();
+        }
+
+        LatencyHistogram getDurations() {
+            return durations;
+        }
+    }
+
+    /**
+     * Sends the summaries of the interval that has ended, checked every minute so that
+     * a changed interval applies right away.
+     */
+    @Extension
+    public static class SummaryWork extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            Jenkins.getInstance().getDescriptorByType(FlowdockNotifier.DescriptorImpl.class).sendBuildSummaries();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.flowdock.jenkins;
+
+import hudson.scm.ChangeLogSet.Entry;
+
+/**
+ * A commit listed in a notification, kept independent of the build that recorded it.
+ */
+public final class Change {
+    // long messages are cut, the first lines are what the notifications show
+    private static final int MAX_MESSAGE_LENGTH = 2000;
+
+    private final String commitId;
+    private final String author;
+    private final String message;
+    private final int build;
+
+    public Change(String commitId, String author, String message, int build) {
+        this.commitId = commitId;
+        this.author = author;
+        this.message = message;
+        this.build = build;
+    }
+
+    public static Change fromEntry(Entry entry, int build) {
+        String message = entry.getMsg();
+        if(message != null && message.length() > MAX_MESSAGE_LENGTH)
+            message = message.substring(0, MAX_MESSAGE_LENGTH);
+        return new Change(entry.getCommitId(), String.valueOf(entry.getAuthor()), message, build);
+    }
+
+    /**
+     * @return the commit id, or null if the SCM doesn't have one.
+     */
+    public String getCommitId() {
+        return commitId;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the number of the build the commit was first built in.
+     */
+    public int getBuild() {
+        return build;
+    }
+}
@@ -0,0 +1,198 @@
+package com.flowdock.jenkins;
+
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import jenkins.util.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The commits of each job since its last successful build, updated as the builds
+ * finish. Notifications of failed and fixed builds list all of them without loading
+ * the earlier builds. A successful build clears the commits of its job, so only jobs
+ * that are currently failing take up space.
+ * <p>
+ * The index is saved a few seconds after it changes.
+ */
+public class ChangeIndex {
+    private static final Logger LOGGER = Logger.getLogger(ChangeIndex.class.getName());
+    private static final long SAVE_DELAY = 5;
+    public static final int MAX_CHANGES_PER_JOB = 200;
+
+    private final XmlFile file;
+    private final ConcurrentMap<String, JobChanges> jobs = new ConcurrentHashMap<String, JobChanges>();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    /**
+     * @param file where the index is saved, or null to keep it in memory only.
+     */
+    public ChangeIndex(File file) {
+        this.file = file == null ? null : new XmlFile(file);
+        load();
+    }
+
+    /**
+     * Records the commits of a completed build.
+     *
+     * @param buildChanges the commits of the build, newest first.
+     * @param buildCommitCount the number of commits of the build, including those not
+     *     in buildChanges.
+     * @return the commits of the earlier builds since the last successful build, or none
+     *     if the build is older than one already recorded.
+     */
+    public EarlierChanges record(AbstractBuild build, List<Change> buildChanges, int buildCommitCount) {
+        Result result = build.getResult();
+        if(result == null)
+            return EarlierChanges.NONE;
+        String job = build.getProject().getFullName();
+        int number = build.getNumber();
+        while(true) {
+            JobChanges last = jobs.get(job);
+            if(last != null && last.lastBuild >= number)
+                return EarlierChanges.NONE;
+            EarlierChanges earlier = last == null ? EarlierChanges.NONE :
+                new EarlierChanges(Collections.unmodifiableList(last.changes), last.getCount());
+
+            boolean updated;
+            if(result == Result.SUCCESS) {
+                updated = last == null || jobs.remove(job, last);
+            } else {
+                JobChanges next = new JobChanges(number, changes(buildChanges, earlier.getChanges()),
+                    Math.max(buildCommitCount, buildChanges.size()) + earlier.getCount());
+                updated = last == null ? jobs.putIfAbsent(job, next) == null : jobs.replace(job, last, next);
+            }
+            if(updated) {
+                if(last != null || result != Result.SUCCESS)
+                    scheduleSave();
+                return earlier;
+            }
+        }
+    }
+
+    private static ArrayList<Change> changes(List<Change> buildChanges, List<Change> earlier) {
+        ArrayList<Change> changes = new ArrayList<Change>(Math.min(MAX_CHANGES_PER_JOB, buildChanges.size() + earlier.size()));
+        for(Change change : buildChanges) {
+            if(changes.size() >= MAX_CHANGES_PER_JOB)
+                break;
+            changes.add(change);
+        }
+        for(Change change : earlier) {
+            if(changes.size() >= MAX_CHANGES_PER_JOB)
+                break;
+            changes.add(change);
+        }
+        return changes;
+    }
+
+    void remove(String job) {
+        if(jobs.remove(job) != null)
+            scheduleSave();
+    }
+
+    void rename(String oldName, String newName) {
+        JobChanges changes = jobs.remove(oldName);
+        if(changes != null) {
+            jobs.put(newName, changes);
+            scheduleSave();
+        }
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    private void scheduleSave() {
+        if(file == null || !saveScheduled.compareAndSet(false, true))
+            return;
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                saveScheduled.set(false);
+                save();
+            }
+        }, SAVE_DELAY, TimeUnit.SECONDS);
+    }
+
+    synchronized void save() {
+        if(file == null)
+            return;
+        try {
+            file.write(new HashMap<String, JobChanges>(jobs));
+        } catch(IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to save the Flowdock change index to " + file, ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        if(file == null || !file.exists())
+            return;
+        try {
+            Object saved = file.read();
+            if(saved instanceof Map)
+                jobs.putAll((Map<String, JobChanges>) saved);
+        } catch(IOException ex) {
+            // the commits are collected again from the next builds
+            LOGGER.log(Level.WARNING, "Failed to read the Flowdock change index from " + file, ex);
+        }
+    }
+
+    /**
+     * The commits of the earlier builds of a job since its last successful build.
+     */
+    public static final class EarlierChanges {
+        static final EarlierChanges NONE = new EarlierChanges(Collections.<Change>emptyList(), 0);
+
+        private final List<Change> changes;
+        private final int count;
+
+        EarlierChanges(List<Change> changes, int count) {
+            this.changes = changes;
+            this.count = count;
+        }
+
+        /**
+         * @return the newest of the commits, at most {@link #MAX_CHANGES_PER_JOB}, newest first.
+         */
+        public List<Change> getChanges() {
+            return changes;
+        }
+
+        /**
+         * @return the number of commits, including those not kept in the index.
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    private static final class JobChanges {
+        private final int lastBuild;
+        // never modified once the entry is in the index
+        private final ArrayList<Change> changes;
+        // all commits since the last successful build, 0 in indexes saved before it was counted
+        private final int count;
+
+        JobChanges(int lastBuild, ArrayList<Change> changes, int count) {
+            this.lastBuild = lastBuild;
+            this.changes = changes;
+            this.count = count;
+        }
+
+        int getCount() {
+            return Math.max(count, changes.size());
+        }
+    }
+}
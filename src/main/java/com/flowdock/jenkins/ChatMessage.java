@@ -2,10 +2,9 @@ package com.flowdock.jenkins;
 
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
-import hudson.model.Hudson;
 import hudson.model.Result;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 
 public class ChatMessage extends FlowdockMessage {
     protected String externalUserName;
@@ -18,58 +17,110 @@ public class ChatMessage extends FlowdockMessage {
         this.externalUserName = externalUserName;
     }
 
-    public String asPostData() throws UnsupportedEncodingException {
-        StringBuilder postData = new StringBuilder();
-        postData.append("content=").append(urlEncode(content));
-        postData.append("&external_user_name=").append(urlEncode(externalUserName));
-        postData.append("&tags=").append(urlEncode(removeWhitespace(tags)));
-        return postData.toString();
+    public void writePostData(FormEncoder encoder) {
+        encoder.field("content", content);
+        encoder.field("external_user_name", externalUserName);
+        encoder.fieldWithoutWhitespace("tags", tags);
     }
 
     public static ChatMessage fromBuild(AbstractBuild build, BuildResult buildResult, BuildListener listener) {
+        return fromContext(NotificationContext.of(build, buildResult, listener));
+    }
+
+    /**
+     * @param rootUrl root URL of Jenkins, or null if not configured.
+     */
+    public static ChatMessage fromBuild(AbstractBuild build, BuildResult buildResult, String rootUrl) {
+        return fromContext(NotificationContext.of(build, buildResult, null, rootUrl));
+    }
+
+    public static ChatMessage fromContext(NotificationContext context) {
         ChatMessage msg = new ChatMessage();
-        StringBuilder content = new StringBuilder();
+        msg.setContent(defaultContent(context, null));
+        return msg;
+    }
 
-        String projectName = "";
-        String configuration = "";
-        if(build.getProject().getRootProject() != build.getProject()) {
-            projectName = build.getProject().getRootProject().getDisplayName();
-            configuration = " on " + build.getProject().getDisplayName();
+    /**
+     * @param templates template of the message, or null for the default format.
+     * @param logExcerpt how much of the console log the template can include, or null for none.
+     * @param testReport how the test results are summarized, or null for none.
+     */
+    public static ChatMessage fromContext(NotificationContext context, MessageTemplates templates,
+        LogExcerpt logExcerpt, TestReport testReport, int maxCommits, int maxChangesBytes)
+        throws IOException, InterruptedException {
+        ChatMessage msg = new ChatMessage();
+        if(templates == null || templates.getChat() == null) {
+            msg.setContent(defaultContent(context, testReport));
         } else {
-            projectName = build.getProject().getDisplayName();
+            msg.setContent(MessageTemplate.compile(templates.getChat(), MessageTemplate.Escaping.MARKDOWN)
+                .render(new ContextVariables(context, logExcerpt, testReport, maxCommits, maxChangesBytes)));
         }
+        return msg;
+    }
 
-        String rootUrl = Hudson.getInstance().getRootUrl();
-        String buildLink = (rootUrl == null) ? null : rootUrl + build.getUrl();
-        boolean hasLink = buildLink != null;
-        String buildNo = build.getDisplayName().replaceAll("#", "");
+    /**
+     * @param flapping true if the job started flapping, false if it is stable again.
+     */
+    public static ChatMessage flapNotice(NotificationContext context, boolean flapping) {
+        ChatMessage msg = new ChatMessage();
+        StringBuilder content = new StringBuilder();
+        String buildLink = context.getBuildLink();
+        content.append(flapping ? ":warning:" : resultIcon(context.getResult()));
+        if(buildLink != null)
+            content.append("[");
+        content.append(context.getProjectName()).append(flapping ? " **is flapping**" : " **is stable again**");
+        if(buildLink != null)
+            content.append("](").append(buildLink).append(")");
+        if(flapping) {
+            content.append(", notifications are paused until its results are stable");
+        } else {
+            // the job may well be stable again by failing every build
+            content.append(": build ").append(context.getBuildNumber()).append(' ')
+                .append(context.getBuildResult().getHumanResult()).append(", notifications are resumed");
+        }
+        msg.setContent(content.toString());
+        return msg;
+    }
 
-        if(build.getResult() == Result.SUCCESS) {
-            content.append(":white_check_mark:");
+    private static String resultIcon(Result result) {
+        if(result == Result.SUCCESS) {
+            return ":white_check_mark:";
         }
-        else if(build.getResult() == Result.UNSTABLE) {
-            content.append(":heavy_exclamation_mark:");
+        else if(result == Result.UNSTABLE) {
+            return ":heavy_exclamation_mark:";
         }
-        else if(build.getResult() == Result.FAILURE) {
-            content.append(":x:");
+        else if(result == Result.FAILURE) {
+            return ":x:";
         }
-        else if(build.getResult() == Result.ABORTED) {
-            content.append(":no_entry_sign:");
+        else if(result == Result.ABORTED) {
+            return ":no_entry_sign:";
         }
-        else if(build.getResult() == Result.NOT_BUILT) {
-            content.append(":o:");
+        else if(result == Result.NOT_BUILT) {
+            return ":o:";
         }
+        return "";
+    }
+
+    private static String defaultContent(NotificationContext context, TestReport testReport) {
+        StringBuilder content = new StringBuilder();
+
+        String buildLink = context.getBuildLink();
+        boolean hasLink = buildLink != null;
+        content.append(resultIcon(context.getResult()));
         if(hasLink) {
             content.append("[");
         }
-        content.append(projectName + configuration).append(" build ").append(buildNo);
-        content.append(" **").append(buildResult.getHumanResult()).append("**");
+        content.append(context.getProjectName()).append(context.getConfiguration())
+            .append(" build ").append(context.getBuildNumber());
+        content.append(" **").append(context.getBuildResult().getHumanResult()).append("**");
+        TestSummary tests = context.getTestSummary(testReport);
+        if(tests != null && tests.getFailed() > 0)
+            content.append(" (").append(tests.getFailed()).append(" of ").append(tests.getTotal()).append(" tests failed)");
         if(hasLink) {
             content.append("]");
-            content.append("(" + buildLink + ")");
+            content.append("(").append(buildLink).append(")");
         }
 
-        msg.setContent(content.toString());
-        return msg;
+        return content.toString();
     }
 }
@@ -0,0 +1,89 @@
+package com.flowdock.jenkins;
+
+/**
+ * Fails requests to an endpoint fast after repeated failures. Once the breaker has
+ * been open for a while a single probe request is let through, and its outcome
+ * decides whether the breaker closes again.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probing;
+    private String lastFailure;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true if a request may be sent now.
+     */
+    public synchronized boolean allowRequest() {
+        if(state == State.CLOSED)
+            return true;
+        if(state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if(state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probing = false;
+    }
+
+    /**
+     * Gives back the probe of a request that ended without an outcome, so that the
+     * next request can probe the endpoint instead.
+     */
+    public synchronized void releaseProbe() {
+        if(state == State.HALF_OPEN)
+            probing = false;
+    }
+
+    public synchronized void recordFailure(String reason) {
+        consecutiveFailures++;
+        lastFailure = reason;
+        if(state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            probing = false;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return description of the most recent failure, null if there has been none.
+     */
+    public synchronized String getLastFailure() {
+        return lastFailure;
+    }
+}
@@ -0,0 +1,84 @@
+package com.flowdock.jenkins;
+
+import hudson.matrix.MatrixRun;
+import hudson.model.Hudson;
+
+import java.util.List;
+
+import static org.apache.commons.lang.StringEscapeUtils.escapeHtml;
+
+/**
+ * Result of a single matrix configuration, collected for the combined notification
+ * sent when the matrix build completes.
+ */
+public class ConfigurationResult {
+    private final String name;
+    private final BuildResult result;
+    private final String link;
+
+    public ConfigurationResult(String name, BuildResult result, String link) {
+        this.name = name;
+        this.result = result;
+        this.link = link;
+    }
+
+    public static ConfigurationResult fromRun(MatrixRun run) {
+        String rootUrl = Hudson.getInstance().getRootUrl();
+        String link = (rootUrl == null) ? null : rootUrl + run.getUrl();
+        return new ConfigurationResult(run.getParent().getDisplayName(), BuildResult.fromBuild(run), link);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public BuildResult getResult() {
+        return result;
+    }
+
+    public String getLink() {
+        return link;
+    }
+
+    public boolean isSuccessful() {
+        return result == BuildResult.SUCCESS || result == BuildResult.FIXED;
+    }
+
+    /**
+     * @return e.g. "3 of 40 configurations failed".
+     */
+    public static String summary(List<ConfigurationResult> configurations) {
+        int failed = 0;
+        for(ConfigurationResult configuration : configurations) {
+            if(!configuration.isSuccessful())
+                failed++;
+        }
+        if(failed == 0)
+            return "all " + configurations.size() + " configurations were successful";
+        return failed + " of " + configurations.size() + " configurations failed";
+    }
+
+    public static String asHtmlTable(List<ConfigurationResult> configurations) {
+        StringBuilder table = new StringBuilder();
+        table.append("<h3>Configurations</h3><p>").append(summary(configurations)).append("</p>");
+        table.append("<table><tr><th>Configuration</th><th>Result</th></tr>");
+        for(ConfigurationResult configuration : configurations) {
+            table.append("<tr><td>");
+            if(configuration.link != null) {
+                table.append("<a href=\"").append(configuration.link).append("\">")
+                    .append(escapeHtml(configuration.name)).append("</a>");
+            } else {
+                table.append(escapeHtml(configuration.name));
+            }
+            table.append("</td><td>");
+            if(configuration.isSuccessful()) {
+                table.append(configuration.result.toString());
+            } else {
+                table.append("<strong>").append(configuration.result.toString()).append("</strong>");
+            }
+            table.append("</td></tr>");
+        }
+        table.append("</table>");
+        return table.toString();
+    }
+}
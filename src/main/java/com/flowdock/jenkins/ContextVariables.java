@@ -0,0 +1,137 @@
+package com.flowdock.jenkins;
+
+import com.flowdock.jenkins.MessageTemplate.Escaping;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The variables of the message templates, read from the notification context.
+ * Names that are not built in are looked up from the build environment.
+ */
+class ContextVariables implements MessageTemplate.Variables {
+    private final NotificationContext context;
+    private final LogExcerpt logExcerpt;
+    private final TestReport testReport;
+    private final int maxCommits;
+    private final int maxChangesBytes;
+
+    ContextVariables(NotificationContext context, LogExcerpt logExcerpt, TestReport testReport, int maxCommits,
+        int maxChangesBytes) {
+        this.context = context;
+        this.logExcerpt = logExcerpt;
+        this.testReport = testReport;
+        this.maxCommits = maxCommits;
+        this.maxChangesBytes = maxChangesBytes;
+    }
+
+    public String get(String name, Escaping escaping) throws IOException, InterruptedException {
+        if(name.equals("PROJECT_NAME"))
+            return context.getProjectName();
+        if(name.equals("CONFIGURATION"))
+            return context.getConfigurationName();
+        if(name.equals("BUILD_NUMBER"))
+            return context.getBuildNumber();
+        if(name.equals("BUILD_DISPLAY_NAME"))
+            return context.getDisplayName();
+        if(name.equals("BUILD_FULL_DISPLAY_NAME"))
+            return context.getFullDisplayName();
+        if(name.equals("BUILD_RESULT"))
+            return context.getBuildResult().toString();
+        if(name.equals("BUILD_STATUS"))
+            return context.getBuildResult().getHumanResult();
+        if(name.equals("BUILD_LINK"))
+            return context.getBuildLink();
+        if(name.equals("COMMIT_COUNT"))
+            return String.valueOf(context.getChangeCount());
+        if(name.equals("COMMITS"))
+            return commits(escaping);
+        if(name.startsWith("TEST_") || name.equals("FAILED_TESTS"))
+            return tests(name, escaping);
+        if(name.equals("LOG_EXCERPT"))
+            return logExcerpt(escaping);
+        if(name.equals("VCS_INFO"))
+            return escaping == Escaping.HTML ? TeamInboxMessage.versionControlVariableList(context.getEnvironment()) : null;
+        return context.getEnvironment().get(name);
+    }
+
+    public boolean isFormatted(String name, Escaping escaping) {
+        return name.equals("COMMITS") || name.equals("VCS_INFO") || name.equals("LOG_EXCERPT") ||
+            name.equals("FAILED_TESTS");
+    }
+
+    private String tests(String name, Escaping escaping) throws IOException, InterruptedException {
+        TestSummary tests = context.getTestSummary(testReport);
+        if(tests == null)
+            return name.equals("FAILED_TESTS") ? "" : context.getEnvironment().get(name);
+        if(name.equals("TEST_COUNTS"))
+            return tests.getCounts();
+        if(name.equals("TEST_TOTAL"))
+            return String.valueOf(tests.getTotal());
+        if(name.equals("TEST_FAILED"))
+            return String.valueOf(tests.getFailed());
+        if(name.equals("TEST_SKIPPED"))
+            return String.valueOf(tests.getSkipped());
+        if(name.equals("TEST_PASSED"))
+            return String.valueOf(tests.getPassed());
+        if(name.equals("FAILED_TESTS")) {
+            StringBuilder out = new StringBuilder();
+            if(escaping == Escaping.HTML) {
+                if(!tests.getFailures().isEmpty())
+                    TeamInboxMessage.appendFailedTests(out, tests);
+                return out.toString();
+            }
+            for(TestSummary.FailedTest test : tests.getFailures()) {
+                out.append("\n- ");
+                MessageTemplate.escape(test.getName(), escaping, out);
+                out.append(" (").append(test.getDurationString()).append(")");
+            }
+            return out.toString();
+        }
+        return context.getEnvironment().get(name);
+    }
+
+    private String logExcerpt(Escaping escaping) {
+        List<String> lines = context.getLogExcerpt(logExcerpt);
+        if(lines.isEmpty())
+            return "";
+        StringBuilder out = new StringBuilder();
+        if(escaping == Escaping.HTML) {
+            TeamInboxMessage.appendLogExcerpt(out, lines);
+            return out.toString();
+        }
+        if(escaping == Escaping.MARKDOWN)
+            out.append("\n```");
+        for(String line : lines) {
+            out.append('\n').append(line);
+        }
+        if(escaping == Escaping.MARKDOWN)
+            out.append("\n```");
+        return out.toString();
+    }
+
+    private String commits(Escaping escaping) {
+        List<Change> commits = context.getChanges(maxCommits);
+        if(commits.isEmpty())
+            return "";
+        StringBuilder out = new StringBuilder();
+        if(escaping == Escaping.HTML) {
+            TeamInboxMessage.appendCommits(out, context, maxCommits, maxChangesBytes);
+            return out.toString();
+        }
+        int listed = 0;
+        for(Change commit : commits) {
+            if(listed >= maxCommits || out.length() >= maxChangesBytes)
+                break;
+            out.append("\n- ");
+            MessageTemplate.escape(commit.getMessage(), escaping, out);
+            out.append(" (");
+            MessageTemplate.escape(commit.getAuthor(), escaping, out);
+            out.append(")");
+            listed++;
+        }
+        if(listed < context.getChangeCount())
+            out.append("\n+").append(context.getChangeCount() - listed).append(" more");
+        return out.toString();
+    }
+}
@@ -0,0 +1,238 @@
+package com.flowdock.jenkins;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the Flowdock deliveries since Jenkins started.
+ * Recording only touches atomic counters, so it is cheap enough to do for every
+ * request.
+ */
+public class DeliveryMetrics implements DeliveryMetricsMBean {
+    private static final Logger LOGGER = Logger.getLogger(DeliveryMetrics.class.getName());
+    private static final String OBJECT_NAME = "com.flowdock.jenkins:type=DeliveryMetrics";
+    private static final DeliveryMetrics INSTANCE = new DeliveryMetrics();
+
+    private final LatencyHistogram teamInboxLatency = new LatencyHistogram("Team Inbox post");
+    private final LatencyHistogram chatLatency = new LatencyHistogram("Chat post");
+    private final LatencyHistogram otherLatency = new LatencyHistogram("Other post");
+    private final LatencyHistogram renderTime = new LatencyHistogram("Message rendering");
+
+    private final AtomicLong postsSucceeded = new AtomicLong();
+    private final AtomicLong postsFailed = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rejectedByCircuitBreaker = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    public static DeliveryMetrics get() {
+        return INSTANCE;
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(!server.isRegistered(name))
+                server.registerMBean(INSTANCE, name);
+        } catch(JMException ex) {
+            LOGGER.log(Level.WARNING, "Failed to register the Flowdock delivery metrics with JMX", ex);
+        }
+    }
+
+    /**
+     * Records a message post, including its retries.
+     *
+     * @param path API path the message was posted to.
+     * @param status HTTP status of the final response, 0 if there was none.
+     */
+    public void recordPost(String path, int status, long nanos) {
+        histogramFor(path).record(nanos);
+        if(status == 200) {
+            postsSucceeded.incrementAndGet();
+        } else {
+            postsFailed.incrementAndGet();
+        }
+        AtomicLong counter = statuses.get(status);
+        if(counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = statuses.putIfAbsent(status, created);
+            if(counter == null)
+                counter = created;
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Records a single HTTP request.
+     */
+    public void recordAttempt(int bytes, boolean retry) {
+        attempts.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+        if(retry)
+            retries.incrementAndGet();
+    }
+
+    public void recordThrottled() {
+        throttled.incrementAndGet();
+    }
+
+    public void recordRejectedByCircuitBreaker() {
+        rejectedByCircuitBreaker.incrementAndGet();
+    }
+
+    public void recordRender(long nanos) {
+        renderTime.record(nanos);
+    }
+
+    private LatencyHistogram histogramFor(String path) {
+        if(FlowdockAPI.TEAM_INBOX_PATH.equals(path))
+            return teamInboxLatency;
+        if(FlowdockAPI.CHAT_PATH.equals(path))
+            return chatLatency;
+        return otherLatency;
+    }
+
+    public List<LatencyHistogram.Snapshot> getLatencies() {
+        List<LatencyHistogram.Snapshot> latencies = new ArrayList<LatencyHistogram.Snapshot>();
+        latencies.add(teamInboxLatency.snapshot());
+        latencies.add(chatLatency.snapshot());
+        if(otherLatency.getCount() > 0)
+            latencies.add(otherLatency.snapshot());
+        latencies.add(renderTime.snapshot());
+        return latencies;
+    }
+
+    /**
+     * @return the number of responses by HTTP status, 0 for requests without a response.
+     */
+    public SortedMap<Integer, Long> getStatusCounts() {
+        SortedMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for(Map.Entry<Integer, AtomicLong> status : statuses.entrySet()) {
+            counts.put(status.getKey(), status.getValue().get());
+        }
+        return counts;
+    }
+
+    public long getPostsSucceeded() {
+        return postsSucceeded.get();
+    }
+
+    public long getPostsFailed() {
+        return postsFailed.get();
+    }
+
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getRejectedByCircuitBreaker() {
+        return rejectedByCircuitBreaker.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public String[] getResponseStatuses() {
+        List<String> lines = new ArrayList<String>();
+        for(Map.Entry<Integer, Long> status : getStatusCounts().entrySet()) {
+            lines.add(status.getKey() + ": " + status.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public long getTeamInboxPosts() {
+        return teamInboxLatency.getCount();
+    }
+
+    public double getTeamInboxLatencyP50() {
+        return millis(teamInboxLatency.getPercentileMicros(0.5));
+    }
+
+    public double getTeamInboxLatencyP99() {
+        return millis(teamInboxLatency.getPercentileMicros(0.99));
+    }
+
+    public double getTeamInboxLatencyP999() {
+        return millis(teamInboxLatency.getPercentileMicros(0.999));
+    }
+
+    public double getTeamInboxLatencyMax() {
+        return millis(teamInboxLatency.getMaxMicros());
+    }
+
+    public long getChatPosts() {
+        return chatLatency.getCount();
+    }
+
+    public double getChatLatencyP50() {
+        return millis(chatLatency.getPercentileMicros(0.5));
+    }
+
+    public double getChatLatencyP99() {
+        return millis(chatLatency.getPercentileMicros(0.99));
+    }
+
+    public double getChatLatencyP999() {
+        return millis(chatLatency.getPercentileMicros(0.999));
+    }
+
+    public double getChatLatencyMax() {
+        return millis(chatLatency.getMaxMicros());
+    }
+
+    public double getRenderTimeP50() {
+        return millis(renderTime.getPercentileMicros(0.5));
+    }
+
+    public double getRenderTimeP99() {
+        return millis(renderTime.getPercentileMicros(0.99));
+    }
+
+    public void reset() {
+        teamInboxLatency.reset();
+        chatLatency.reset();
+        otherLatency.reset();
+        renderTime.reset();
+        postsSucceeded.set(0L);
+        postsFailed.set(0L);
+        attempts.set(0L);
+        retries.set(0L);
+        throttled.set(0L);
+        rejectedByCircuitBreaker.set(0L);
+        bytesSent.set(0L);
+        statuses.clear();
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,53 @@
+package com.flowdock.jenkins;
+
+/**
+ * JMX view of {@link DeliveryMetrics}, registered as
+ * {@code com.flowdock.jenkins:type=DeliveryMetrics}. Latencies are in milliseconds.
+ */
+public interface DeliveryMetricsMBean {
+    long getPostsSucceeded();
+
+    long getPostsFailed();
+
+    long getAttempts();
+
+    long getRetries();
+
+    long getThrottled();
+
+    long getRejectedByCircuitBreaker();
+
+    long getBytesSent();
+
+    /**
+     * @return the number of responses for each HTTP status, e.g. "200: 1234". Status 0
+     *     counts requests that failed without a response.
+     */
+    String[] getResponseStatuses();
+
+    long getTeamInboxPosts();
+
+    double getTeamInboxLatencyP50();
+
+    double getTeamInboxLatencyP99();
+
+    double getTeamInboxLatencyP999();
+
+    double getTeamInboxLatencyMax();
+
+    long getChatPosts();
+
+    double getChatLatencyP50();
+
+    double getChatLatencyP99();
+
+    double getChatLatencyP999();
+
+    double getChatLatencyMax();
+
+    double getRenderTimeP50();
+
+    double getRenderTimeP99();
+
+    void reset();
+}
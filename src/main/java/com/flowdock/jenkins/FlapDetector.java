@@ -0,0 +1,141 @@
+package com.flowdock.jenkins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Detects jobs whose result keeps flipping between success and failure, so that
+ * their notifications can be replaced with a single notice while they are flapping.
+ * A job is flapping once the share of flips among its recent results reaches the
+ * threshold, and stable again once it falls below half of it.
+ * <p>
+ * Each job keeps its last results in a small ring buffer, and only the most recently
+ * built jobs are tracked.
+ */
+public class FlapDetector {
+    public static final int DEFAULT_WINDOW = 10;
+    public static final int MAX_JOBS = 1000;
+    // fewer results than this are not enough to call a job flapping
+    public static final int MIN_WINDOW = 4;
+
+    public enum Status {
+        /** The job is not flapping, notify as usual. */
+        STABLE,
+        /** The job started flapping with this build. */
+        STARTED,
+        /** The job is still flapping, the notification is suppressed. */
+        FLAPPING,
+        /** The job stopped flapping with this build. */
+        STOPPED
+    }
+
+    private final int window;
+    private final int threshold;
+    private final Map<String, History> jobs;
+
+    /**
+     * @param window number of recent results kept for each job.
+     * @param threshold percentage of flips among the recent results at which a job is flapping.
+     * @param maxJobs number of jobs tracked, the least recently built are forgotten.
+     */
+    public FlapDetector(int window, int threshold, final int maxJobs) {
+        this.window = Math.max(MIN_WINDOW, window);
+        this.threshold = Math.max(1, threshold);
+        this.jobs = new LinkedHashMap<String, History>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, History> eldest) {
+                return size() > maxJobs;
+            }
+        };
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Records the result of a build. Aborted and not built builds don't change the
+     * flapping status.
+     */
+    public synchronized Status record(String job, BuildResult result) {
+        History history = jobs.get(job);
+        if(result == BuildResult.ABORTED || result == BuildResult.NOT_BUILT)
+            return history != null && history.flapping ? Status.FLAPPING : Status.STABLE;
+        if(history == null) {
+            history = new History(window);
+            jobs.put(job, history);
+        }
+        history.add(result == BuildResult.SUCCESS || result == BuildResult.FIXED);
+
+        // percentages of the flips between consecutive results, scaled to avoid rounding
+        int flips = history.flips() * 100;
+        int pairs = history.size - 1;
+        if(!history.flapping) {
+            if(history.size >= MIN_WINDOW && flips >= threshold * pairs) {
+                history.flapping = true;
+                return Status.STARTED;
+            }
+            return Status.STABLE;
+        }
+        if(flips * 2 < threshold * pairs) {
+            history.flapping = false;
+            return Status.STOPPED;
+        }
+        return Status.FLAPPING;
+    }
+
+    /**
+     * @return the number of flips among the recent results of the job.
+     */
+    public synchronized int getFlips(String job) {
+        History history = jobs.get(job);
+        return history == null ? 0 : history.flips();
+    }
+
+    /**
+     * @return the number of recent results kept for the job.
+     */
+    public synchronized int getResults(String job) {
+        History history = jobs.get(job);
+        return history == null ? 0 : history.size;
+    }
+
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    /**
+     * The last results of a job, true for success, in a ring buffer.
+     */
+    private static final class History {
+        private final boolean[] results;
+        private int next;
+        private int size;
+        private boolean flapping;
+
+        History(int window) {
+            this.results = new boolean[window];
+        }
+
+        void add(boolean success) {
+            results[next] = success;
+            next = (next + 1) % results.length;
+            if(size < results.length)
+                size++;
+        }
+
+        int flips() {
+            int flips = 0;
+            int oldest = (next - size + results.length) % results.length;
+            for(int i = 1; i < size; i++) {
+                if(results[(oldest + i) % results.length] != results[(oldest + i - 1) % results.length])
+                    flips++;
+            }
+            return flips;
+        }
+    }
+}
@@ -1,142 +1,112 @@
 package com.flowdock.jenkins;
 
-import hudson.ProxyConfiguration;
-
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.Authenticator;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.PasswordAuthentication;
 import java.net.ProtocolException;
-import java.net.Proxy;
-import java.net.Proxy.Type;
-import java.net.SocketAddress;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import jenkins.model.Jenkins;
-
-import org.apache.commons.lang.StringUtils;
-
 import com.flowdock.jenkins.exception.FlowdockException;
 
 public class FlowdockAPI {
 	private static final Logger LOGGER = Logger.getLogger(FlowdockAPI.class.getName());
+    public static final String TEAM_INBOX_PATH = "/messages/team_inbox/";
+    public static final String CHAT_PATH = "/messages/chat/";
+
+    private static final FlowdockTransport DEFAULT_TRANSPORT = new HttpURLConnectionTransport();
+
     private String apiUrl;
     private String flowToken;
+    private FlowdockTransport transport;
 
     public FlowdockAPI(String apiUrl, String flowToken) {
+        this(apiUrl, flowToken, DEFAULT_TRANSPORT);
+    }
+
+    public FlowdockAPI(String apiUrl, String flowToken, FlowdockTransport transport) {
         this.apiUrl = apiUrl;
         this.flowToken = trimFlowTokens(flowToken);
+        this.transport = transport;
     }
 
     public void pushTeamInboxMessage(TeamInboxMessage msg) throws FlowdockException {
-        try {
-            doPost("/messages/team_inbox/", msg.asPostData());
-        } catch(UnsupportedEncodingException ex) {
-            throw new FlowdockException("Cannot encode request data: " + ex.getMessage());
-        }
+        FormEncoder encoder = FormEncoder.forThread();
+        msg.writePostData(encoder);
+        doPost(TEAM_INBOX_PATH, encoder.buffer(), encoder.size());
     }
 
     public void pushChatMessage(ChatMessage msg) throws FlowdockException {
-        try {
-            doPost("/messages/chat/", msg.asPostData());
-        } catch(UnsupportedEncodingException ex) {
-            throw new FlowdockException("Cannot encode request data: " + ex.getMessage());
-        }
+        FormEncoder encoder = FormEncoder.forThread();
+        msg.writePostData(encoder);
+        doPost(CHAT_PATH, encoder.buffer(), encoder.size());
+    }
+
+    /**
+     * Posts already encoded message data, e.g. a message replayed from the outbox.
+     */
+    public void post(String path, byte[] data) throws FlowdockException {
+        doPost(path, data, data.length);
     }
 
-    private void doPost(String path, String data) throws FlowdockException {
-        URL url;
-        HttpURLConnection connection = null;
+    private void doPost(String path, byte[] data, int length) throws FlowdockException {
         String flowdockUrl = apiUrl + path + flowToken;
+        long start = System.nanoTime();
+        int status = 0;
         try {
-            // create connection
-            url = new URL(flowdockUrl);
-            connection = (HttpURLConnection)url.openConnection(getProxy());
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            connection.setRequestProperty("Content-Length", String.valueOf(data.getBytes().length));
-            connection.setUseCaches(false);
-            connection.setDoInput(true);
-            connection.setDoOutput(true);
-
-            // send the request
-            DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-            wr.writeBytes(data);
-            wr.flush();
-            wr.close();
-
-            if(connection.getResponseCode() != 200) {
-                StringBuffer responseContent = new StringBuffer();
-                try {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                    String responseLine;
-                    while ((responseLine = in.readLine()) != null) {
-                        responseContent.append(responseLine);
-                    }
-                    in.close();
-                } catch(Exception ex) {
-                    // nothing we can do about this
-                } finally {
-                    throw new FlowdockException("Flowdock returned an error response with status " +
-                    connection.getResponseCode() + " " + connection.getResponseMessage() + ", " +
-                    responseContent.toString() + "\n\nURL: " + flowdockUrl);
-                }
+            FlowdockResponse response = transport.post(new URL(flowdockUrl), data, length);
+            status = response.getStatus();
+            if(!response.isSuccess()) {
+                throw new FlowdockException("Flowdock returned an error response with status " +
+                    response.getStatus() + " " + response.getMessage() + ", " +
+                    response.getContent() + "\n\nURL: " + apiUrl + path + describeFlowToken(flowToken),
+                    response.getStatus());
             }
         } catch(MalformedURLException ex) {
-            throw new FlowdockException("Flowdock API URL is invalid: " + flowdockUrl);
+            // sending it again won't help, so the post is not kept in the outbox
+            throw new FlowdockException("Flowdock API URL is invalid: " + apiUrl + path +
+                describeFlowToken(flowToken), 0, false);
         } catch(ProtocolException ex) {
             throw new FlowdockException("ProtocolException in connecting to Flowdock: " + ex.getMessage());
         } catch(IOException ex) {
             throw new FlowdockException("IOException in connecting to Flowdock: " + ex.getMessage());
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            DeliveryMetrics.get().recordPost(path, status, elapsed);
+            if(LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Posted " + length + " bytes to " + path + describeFlowToken(flowToken) + ", status " +
+                    status + " in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            }
         }
     }
 
+    public static String trimFlowTokens(String flowTokens) {
+        return flowTokens.replaceAll("\\s", "");
+    }
+
     /**
-     * Returns the Jenkins proxy configuration. {@link Proxy#NO_PROXY} if none configured.
-     * 
-     * @return the Jenkins proxy configuration. {@link Proxy#NO_PROXY} if none configured.
+     * Splits a comma separated list of flow tokens, dropping blanks and duplicates.
      */
-    private Proxy getProxy() {
-        Proxy proxy = null;
-        final ProxyConfiguration proxyConf = Jenkins.getInstance().proxy;
-
-        if (proxyConf == null) {
-            proxy = Proxy.NO_PROXY;
-            LOGGER.finest("No proxy found");
-        } else {
-            LOGGER.finest("Proxy found: " + proxyConf.name + ":" + proxyConf.port);
-            System.out.println();
-            SocketAddress socketAddress = new InetSocketAddress(proxyConf.name, proxyConf.port);
-            proxy = new Proxy(Type.HTTP, socketAddress);
-
-            // Considering only the presence of a username, implying there's a pwd. Is it right?
-            final String userName = proxyConf.getUserName();
-            if (StringUtils.isNotEmpty(userName)) {
-                final String passwd = proxyConf.getPassword();
-
-                LOGGER.finest("Proxy authentication found: username=" + userName
-                        + ", password empty? " + StringUtils.isEmpty(passwd));
-
-                // Will impact the whole server instance. May not be a good idea :-/.
-                Authenticator.setDefault(new Authenticator() {
-                    @Override
-                    protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(userName, passwd.toCharArray());
-                    }
-                });
+    public static List<String> splitFlowTokens(String flowTokens) {
+        Set<String> tokens = new LinkedHashSet<String>();
+        if(flowTokens != null) {
+            for(String token : trimFlowTokens(flowTokens).split(",")) {
+                if(token.length() > 0)
+                    tokens.add(token);
             }
         }
-        return proxy;
+        return new ArrayList<String>(tokens);
     }
 
-    public static String trimFlowTokens(String flowTokens) {
-        return flowTokens.replaceAll("\\s", "");
+    /**
+     * Shortens a flow token so that it can be shown in logs without revealing it.
+     */
+    public static String describeFlowToken(String flowToken) {
+        return flowToken.length() <= 6 ? flowToken : flowToken.substring(0, 6) + "...";
     }
 }
@@ -0,0 +1,35 @@
+package com.flowdock.jenkins;
+
+import hudson.model.Action;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivery results of the Flowdock notifications sent for a build. Delivery happens
+ * in the background after the build log has been closed, so the results are shown
+ * on the build page instead.
+ */
+public class FlowdockDeliveryAction implements Action {
+    private final List<String> results = new CopyOnWriteArrayList<String>();
+
+    public void addResult(String result) {
+        results.add(result);
+    }
+
+    public List<String> getResults() {
+        return results;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Flowdock notifications";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,521 @@
+package com.flowdock.jenkins;
+
+import com.flowdock.jenkins.exception.FlowdockException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plugin-wide bounded queue and worker pool delivering notifications to Flowdock,
+ * so that builds don't wait for the HTTP requests to complete.
+ *
+ * If an outbox is given, every post is journaled before it is queued. Posts that
+ * could not be delivered, or were still queued when Jenkins stopped, are sent again
+ * by a background drainer. The journal is synced to disk by the worker before it
+ * sends the posts, so the build thread never waits for an fsync; a post still queued
+ * when the machine itself goes down may be lost, one that has been sent never is.
+ */
+public class FlowdockDispatcher {
+    private static final Logger LOGGER = Logger.getLogger(FlowdockDispatcher.class.getName());
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_FLOW_CONCURRENCY = 4;
+    // the retry deadline of a message plus its last attempt, so that retries are not cut short
+    public static final int DEFAULT_FLOW_TIMEOUT = RetryingTransport.DEFAULT_DEADLINE +
+        HttpURLConnectionTransport.DEFAULT_CONNECT_TIMEOUT + HttpURLConnectionTransport.DEFAULT_READ_TIMEOUT;
+
+    private static final long DRAIN_INTERVAL = 60L;
+    private static final int DRAIN_BATCH = 100;
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor flowExecutor;
+    private final ScheduledExecutorService drainer;
+    private final OverflowPolicy overflowPolicy;
+    private final FlowdockTransport transport;
+    private final FlowdockOutbox outbox;
+    private final long flowTimeoutMillis;
+    private final boolean deliverFromAgents;
+
+    public FlowdockDispatcher(int threads, int queueCapacity, OverflowPolicy overflowPolicy,
+        FlowdockTransport transport) {
+        this(threads, queueCapacity, overflowPolicy, transport, DEFAULT_FLOW_CONCURRENCY, DEFAULT_FLOW_TIMEOUT, null);
+    }
+
+    /**
+     * @param flowConcurrency maximum number of flows a notification is sent to in parallel.
+     * @param flowTimeout seconds to wait for the delivery to a single flow.
+     * @param outbox journal for the posts, or null to deliver without one.
+     */
+    public FlowdockDispatcher(int threads, int queueCapacity, OverflowPolicy overflowPolicy,
+        FlowdockTransport transport, int flowConcurrency, int flowTimeout, FlowdockOutbox outbox) {
+        this(threads, queueCapacity, overflowPolicy, transport, flowConcurrency, flowTimeout, outbox, false);
+    }
+
+    /**
+     * @param deliverFromAgents true to send notifications from the agent that ran the
+     *     build, which requires an {@link AgentTransport} in the transport chain.
+     */
+    public FlowdockDispatcher(int threads, int queueCapacity, OverflowPolicy overflowPolicy,
+        FlowdockTransport transport, int flowConcurrency, int flowTimeout, FlowdockOutbox outbox,
+        boolean deliverFromAgents) {
+        this.transport = transport;
+        this.deliverFromAgents = deliverFromAgents;
+        this.outbox = outbox;
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.DISCARD_NEWEST : overflowPolicy;
+        this.flowTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, flowTimeout));
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)), new WorkerThreadFactory("Flowdock dispatcher"),
+            new OverflowHandler());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.flowExecutor = new ThreadPoolExecutor(Math.max(1, flowConcurrency), Math.max(1, flowConcurrency),
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("Flowdock flow sender"));
+        this.flowExecutor.allowCoreThreadTimeOut(true);
+
+        if(outbox != null) {
+            this.drainer = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("Flowdock outbox drainer"));
+            this.drainer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    drainOutbox();
+                }
+            }, 0L, DRAIN_INTERVAL, TimeUnit.SECONDS);
+        } else {
+            this.drainer = null;
+        }
+    }
+
+    /**
+     * Journals the notification and queues it for delivery. The journal is synced
+     * later by the worker, see {@link #sync()}.
+     *
+     * @return false if the notification was not queued because the queue is full.
+     */
+    public boolean dispatch(FlowdockNotification notification) {
+        return execute(new DeliveryTask(notification, journal(notification)));
+    }
+
+    /**
+     * Queues the notification without blocking the caller: it is journaled by the
+     * worker that delivers it, and it is dropped when the queue is full whatever the
+     * overflow policy.
+     *
+     * @return false if the notification was not queued because the queue is full.
+     */
+    public boolean offer(FlowdockNotification notification) {
+        return execute(new DeliveryTask(notification, null));
+    }
+
+    private boolean execute(DeliveryTask task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch(RejectedExecutionException ex) {
+            task.reject();
+            return false;
+        }
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting new notifications. Already queued notifications are still delivered.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        // the flow senders are still needed while the queue drains, their threads exit once idle
+        if(drainer != null) {
+            drainer.shutdownNow();
+        }
+    }
+
+    /**
+     * Encodes the messages of the notification for each of its flows and records
+     * them in the outbox.
+     *
+     * @return the posts to send, by flow token.
+     */
+    private Map<String, List<OutboxEntry>> journal(FlowdockNotification notification) {
+        // every flow gets the same data, so it's encoded once and shared
+        byte[] teamInboxData = encode(notification.getTeamInboxMessage());
+        ChatMessage chatMsg = notification.getChatMessage();
+        byte[] chatData = chatMsg == null ? null : encode(chatMsg);
+
+        Map<String, List<OutboxEntry>> posts = new LinkedHashMap<String, List<OutboxEntry>>();
+        for(String flowToken : FlowdockAPI.splitFlowTokens(notification.getFlowToken())) {
+            List<OutboxEntry> flowPosts = new ArrayList<OutboxEntry>(2);
+            flowPosts.add(record(notification.getApiUrl(), flowToken, FlowdockAPI.TEAM_INBOX_PATH, teamInboxData));
+            if(chatData != null) {
+                flowPosts.add(record(notification.getApiUrl(), flowToken, FlowdockAPI.CHAT_PATH, chatData));
+            }
+            posts.put(flowToken, flowPosts);
+        }
+        return posts;
+    }
+
+    /**
+     * Forces the journaled posts to disk. Called by the workers rather than by
+     * {@link #dispatch}, so that concurrent deliveries share one fsync and builds
+     * don't wait for the disk.
+     */
+    private void sync() {
+        if(outbox != null) {
+            try {
+                outbox.commit();
+            } catch(IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed to sync the Flowdock outbox", ex);
+            }
+        }
+    }
+
+    private static byte[] encode(FlowdockMessage msg) {
+        FormEncoder encoder = FormEncoder.forThread();
+        msg.writePostData(encoder);
+        return encoder.toByteArray();
+    }
+
+    private OutboxEntry record(String apiUrl, String flowToken, String path, byte[] data) {
+        if(outbox != null) {
+            try {
+                return outbox.add(apiUrl, flowToken, path, data);
+            } catch(IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed to write to the Flowdock outbox, sending without it", ex);
+            }
+        }
+        OutboxEntry entry = new OutboxEntry(0L, apiUrl, flowToken, path, data, System.currentTimeMillis());
+        entry.claim();
+        return entry;
+    }
+
+    /**
+     * Sends the notification to each of its flows separately, so that a slow or
+     * invalid flow doesn't hold back or fail the delivery to the others.
+     */
+    protected void deliver(FlowdockNotification notification, Map<String, List<OutboxEntry>> posts) {
+        if(posts.isEmpty()) {
+            notification.report("No flow tokens configured, notification not sent");
+            return;
+        }
+        AgentTransport.Agent agent = deliverFromAgents ? AgentTransport.Agent.of(notification.getBuild()) : null;
+        Map<FlowDelivery, Future<String>> deliveries = new LinkedHashMap<FlowDelivery, Future<String>>();
+        for(Map.Entry<String, List<OutboxEntry>> flow : posts.entrySet()) {
+            FlowDelivery delivery = new FlowDelivery(agent, flow.getKey(), flow.getValue());
+            deliveries.put(delivery, flowExecutor.submit(delivery));
+        }
+
+        for(Map.Entry<FlowDelivery, Future<String>> delivery : deliveries.entrySet()) {
+            String flow = "Flow " + FlowdockAPI.describeFlowToken(delivery.getKey().flowToken);
+            Future<String> result = delivery.getValue();
+            try {
+                notification.report(await(delivery.getKey(), result));
+            } catch(TimeoutException ex) {
+                result.cancel(true);
+                notification.report(flow + ": no result in " +
+                    TimeUnit.MILLISECONDS.toSeconds(flowTimeoutMillis) + " seconds, gave up waiting for the delivery" +
+                    (delivery.getKey().abandon() ? "\nThe notification will be sent again later." : ""));
+            } catch(ExecutionException ex) {
+                delivery.getKey().abandon();
+                notification.report(flow + ": failed to send notification: " + ex.getCause());
+            } catch(InterruptedException ex) {
+                result.cancel(true);
+                delivery.getKey().abandon();
+                notification.report(flow + ": delivery interrupted");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits for the delivery to a flow. The timeout starts when the delivery starts
+     * running, time spent queued behind the flows of other notifications doesn't count.
+     */
+    private String await(FlowDelivery delivery, Future<String> result)
+        throws ExecutionException, InterruptedException, TimeoutException {
+        while(true) {
+            long started = delivery.started;
+            long wait = flowTimeoutMillis;
+            if(started != 0L) {
+                wait = started + flowTimeoutMillis - System.currentTimeMillis();
+                if(wait <= 0L)
+                    throw new TimeoutException();
+            }
+            try {
+                return result.get(wait, TimeUnit.MILLISECONDS);
+            } catch(TimeoutException ex) {
+                // still queued, or started while we waited: check its own deadline again
+            }
+        }
+    }
+
+    private String deliverToFlow(AgentTransport.Agent agent, String flowToken, List<OutboxEntry> posts) {
+        if(agent == null)
+            return deliverToFlow(flowToken, posts);
+        AgentTransport.Agent previous = AgentTransport.setCurrent(agent);
+        try {
+            return deliverToFlow(flowToken, posts);
+        } finally {
+            AgentTransport.setCurrent(previous);
+        }
+    }
+
+    /**
+     * Sends the Team Inbox post and the optional chat post to a single flow.
+     *
+     * @return the delivery status to report for the flow.
+     */
+    protected String deliverToFlow(String flowToken, List<OutboxEntry> posts) {
+        String flow = "Flow " + FlowdockAPI.describeFlowToken(flowToken);
+        OutboxEntry teamInbox = posts.get(0);
+        OutboxEntry chat = posts.size() > 1 ? posts.get(1) : null;
+
+        try {
+            send(teamInbox);
+        } catch(FlowdockException ex) {
+            boolean retry = settleFailed(teamInbox, ex);
+            if(chat != null)
+                settleFailed(chat, ex);
+            return flow + ": failed to send notification: " + ex.getMessage() +
+                (retry ? "\nThe notification will be sent again later." : "");
+        }
+
+        if(chat == null) {
+            return flow + ": Team Inbox notification sent successfully";
+        }
+        try {
+            send(chat);
+            return flow + ": Team Inbox and Chat notifications sent successfully";
+        } catch(FlowdockException ex) {
+            boolean retry = settleFailed(chat, ex);
+            return flow + ": Team Inbox notification sent successfully, failed to send Chat notification: " +
+                ex.getMessage() + (retry ? "\nThe Chat notification will be sent again later." : "");
+        }
+    }
+
+    private void send(OutboxEntry post) throws FlowdockException {
+        new FlowdockAPI(post.getApiUrl(), post.getFlowToken(), transport).post(post.getPath(), post.getData());
+        if(outbox != null)
+            outbox.done(post);
+    }
+
+    /**
+     * Leaves a failed post in the outbox if sending it again may succeed.
+     *
+     * @return true if the post will be sent again later.
+     */
+    private boolean settleFailed(OutboxEntry post, FlowdockException ex) {
+        if(outbox == null || post.getId() == 0L)
+            return false;
+        if(ex.isRetryable()) {
+            outbox.release(post);
+            return true;
+        }
+        outbox.done(post);
+        return false;
+    }
+
+    /**
+     * Sends the posts left in the outbox. Stops at the first failure that may be
+     * temporary, the rest are tried again on the next round.
+     */
+    protected void drainOutbox() {
+        int sent = 0;
+        try {
+            List<OutboxEntry> posts;
+            while(!(posts = outbox.claimPending(DRAIN_BATCH)).isEmpty()) {
+                for(int i = 0; i < posts.size(); i++) {
+                    OutboxEntry post = posts.get(i);
+                    try {
+                        send(post);
+                        sent++;
+                    } catch(FlowdockException ex) {
+                        if(!settleFailed(post, ex)) {
+                            LOGGER.warning("Flowdock rejected a message from the outbox to flow " +
+                                FlowdockAPI.describeFlowToken(post.getFlowToken()) + ": " + ex.getMessage());
+                            continue;
+                        }
+                        LOGGER.info("Flowdock is not available, " + outbox.getPendingCount() +
+                            " messages left in the outbox: " + ex.getMessage());
+                        release(posts.subList(i + 1, posts.size()));
+                        return;
+                    }
+                }
+            }
+        } catch(RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Failed to drain the Flowdock outbox", ex);
+        } finally {
+            if(sent > 0)
+                LOGGER.info("Sent " + sent + " messages from the Flowdock outbox");
+        }
+    }
+
+    private void release(Collection<OutboxEntry> posts) {
+        for(OutboxEntry post : posts) {
+            outbox.release(post);
+        }
+    }
+
+    private class DeliveryTask implements Runnable {
+        private final FlowdockNotification notification;
+        // null until the worker journals an offered notification
+        private Map<String, List<OutboxEntry>> posts;
+
+        DeliveryTask(FlowdockNotification notification, Map<String, List<OutboxEntry>> posts) {
+            this.notification = notification;
+            this.posts = posts;
+        }
+
+        boolean isOffered() {
+            return posts == null;
+        }
+
+        public void run() {
+            try {
+                if(posts == null)
+                    posts = journal(notification);
+                sync();
+                deliver(notification, posts);
+            } finally {
+                notification.complete();
+            }
+        }
+
+        /**
+         * Called when the task doesn't fit in the queue. Journaled posts are left for
+         * the outbox drainer.
+         */
+        void reject() {
+            boolean journaled = false;
+            Map<String, List<OutboxEntry>> rejected = posts != null ? posts :
+                Collections.<String, List<OutboxEntry>>emptyMap();
+            for(List<OutboxEntry> flowPosts : rejected.values()) {
+                for(OutboxEntry post : flowPosts) {
+                    if(post.getId() != 0L) {
+                        outbox.release(post);
+                        journaled = true;
+                    }
+                }
+            }
+            if(journaled)
+                sync();
+            notification.report(journaled ?
+                "The Flowdock dispatch queue is full, the notification will be sent from the outbox later" :
+                "Notification dropped, the Flowdock dispatch queue is full");
+            notification.complete();
+        }
+    }
+
+    private class FlowDelivery implements Callable<String> {
+        private final AgentTransport.Agent agent;
+        private final String flowToken;
+        private final List<OutboxEntry> posts;
+        // whoever sets this first owns the posts: the delivery sends them, or abandon() releases them
+        private final AtomicBoolean taken = new AtomicBoolean();
+        // when the delivery started running, 0 while it is queued
+        private volatile long started;
+        private volatile boolean finished;
+
+        FlowDelivery(AgentTransport.Agent agent, String flowToken, List<OutboxEntry> posts) {
+            this.agent = agent;
+            this.flowToken = flowToken;
+            this.posts = posts;
+        }
+
+        public String call() {
+            if(!taken.compareAndSet(false, true))
+                return "Flow " + FlowdockAPI.describeFlowToken(flowToken) + ": delivery abandoned";
+            started = System.currentTimeMillis();
+            try {
+                return deliverToFlow(agent, flowToken, posts);
+            } finally {
+                finished = true;
+            }
+        }
+
+        /**
+         * Hands the posts back to the outbox if the delivery never started or ended
+         * without settling them. A delivery still running settles its posts itself.
+         *
+         * @return true if the posts were journaled and will be sent again by the drainer.
+         */
+        boolean abandon() {
+            if(!taken.compareAndSet(false, true) && !finished)
+                return false;
+            boolean journaled = false;
+            for(OutboxEntry post : posts) {
+                if(post.getId() != 0L) {
+                    outbox.release(post);
+                    journaled = true;
+                }
+            }
+            return journaled;
+        }
+    }
+
+    private class OverflowHandler implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if(executor.isShutdown()) {
+                throw new RejectedExecutionException("Flowdock dispatcher has been shut down");
+            }
+            // an offered notification never runs in the caller, it must not block
+            boolean offered = task instanceof DeliveryTask && ((DeliveryTask)task).isOffered();
+            switch(overflowPolicy) {
+                case SEND_IN_CALLER:
+                    if(offered) {
+                        LOGGER.warning("Flowdock dispatch queue is full, dropped a new notification");
+                        throw new RejectedExecutionException("Flowdock dispatch queue is full");
+                    }
+                    task.run();
+                    break;
+                case DISCARD_OLDEST:
+                    Runnable oldest = executor.getQueue().poll();
+                    if(oldest instanceof DeliveryTask) {
+                        ((DeliveryTask)oldest).reject();
+                    }
+                    LOGGER.warning("Flowdock dispatch queue is full, dropped the oldest notification");
+                    executor.execute(task);
+                    break;
+                default:
+                    LOGGER.warning("Flowdock dispatch queue is full, dropped a new notification");
+                    throw new RejectedExecutionException("Flowdock dispatch queue is full");
+            }
+        }
+    }
+
+    static class WorkerThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
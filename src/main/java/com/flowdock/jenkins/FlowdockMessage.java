@@ -1,7 +1,8 @@
 package com.flowdock.jenkins;
 
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+
+import jenkins.model.Jenkins;
 
 public abstract class FlowdockMessage {
     protected String content;
@@ -11,17 +12,39 @@ public abstract class FlowdockMessage {
         this.content = content;
     }
 
+    public String getContent() {
+        return content;
+    }
+
     public void setTags(String tags) {
         this.tags = tags;
     }
 
-    public abstract String asPostData() throws UnsupportedEncodingException;
+    public String getTags() {
+        return tags;
+    }
+
+    /**
+     * Writes the message as form encoded post data.
+     */
+    public abstract void writePostData(FormEncoder encoder);
 
-    protected String removeWhitespace(String data) {
-        return data == null ? null : tags.replaceAll("\\s", "");
+    /**
+     * @return the message as form encoded post data.
+     * @deprecated use {@link #writePostData(FormEncoder)}, which doesn't build a String.
+     */
+    @Deprecated
+    public String asPostData() throws UnsupportedEncodingException {
+        FormEncoder encoder = new FormEncoder();
+        writePostData(encoder);
+        return encoder.toString();
     }
 
-    protected String urlEncode(String data) throws UnsupportedEncodingException {
-        return data == null ? "" : URLEncoder.encode(data, "UTF-8");
+    /**
+     * @return the root URL of Jenkins, or null if not configured or Jenkins is not running.
+     */
+    protected static String rootUrl() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins == null ? null : jenkins.getRootUrl();
     }
 }
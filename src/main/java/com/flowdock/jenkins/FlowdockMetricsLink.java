@@ -0,0 +1,34 @@
+package com.flowdock.jenkins;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+/**
+ * Read-only page under Manage Jenkins showing the {@link DeliveryMetrics}.
+ */
+@Extension
+public class FlowdockMetricsLink extends ManagementLink {
+    @Override
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Flowdock Delivery Metrics";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Latency, failures and retries of the Flowdock notifications sent since Jenkins started.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "flowdock-metrics";
+    }
+
+    public DeliveryMetrics getMetrics() {
+        return DeliveryMetrics.get();
+    }
+}
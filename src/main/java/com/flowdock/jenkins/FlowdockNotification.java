@@ -0,0 +1,167 @@
+package com.flowdock.jenkins;
+
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fully rendered notification waiting for delivery. The messages are built on the
+ * build thread and must not be modified after the notification has been created.
+ */
+public final class FlowdockNotification {
+    private static final Logger LOGGER = Logger.getLogger(FlowdockNotification.class.getName());
+
+    private final Run build;
+    private final FlowdockDeliveryAction action;
+    private final String apiUrl;
+    private final String flowToken;
+    private final BuildResult buildResult;
+    private final TeamInboxMessage teamInboxMessage;
+    private final ChatMessage chatMessage;
+    private final List<FlowdockNotification> parts;
+    private final DeliveryListener deliveryListener;
+    private final List<String> results = new CopyOnWriteArrayList<String>();
+    private volatile boolean reported;
+
+    /**
+     * Told when the delivery of a notification has finished, successfully or not.
+     */
+    public interface DeliveryListener {
+        /**
+         * @param results the delivery result of each flow.
+         */
+        void delivered(List<String> results);
+    }
+
+    public FlowdockNotification(Run build, FlowdockDeliveryAction action, String apiUrl, String flowToken,
+        BuildResult buildResult, TeamInboxMessage teamInboxMessage, ChatMessage chatMessage) {
+        this(build, action, apiUrl, flowToken, buildResult, teamInboxMessage, chatMessage, null);
+    }
+
+    /**
+     * @param buildResult the result of the build, or null if the notification is not about the result.
+     * @param deliveryListener told when the delivery has finished, or null.
+     */
+    public FlowdockNotification(Run build, FlowdockDeliveryAction action, String apiUrl, String flowToken,
+        BuildResult buildResult, TeamInboxMessage teamInboxMessage, ChatMessage chatMessage,
+        DeliveryListener deliveryListener) {
+        this.build = build;
+        this.action = action;
+        this.apiUrl = apiUrl;
+        this.flowToken = flowToken;
+        this.buildResult = buildResult;
+        this.teamInboxMessage = teamInboxMessage;
+        this.chatMessage = chatMessage;
+        this.parts = Collections.emptyList();
+        this.deliveryListener = deliveryListener;
+    }
+
+    private FlowdockNotification(List<FlowdockNotification> parts, TeamInboxMessage digest) {
+        FlowdockNotification first = parts.get(0);
+        this.build = null;
+        this.action = null;
+        this.apiUrl = first.apiUrl;
+        this.flowToken = first.flowToken;
+        this.buildResult = null;
+        this.teamInboxMessage = digest;
+        this.chatMessage = null;
+        this.parts = Collections.unmodifiableList(parts);
+        this.deliveryListener = null;
+    }
+
+    /**
+     * Combines notifications to the same flows and with the same tags into a single
+     * Team Inbox message listing all of them.
+     */
+    public static FlowdockNotification digest(List<FlowdockNotification> parts) {
+        return new FlowdockNotification(parts, TeamInboxMessage.digest(parts));
+    }
+
+    /**
+     * @return the build the notification is about, null for a digest.
+     */
+    Run getBuild() {
+        return build;
+    }
+
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    public String getFlowToken() {
+        return flowToken;
+    }
+
+    /**
+     * @return the result of the build, null for a digest or a notification not about the result.
+     */
+    public BuildResult getBuildResult() {
+        return buildResult;
+    }
+
+    public TeamInboxMessage getTeamInboxMessage() {
+        return teamInboxMessage;
+    }
+
+    /**
+     * @return the chat message to send after the Team Inbox message, or null if none.
+     */
+    public ChatMessage getChatMessage() {
+        return chatMessage;
+    }
+
+    /**
+     * @return the notifications combined into this digest, empty if this is not a digest.
+     */
+    public List<FlowdockNotification> getParts() {
+        return parts;
+    }
+
+    /**
+     * Records a delivery result on the build the notification was created for, or on
+     * all the builds included in a digest.
+     */
+    public void report(String result) {
+        for(FlowdockNotification part : parts) {
+            part.report("In a digest of " + parts.size() + " builds: " + result);
+        }
+        if(deliveryListener != null)
+            results.add(result);
+        if(build == null)
+            return;
+        LOGGER.fine(build.getFullDisplayName() + ": " + result);
+        if(action == null)
+            return;
+        action.addResult(result);
+        reported = true;
+    }
+
+    /**
+     * Called once all flows have been tried, or the notification was not accepted for
+     * delivery. Saves the build once with all the results recorded by {@link #report}.
+     */
+    public void complete() {
+        for(FlowdockNotification part : parts) {
+            part.complete();
+        }
+        if(reported) {
+            try {
+                build.save();
+            } catch(IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed to save Flowdock delivery results for " + build.getFullDisplayName(), ex);
+            }
+        }
+        if(deliveryListener != null) {
+            try {
+                deliveryListener.delivered(Collections.unmodifiableList(results));
+            } catch(RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Flowdock delivery listener failed", ex);
+            }
+        }
+    }
+}
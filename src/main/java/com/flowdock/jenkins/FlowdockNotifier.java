@@ -1,98 +1,176 @@
 package com.flowdock.jenkins;
 
 import com.flowdock.jenkins.exception.FlowdockException;
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.scm.ChangeLogSet.Entry;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
-public class FlowdockNotifier extends Notifier {
-
-
-    private final String flowToken;
-    private final String notificationTags;
-    private final boolean chatNotification;
-
-    private final Map<BuildResult, Boolean> notifyMap;
-    private final boolean notifySuccess;
-    private final boolean notifyFailure;
-    private final boolean notifyFixed;
-    private final boolean notifyUnstable;
-    private final boolean notifyAborted;
-    private final boolean notifyNotBuilt;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+public class FlowdockNotifier extends Notifier implements MatrixAggregatable {
+    private static final Logger LOGGER = Logger.getLogger(FlowdockNotifier.class.getName());
+
+
+    // name of the shared profile, or null if the job has its own settings
+    private String profile;
+    private boolean aggregateMatrix;
+    // successful builds are counted in the periodic summary instead of being sent
+    private boolean periodicSummary;
+    private NotificationProfile settings;
+
+    // the settings of jobs configured before notification profiles
+    @Deprecated private transient String flowToken;
+    @Deprecated private transient String notificationTags;
+    @Deprecated private transient boolean chatNotification;
+    @Deprecated private transient boolean notifyStateChangeOnly;
+    @Deprecated private transient Map<BuildResult, Boolean> notifyMap;
+    @Deprecated private transient boolean notifySuccess;
+    @Deprecated private transient boolean notifyFailure;
+    @Deprecated private transient boolean notifyFixed;
+    @Deprecated private transient boolean notifyUnstable;
+    @Deprecated private transient boolean notifyAborted;
+    @Deprecated private transient boolean notifyNotBuilt;
 
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
+    // or the "DataBoundSetter" methods
     @DataBoundConstructor
     public FlowdockNotifier(String flowToken, String notificationTags, String chatNotification,
         String notifySuccess, String notifyFailure, String notifyFixed, String notifyUnstable,
         String notifyAborted, String notifyNotBuilt) {
-        this.flowToken = flowToken;
-        this.notificationTags = notificationTags;
-        this.chatNotification = chatNotification != null && chatNotification.equals("true");
-
-        this.notifySuccess = notifySuccess != null && notifySuccess.equals("true");
-        this.notifyFailure = notifyFailure != null && notifyFailure.equals("true");
-        this.notifyFixed = notifyFixed != null && notifyFixed.equals("true");
-        this.notifyUnstable = notifyUnstable != null && notifyUnstable.equals("true");
-        this.notifyAborted = notifyAborted != null && notifyAborted.equals("true");
-        this.notifyNotBuilt = notifyNotBuilt != null && notifyNotBuilt.equals("true");
-
-        // set notification map
-        this.notifyMap = new HashMap<BuildResult, Boolean>();
-        this.notifyMap.put(BuildResult.SUCCESS, this.notifySuccess);
-        this.notifyMap.put(BuildResult.FAILURE, this.notifyFailure);
-        this.notifyMap.put(BuildResult.FIXED, this.notifyFixed);
-        this.notifyMap.put(BuildResult.UNSTABLE, this.notifyUnstable);
-        this.notifyMap.put(BuildResult.ABORTED, this.notifyAborted);
-        this.notifyMap.put(BuildResult.NOT_BUILT, this.notifyNotBuilt);
+        this.settings = new NotificationProfile(null, flowToken, notificationTags, isTrue(chatNotification),
+            false, NotificationProfile.results(isTrue(notifySuccess), isTrue(notifyFailure),
+            isTrue(notifyFixed), isTrue(notifyUnstable), isTrue(notifyAborted), isTrue(notifyNotBuilt)));
+    }
+
+    @DataBoundSetter
+    public void setProfile(String profile) {
+        if(profile != null && profile.trim().length() > 0) {
+            // the settings of the profile apply, the job doesn't keep its own
+            this.profile = profile.trim();
+            this.settings = null;
+        }
+    }
+
+    @DataBoundSetter
+    public void setAggregateMatrix(boolean aggregateMatrix) {
+        this.aggregateMatrix = aggregateMatrix;
+    }
+
+    @DataBoundSetter
+    public void setNotifyStateChangeOnly(boolean notifyStateChangeOnly) {
+        if(settings != null)
+            settings = settings.withNotifyStateChangeOnly(notifyStateChangeOnly);
+    }
+
+    @DataBoundSetter
+    public void setPeriodicSummary(boolean periodicSummary) {
+        this.periodicSummary = periodicSummary;
+    }
+
+    private static boolean isTrue(String value) {
+        return value != null && value.equals("true");
+    }
+
+    protected Object readResolve() {
+        if(settings == null && profile == null) {
+            settings = new NotificationProfile(null, flowToken, notificationTags, chatNotification,
+                notifyStateChangeOnly, NotificationProfile.results(notifySuccess, notifyFailure, notifyFixed,
+                notifyUnstable, notifyAborted, notifyNotBuilt));
+            notifyMap = null;
+        }
+        return this;
+    }
+
+    /**
+     * @return the name of the notification profile, or null if the job has its own settings.
+     */
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return the profile or the job's own settings, or null if the profile doesn't exist anymore.
+     */
+    public NotificationProfile getEffectiveProfile() {
+        return profile == null ? settings : getDescriptor().getProfile(profile);
     }
 
     public String getFlowToken() {
-        return flowToken;
+        return settings == null ? null : settings.getFlowToken();
     }
 
     public String getNotificationTags() {
-        return notificationTags;
+        return settings == null ? null : settings.getNotificationTags();
     }
 
     public boolean getChatNotification() {
-        return chatNotification;
+        return settings != null && settings.getChatNotification();
+    }
+
+    public boolean getAggregateMatrix() {
+        return aggregateMatrix;
+    }
+
+    public boolean getPeriodicSummary() {
+        return periodicSummary;
+    }
+
+    public boolean getNotifyStateChangeOnly() {
+        return settings != null && settings.getNotifyStateChangeOnly();
     }
 
     public boolean getNotifySuccess() {
-        return notifySuccess;
+        return settings != null && settings.getNotifySuccess();
     }
     public boolean getNotifyFailure() {
-        return notifyFailure;
+        return settings != null && settings.getNotifyFailure();
     }
     public boolean getNotifyFixed() {
-        return notifyFixed;
+        return settings != null && settings.getNotifyFixed();
     }
     public boolean getNotifyUnstable() {
-        return notifyUnstable;
+        return settings != null && settings.getNotifyUnstable();
     }
     public boolean getNotifyAborted() {
-        return notifyAborted;
+        return settings != null && settings.getNotifyAborted();
     }
     public boolean getNotifyNotBuilt() {
-        return notifyNotBuilt;
+        return settings != null && settings.getNotifyNotBuilt();
     }
 
     public BuildStepMonitor getRequiredMonitorService() {
@@ -106,34 +184,156 @@ public class FlowdockNotifier extends Notifier {
 
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
-        BuildResult buildResult = BuildResult.fromBuild(build);
-        if(shouldNotify(buildResult)) {
-            notifyFlowdock(build, buildResult, listener);
-        } else {
-            listener.getLogger().println("No Flowdock notification configured for build status: " + buildResult.toString());
+        if(aggregateMatrix && build.getProject().getRootProject() != build.getProject()) {
+            listener.getLogger().println("Flowdock: result will be sent in the combined notification of the matrix build");
+            return true;
         }
+        recordAndNotify(build, listener, null);
         return true;
     }
 
+    /**
+     * Records the build in the indexes of the descriptor and sends the notification if
+     * it is configured for the result.
+     */
+    private void recordAndNotify(AbstractBuild build, BuildListener listener, List<ConfigurationResult> configurations) {
+        Result previousResult = getDescriptor().getResultIndex().previousResult(build);
+        getDescriptor().getResultIndex().record(build);
+        BuildResult buildResult = BuildResult.fromBuild(build, previousResult);
+        // the changeset is read once, for both the change index and the notification, and
+        // the index never needs more commits than a notification lists
+        NotificationContext context = NotificationContext.of(build, buildResult, listener);
+        context.setEarlierChanges(getDescriptor().getChangeIndex().record(build,
+            context.getBuildChanges(getDescriptor().getMaxCommits()), context.getCommitCount()));
+        if(periodicSummary)
+            recordStats(build, buildResult, previousResult);
+
+        FlapDetector flapDetector = getDescriptor().getFlapDetector();
+        if(flapDetector != null) {
+            String job = build.getProject().getFullName();
+            FlapDetector.Status status = flapDetector.record(job, buildResult);
+            if(status == FlapDetector.Status.FLAPPING) {
+                listener.getLogger().println("Flowdock: no notification, the job is flapping");
+                return;
+            }
+            if(status != FlapDetector.Status.STABLE) {
+                notifyFlapping(context, listener, status == FlapDetector.Status.STARTED,
+                    flapDetector.getFlips(job), flapDetector.getResults(job));
+                // a job that is stable again also gets the notification of the build as usual
+                if(status == FlapDetector.Status.STARTED)
+                    return;
+            }
+        }
+
+        if(periodicSummary) {
+            if(buildResult == BuildResult.SUCCESS) {
+                listener.getLogger().println("Flowdock: successful build counted in the periodic summary");
+                return;
+            }
+        }
+        if(shouldNotify(buildResult, previousResult, build.getResult(), listener)) {
+            notifyFlowdock(context, listener, configurations);
+        }
+    }
+
+    private void recordStats(AbstractBuild build, BuildResult buildResult, Result previousResult) {
+        long duration = build.getDuration();
+        if(duration <= 0)
+            duration = System.currentTimeMillis() - build.getStartTimeInMillis();
+        boolean transition = previousResult != null &&
+            (previousResult == Result.SUCCESS) != (build.getResult() == Result.SUCCESS);
+        getDescriptor().getBuildStats().record(build.getProject().getFullName(), buildResult, duration, transition);
+    }
+
     public boolean shouldNotify(BuildResult buildResult) {
-        return notifyMap.get(buildResult);
+        NotificationProfile settings = getEffectiveProfile();
+        return settings != null && settings.shouldNotify(buildResult);
+    }
+
+    private boolean shouldNotify(BuildResult buildResult, Result previousResult, Result result, BuildListener listener) {
+        NotificationProfile settings = getEffectiveProfile();
+        if(settings == null) {
+            listener.getLogger().println("No Flowdock notification, the notification profile does not exist: " + profile);
+            return false;
+        }
+        if(!settings.shouldNotify(buildResult)) {
+            listener.getLogger().println("No Flowdock notification configured for build status: " + buildResult.toString());
+            return false;
+        }
+        if(settings.getNotifyStateChangeOnly() && previousResult == result) {
+            listener.getLogger().println("No Flowdock notification, build status has not changed: " + buildResult.toString());
+            return false;
+        }
+        return true;
     }
 
     protected void notifyFlowdock(AbstractBuild build, BuildResult buildResult, BuildListener listener) {
+        notifyFlowdock(build, buildResult, listener, null);
+    }
+
+    /**
+     * @param configurations results of the matrix configurations to include in the
+     *     notification, or null if the build is not a combined matrix build.
+     */
+    protected void notifyFlowdock(AbstractBuild build, BuildResult buildResult, BuildListener listener,
+        List<ConfigurationResult> configurations) {
+        notifyFlowdock(build, buildResult, listener, configurations, Collections.<Change>emptyList());
+    }
+
+    /**
+     * @param configurations results of the matrix configurations to include in the
+     *     notification, or null if the build is not a combined matrix build.
+     * @param earlierChanges commits of the earlier builds since the last successful build.
+     */
+    protected void notifyFlowdock(AbstractBuild build, BuildResult buildResult, BuildListener listener,
+        List<ConfigurationResult> configurations, List<Change> earlierChanges) {
+        notifyFlowdock(NotificationContext.of(build, buildResult, listener, earlierChanges), listener, configurations);
+    }
+
+    private void notifyFlowdock(NotificationContext context, BuildListener listener,
+        List<ConfigurationResult> configurations) {
         PrintStream logger = listener.getLogger();
+        NotificationProfile settings = getEffectiveProfile();
+        if(settings == null) {
+            logger.println("Flowdock: the notification profile does not exist: " + profile);
+            return;
+        }
+        AbstractBuild build = context.getBuild();
+        BuildResult buildResult = context.getBuildResult();
+        boolean combined = configurations != null && !configurations.isEmpty();
+        long renderStart = System.nanoTime();
         try {
-            FlowdockAPI api = new FlowdockAPI(getDescriptor().apiUrl(), flowToken);
-            TeamInboxMessage msg = TeamInboxMessage.fromBuild(build, buildResult, listener);
-            EnvVars vars = build.getEnvironment(listener);
-            msg.setTags(vars.expand(notificationTags));
-            api.pushTeamInboxMessage(msg);
-            listener.getLogger().println("Flowdock: Team Inbox notification sent successfully");
+            String tags = context.expand(settings.getNotificationTags());
+            MessageTemplates templates = getDescriptor().getTemplates(buildResult);
+            TeamInboxMessage msg = TeamInboxMessage.fromContext(context, templates, getDescriptor().getLogExcerpt(),
+                getDescriptor().getTestReport(),
+                getDescriptor().getMaxCommits(), getDescriptor().getMaxChangesBytes());
+            msg.setTags(tags);
+            if(combined) {
+                msg.setContent(msg.getContent() + ConfigurationResult.asHtmlTable(configurations));
+            }
 
-            if((build.getResult() != Result.SUCCESS || buildResult == BuildResult.FIXED) && chatNotification) {
-                ChatMessage chatMsg = ChatMessage.fromBuild(build, buildResult, listener);
-                chatMsg.setTags(vars.expand(notificationTags));
-                api.pushChatMessage(chatMsg);
-                logger.println("Flowdock: Chat notification sent successfully");
+            ChatMessage chatMsg = null;
+            if((context.getResult() != Result.SUCCESS || buildResult == BuildResult.FIXED) && settings.getChatNotification()) {
+                chatMsg = ChatMessage.fromContext(context, templates, getDescriptor().getLogExcerpt(),
+                    getDescriptor().getTestReport(),
+                    getDescriptor().getMaxCommits(), getDescriptor().getMaxChangesBytes());
+                chatMsg.setTags(tags);
+                if(combined) {
+                    chatMsg.setContent(chatMsg.getContent() + " (" + ConfigurationResult.summary(configurations) + ")");
+                }
+            }
+
+            DeliveryMetrics.get().recordRender(System.nanoTime() - renderStart);
+
+            FlowdockDeliveryAction action = new FlowdockDeliveryAction();
+            build.addAction(action);
+            FlowdockNotification notification = new FlowdockNotification(build, action,
+                getDescriptor().apiUrl(), settings.getFlowToken(), buildResult, msg, chatMsg);
+            if(getDescriptor().dispatch(notification)) {
+                logger.println("Flowdock: notification queued for delivery, see the build page for the result");
+            } else {
+                logger.println("Flowdock: dispatch queue is full, notification dropped");
             }
         }
 
@@ -146,13 +346,89 @@ public class FlowdockNotifier extends Notifier {
             logger.println("Flowdock: failed to get variables from build");
             logger.println("Flowdock: " + ex.getMessage());
         }
+    }
+
+    /**
+     * Sends the notice of a job that started or stopped flapping. A job that started
+     * flapping gets it in place of the notification of the build.
+     */
+    private void notifyFlapping(NotificationContext context, BuildListener listener,
+        boolean flapping, int flips, int results) {
+        PrintStream logger = listener.getLogger();
+        NotificationProfile settings = getEffectiveProfile();
+        if(settings == null) {
+            logger.println("Flowdock: the notification profile does not exist: " + profile);
+            return;
+        }
+        AbstractBuild build = context.getBuild();
+        BuildResult buildResult = context.getBuildResult();
+        try {
+            String tags = context.expand(settings.getNotificationTags());
+            TeamInboxMessage msg = TeamInboxMessage.flapNotice(context, flapping, flips, results);
+            msg.setTags(tags);
+            ChatMessage chatMsg = null;
+            if(settings.getChatNotification()) {
+                chatMsg = ChatMessage.flapNotice(context, flapping);
+                chatMsg.setTags(tags);
+            }
 
-        catch(FlowdockException ex) {
-            logger.println("Flowdock: failed to send notification");
+            FlowdockDeliveryAction action = new FlowdockDeliveryAction();
+            build.addAction(action);
+            FlowdockNotification notification = new FlowdockNotification(build, action,
+                getDescriptor().apiUrl(), settings.getFlowToken(), buildResult, msg, chatMsg);
+            logger.println(flapping ? "Flowdock: the job is flapping, notifications are paused" :
+                "Flowdock: the job is stable again, notifications are resumed");
+            if(!getDescriptor().dispatch(notification)) {
+                logger.println("Flowdock: dispatch queue is full, notification dropped");
+            }
+        }
+
+        catch(IOException ex) {
+            logger.println("Flowdock: failed to get variables from build");
             logger.println("Flowdock: " + ex.getMessage());
         }
 
+        catch(InterruptedException ex) {
+            logger.println("Flowdock: failed to get variables from build");
+            logger.println("Flowdock: " + ex.getMessage());
+        }
+    }
 
+    public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
+        return aggregateMatrix ? new CombinedNotificationAggregator(build, launcher, listener) : null;
+    }
+
+    /**
+     * Collects the results of the configurations of a matrix build and sends a single
+     * notification for all of them once the matrix build completes.
+     */
+    private class CombinedNotificationAggregator extends MatrixAggregator {
+        private final List<ConfigurationResult> configurations = new ArrayList<ConfigurationResult>();
+
+        CombinedNotificationAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
+            super(build, launcher, listener);
+        }
+
+        @Override
+        public boolean endRun(MatrixRun run) {
+            configurations.add(ConfigurationResult.fromRun(run));
+            return true;
+        }
+
+        @Override
+        public boolean endBuild() {
+            recordAndNotify(build, listener, configurations);
+            return true;
+        }
+    }
+
+    /**
+     * Starts the dispatcher on startup, so that the messages left in the outbox are sent
+     * without waiting for the next build.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void startDispatcher() {
+        Jenkins.getInstance().getDescriptorByType(DescriptorImpl.class).getDispatcher();
     }
 
     @Override
@@ -161,9 +437,57 @@ public class FlowdockNotifier extends Notifier {
     }
 
     @Extension
-    public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+    public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
         private String apiUrl = "https://api.flowdock.com";
+        private int dispatchThreads = FlowdockDispatcher.DEFAULT_THREADS;
+        private int dispatchQueueCapacity = FlowdockDispatcher.DEFAULT_QUEUE_CAPACITY;
+        private OverflowPolicy dispatchOverflowPolicy = OverflowPolicy.DISCARD_NEWEST;
+        private int flowConcurrency = FlowdockDispatcher.DEFAULT_FLOW_CONCURRENCY;
+        private int flowTimeout = FlowdockDispatcher.DEFAULT_FLOW_TIMEOUT;
+        private int outboxCapacity = FlowdockOutbox.DEFAULT_MAX_PENDING;
+        private int connectTimeout = HttpURLConnectionTransport.DEFAULT_CONNECT_TIMEOUT;
+        private int readTimeout = HttpURLConnectionTransport.DEFAULT_READ_TIMEOUT;
+        private boolean deliverFromAgents = false;
+        private int summaryInterval = BuildStats.DEFAULT_INTERVAL;
+        private int flapThreshold = 0;
+        private int flapWindow = FlapDetector.DEFAULT_WINDOW;
+        private int maxRetries = RetryingTransport.DEFAULT_MAX_RETRIES;
+        private int messageDeadline = RetryingTransport.DEFAULT_DEADLINE;
+        private int breakerThreshold = RetryingTransport.DEFAULT_BREAKER_THRESHOLD;
+        private int breakerOpen = RetryingTransport.DEFAULT_BREAKER_OPEN;
+        private int globalRateLimit = RateLimiter.DEFAULT_GLOBAL_LIMIT;
+        private int flowRateLimit = RateLimiter.DEFAULT_FLOW_LIMIT;
+        private int coalesceWindow = NotificationCoalescer.DEFAULT_WINDOW;
+        private int coalesceMaxBatch = NotificationCoalescer.DEFAULT_MAX_BATCH;
+        private boolean coalesceFailures = false;
+        private int maxCommits = TeamInboxMessage.DEFAULT_MAX_COMMITS;
+        private int maxChangesBytes = TeamInboxMessage.DEFAULT_MAX_CHANGES_BYTES;
+        private int logExcerptLines = LogExcerpt.DEFAULT_LINES;
+        private String logExcerptFilter = "";
+        private int logExcerptBytes = LogExcerpt.DEFAULT_MAX_BYTES;
+        private int logExcerptTimeout = LogExcerpt.DEFAULT_TIMEOUT;
+        private int testFailuresListed = TestReport.DEFAULT_MAX_FAILURES;
+        private int testReportTimeout = TestReport.DEFAULT_TIMEOUT;
+        private volatile List<NotificationProfile> profiles = new ArrayList<NotificationProfile>();
+        private Map<BuildResult, MessageTemplates> templates = new EnumMap<BuildResult, MessageTemplates>(BuildResult.class);
+
+        private transient FlowdockDispatcher dispatcher;
+        private transient NotificationCoalescer coalescer;
+        private transient FlowdockTransport httpTransport;
+        private transient RetryingTransport transport;
+        private transient FlowdockOutbox outbox;
+        private transient boolean outboxFailed;
+        private transient JobResultIndex resultIndex;
+        private transient ChangeIndex changeIndex;
+        private transient BuildStats buildStats;
+        private transient FlapDetector flapDetector;
+        private transient LogExcerpt logExcerpt;
+        private transient TestReport testReport;
+
+        public DescriptorImpl() {
+            load();
+        }
 
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             return true;
@@ -173,12 +497,26 @@ public class FlowdockNotifier extends Notifier {
             return "Flowdock notification";
         }
 
-        public FormValidation doTestConnection(@QueryParameter("flowToken") final String flowToken,
+        /**
+         * Sends a test message with the settings of the notification profile, or with the
+         * flow token and tags of the job if no profile is selected.
+         */
+        public FormValidation doTestConnection(@QueryParameter("profile") final String profile,
+            @QueryParameter("flowToken") final String flowToken,
             @QueryParameter("notificationTags") final String notificationTags) {
+            String token = flowToken;
+            String tags = notificationTags;
+            if(profile != null && profile.trim().length() > 0) {
+                NotificationProfile settings = getProfile(profile.trim());
+                if(settings == null)
+                    return FormValidation.error("The notification profile does not exist: " + profile);
+                token = settings.getFlowToken();
+                tags = settings.getNotificationTags();
+            }
             try {
-                FlowdockAPI api = new FlowdockAPI(apiUrl(), flowToken);
+                FlowdockAPI api = new FlowdockAPI(apiUrl(), token, getTransport());
                 ChatMessage testMsg = new ChatMessage();
-                testMsg.setTags(notificationTags);
+                testMsg.setTags(tags);
                 testMsg.setContent("Your plugin is ready!");
                 api.pushChatMessage(testMsg);
                 return FormValidation.ok("Success! Flowdock plugin can send notifications to your flow.");
@@ -187,15 +525,486 @@ public class FlowdockNotifier extends Notifier {
             }
         }
 
+        public FormValidation doCheckLogExcerptFilter(@QueryParameter String value) {
+            try {
+                Pattern.compile(value);
+                return FormValidation.ok();
+            } catch(PatternSyntaxException ex) {
+                return FormValidation.error(ex.getDescription());
+            }
+        }
+
+        public ListBoxModel doFillProfileItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("(settings below)", "");
+            for(NotificationProfile profile : getProfiles()) {
+                items.add(profile.getName());
+            }
+            return items;
+        }
+
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
             apiUrl = formData.getString("apiUrl");
+            dispatchThreads = formData.optInt("dispatchThreads", FlowdockDispatcher.DEFAULT_THREADS);
+            dispatchQueueCapacity = formData.optInt("dispatchQueueCapacity", FlowdockDispatcher.DEFAULT_QUEUE_CAPACITY);
+            dispatchOverflowPolicy = OverflowPolicy.valueOf(
+                formData.optString("dispatchOverflowPolicy", OverflowPolicy.DISCARD_NEWEST.name()));
+            flowConcurrency = formData.optInt("flowConcurrency", FlowdockDispatcher.DEFAULT_FLOW_CONCURRENCY);
+            flowTimeout = formData.optInt("flowTimeout", FlowdockDispatcher.DEFAULT_FLOW_TIMEOUT);
+            outboxCapacity = formData.optInt("outboxCapacity", FlowdockOutbox.DEFAULT_MAX_PENDING);
+            connectTimeout = formData.optInt("connectTimeout", HttpURLConnectionTransport.DEFAULT_CONNECT_TIMEOUT);
+            readTimeout = formData.optInt("readTimeout", HttpURLConnectionTransport.DEFAULT_READ_TIMEOUT);
+            deliverFromAgents = formData.optBoolean("deliverFromAgents");
+            summaryInterval = Math.max(1, formData.optInt("summaryInterval", BuildStats.DEFAULT_INTERVAL));
+            flapThreshold = Math.min(100, Math.max(0, formData.optInt("flapThreshold", 0)));
+            flapWindow = Math.max(FlapDetector.MIN_WINDOW, formData.optInt("flapWindow", FlapDetector.DEFAULT_WINDOW));
+            maxRetries = formData.optInt("maxRetries", RetryingTransport.DEFAULT_MAX_RETRIES);
+            messageDeadline = formData.optInt("messageDeadline", RetryingTransport.DEFAULT_DEADLINE);
+            breakerThreshold = formData.optInt("breakerThreshold", RetryingTransport.DEFAULT_BREAKER_THRESHOLD);
+            breakerOpen = formData.optInt("breakerOpen", RetryingTransport.DEFAULT_BREAKER_OPEN);
+            globalRateLimit = formData.optInt("globalRateLimit", RateLimiter.DEFAULT_GLOBAL_LIMIT);
+            flowRateLimit = formData.optInt("flowRateLimit", RateLimiter.DEFAULT_FLOW_LIMIT);
+            coalesceWindow = formData.optInt("coalesceWindow", NotificationCoalescer.DEFAULT_WINDOW);
+            coalesceMaxBatch = formData.optInt("coalesceMaxBatch", NotificationCoalescer.DEFAULT_MAX_BATCH);
+            coalesceFailures = formData.optBoolean("coalesceFailures");
+            maxCommits = formData.optInt("maxCommits", TeamInboxMessage.DEFAULT_MAX_COMMITS);
+            maxChangesBytes = formData.optInt("maxChangesBytes", TeamInboxMessage.DEFAULT_MAX_CHANGES_BYTES);
+            logExcerptLines = formData.optInt("logExcerptLines", LogExcerpt.DEFAULT_LINES);
+            logExcerptFilter = formData.optString("logExcerptFilter").trim();
+            logExcerptBytes = formData.optInt("logExcerptBytes", LogExcerpt.DEFAULT_MAX_BYTES);
+            logExcerptTimeout = formData.optInt("logExcerptTimeout", LogExcerpt.DEFAULT_TIMEOUT);
+            try {
+                logExcerpt = createLogExcerpt();
+            } catch(PatternSyntaxException ex) {
+                throw new FormException("Invalid console output filter: " + ex.getDescription(), "logExcerptFilter");
+            }
+            List<NotificationProfile> configuredProfiles = new ArrayList<NotificationProfile>();
+            if(formData.has("profiles")) {
+                for(NotificationProfile profile : req.bindJSONToList(NotificationProfile.class, formData.get("profiles"))) {
+                    if(profile.getName() == null || profile.getName().length() == 0)
+                        throw new FormException("A notification profile needs a name", "profiles");
+                    if(findProfile(configuredProfiles, profile.getName()) != null)
+                        throw new FormException("Duplicate notification profile: " + profile.getName(), "profiles");
+                    configuredProfiles.add(profile);
+                }
+            }
+            profiles = configuredProfiles;
+            testFailuresListed = formData.optInt("testFailuresListed", TestReport.DEFAULT_MAX_FAILURES);
+            testReportTimeout = formData.optInt("testReportTimeout", TestReport.DEFAULT_TIMEOUT);
+            testReport = new TestReport(testFailuresListed, testReportTimeout);
+            Map<BuildResult, MessageTemplates> configured = new EnumMap<BuildResult, MessageTemplates>(BuildResult.class);
+            for(BuildResult result : BuildResult.values()) {
+                MessageTemplates resultTemplates = new MessageTemplates(
+                    formData.optString("templateSubject_" + result.name()),
+                    formData.optString("templateContent_" + result.name()),
+                    formData.optString("templateChat_" + result.name()));
+                if(!resultTemplates.isEmpty())
+                    configured.put(result, resultTemplates);
+            }
+            templates = configured;
             save();
+            restartDelivery();
             return super.configure(req, formData);
         }
 
         public String apiUrl() {
             return apiUrl;
         }
+
+        public int getDispatchThreads() {
+            return dispatchThreads;
+        }
+
+        public int getDispatchQueueCapacity() {
+            return dispatchQueueCapacity;
+        }
+
+        public OverflowPolicy getDispatchOverflowPolicy() {
+            return dispatchOverflowPolicy;
+        }
+
+        public int getFlowConcurrency() {
+            return flowConcurrency;
+        }
+
+        public int getFlowTimeout() {
+            return flowTimeout;
+        }
+
+        public int getOutboxCapacity() {
+            return outboxCapacity;
+        }
+
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+
+        public boolean getDeliverFromAgents() {
+            return deliverFromAgents;
+        }
+
+        /**
+         * @return minutes between the summaries of the jobs using periodic summaries.
+         */
+        public int getSummaryInterval() {
+            return summaryInterval;
+        }
+
+        /**
+         * @return percentage of result flips at which a job is flapping, 0 if flapping jobs
+         *     are notified as usual.
+         */
+        public int getFlapThreshold() {
+            return flapThreshold;
+        }
+
+        public int getFlapWindow() {
+            return flapWindow;
+        }
+
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public int getMessageDeadline() {
+            return messageDeadline;
+        }
+
+        public int getBreakerThreshold() {
+            return breakerThreshold;
+        }
+
+        public int getBreakerOpen() {
+            return breakerOpen;
+        }
+
+        public int getGlobalRateLimit() {
+            return globalRateLimit;
+        }
+
+        public int getFlowRateLimit() {
+            return flowRateLimit;
+        }
+
+        public int getCoalesceWindow() {
+            return coalesceWindow;
+        }
+
+        public int getCoalesceMaxBatch() {
+            return coalesceMaxBatch;
+        }
+
+        public boolean getCoalesceFailures() {
+            return coalesceFailures;
+        }
+
+        public int getMaxCommits() {
+            return maxCommits;
+        }
+
+        public int getMaxChangesBytes() {
+            return maxChangesBytes;
+        }
+
+        public List<CircuitBreaker> getCircuitBreakers() {
+            return getTransport().getCircuitBreakers();
+        }
+
+        public int getLogExcerptLines() {
+            return logExcerptLines;
+        }
+
+        public String getLogExcerptFilter() {
+            return logExcerptFilter;
+        }
+
+        public int getLogExcerptBytes() {
+            return logExcerptBytes;
+        }
+
+        public int getLogExcerptTimeout() {
+            return logExcerptTimeout;
+        }
+
+        /**
+         * @return how much of the console log is included in failure notifications.
+         */
+        public synchronized LogExcerpt getLogExcerpt() {
+            if(logExcerpt == null) {
+                try {
+                    logExcerpt = createLogExcerpt();
+                } catch(PatternSyntaxException ex) {
+                    LOGGER.warning("Ignoring the invalid Flowdock console output filter " + logExcerptFilter);
+                    logExcerpt = new LogExcerpt(logExcerptLines, null, logExcerptBytes, logExcerptTimeout);
+                }
+            }
+            return logExcerpt;
+        }
+
+        private LogExcerpt createLogExcerpt() {
+            Pattern filter = logExcerptFilter == null || logExcerptFilter.length() == 0 ? null : Pattern.compile(logExcerptFilter);
+            return new LogExcerpt(logExcerptLines, filter, logExcerptBytes, logExcerptTimeout);
+        }
+
+        public List<NotificationProfile> getProfiles() {
+            return profiles == null ? Collections.<NotificationProfile>emptyList() : Collections.unmodifiableList(profiles);
+        }
+
+        /**
+         * @return the notification profile with the name, or null if there is none.
+         */
+        public NotificationProfile getProfile(String name) {
+            return findProfile(getProfiles(), name);
+        }
+
+        private static NotificationProfile findProfile(List<NotificationProfile> profiles, String name) {
+            for(NotificationProfile profile : profiles) {
+                if(profile.getName().equals(name))
+                    return profile;
+            }
+            return null;
+        }
+
+        public int getTestFailuresListed() {
+            return testFailuresListed;
+        }
+
+        public int getTestReportTimeout() {
+            return testReportTimeout;
+        }
+
+        public synchronized TestReport getTestReport() {
+            if(testReport == null)
+                testReport = new TestReport(testFailuresListed, testReportTimeout);
+            return testReport;
+        }
+
+        /**
+         * @return the message templates for the result, empty if none are configured.
+         */
+        public MessageTemplates getTemplates(BuildResult result) {
+            MessageTemplates resultTemplates = templates == null ? null : templates.get(result);
+            return resultTemplates == null ? new MessageTemplates(null, null, null) : resultTemplates;
+        }
+
+        public BuildResult[] getBuildResults() {
+            return BuildResult.values();
+        }
+
+        public OverflowPolicy[] getOverflowPolicies() {
+            return OverflowPolicy.values();
+        }
+
+        public synchronized RetryingTransport getTransport() {
+            if(transport == null) {
+                FlowdockTransport http;
+                if(httpTransport != null) {
+                    http = httpTransport;
+                } else {
+                    http = new HttpURLConnectionTransport(connectTimeout * 1000, readTimeout * 1000);
+                    if(deliverFromAgents)
+                        http = new AgentTransport(http, connectTimeout * 1000, readTimeout * 1000);
+                }
+                transport = new RetryingTransport(http, maxRetries, messageDeadline * 1000L,
+                    breakerThreshold, breakerOpen * 1000L, new RateLimiter(globalRateLimit, flowRateLimit));
+            }
+            return transport;
+        }
+
+        /**
+         * Replaces the transport used for all Flowdock requests, e.g. with one that
+         * routes the requests through a different HTTP client. Failed requests are
+         * still retried as configured.
+         */
+        public synchronized void setTransport(FlowdockTransport httpTransport) {
+            this.httpTransport = httpTransport;
+            restartDelivery();
+        }
+
+        public synchronized FlowdockDispatcher getDispatcher() {
+            if(dispatcher == null) {
+                // waiting less than the retries may take would abandon deliveries that are still retrying
+                int timeout = Math.max(flowTimeout, messageDeadline + connectTimeout + readTimeout);
+                dispatcher = new FlowdockDispatcher(dispatchThreads, dispatchQueueCapacity, dispatchOverflowPolicy,
+                    getTransport(), flowConcurrency, timeout, getOutbox(), deliverFromAgents);
+            }
+            return dispatcher;
+        }
+
+        /**
+         * Sends the notification through the coalescer if notifications are combined
+         * into digests, otherwise straight to the dispatcher.
+         *
+         * @return false if the notification was dropped because the queue is full.
+         */
+        public boolean dispatch(FlowdockNotification notification) {
+            // only pick the target under the lock, journaling and a caller-runs delivery
+            // must not hold back the other builds
+            FlowdockDispatcher dispatcher = null;
+            NotificationCoalescer target = null;
+            synchronized(this) {
+                if(coalesceWindow <= 0) {
+                    dispatcher = getDispatcher();
+                } else {
+                    if(coalescer == null) {
+                        coalescer = new NotificationCoalescer(getDispatcher(), coalesceWindow * 1000L,
+                            coalesceMaxBatch, !coalesceFailures);
+                    }
+                    target = coalescer;
+                }
+            }
+            return dispatcher != null ? dispatcher.dispatch(notification) : target.add(notification);
+        }
+
+        /**
+         * Queues the notification without blocking the caller, e.g. a Pipeline thread:
+         * it is not combined into digests, journaled by the worker that sends it and
+         * dropped when the queue is full.
+         *
+         * @return false if the notification was dropped because the queue is full.
+         */
+        public boolean offer(FlowdockNotification notification) {
+            return getDispatcher().offer(notification);
+        }
+
+        /**
+         * @return the outbox under JENKINS_HOME, or null if it cannot be opened.
+         */
+        public synchronized FlowdockOutbox getOutbox() {
+            if(outbox == null && !outboxFailed) {
+                File dir = new File(Jenkins.getInstance().getRootDir(), "flowdock-outbox");
+                try {
+                    outbox = new FlowdockOutbox(dir, outboxCapacity);
+                } catch(IOException ex) {
+                    // don't try again on every notification
+                    outboxFailed = true;
+                    LOGGER.log(Level.WARNING, "Cannot open the Flowdock outbox in " + dir +
+                        ", notifications are sent without it", ex);
+                }
+            }
+            return outbox;
+        }
+
+        public synchronized JobResultIndex getResultIndex() {
+            if(resultIndex == null) {
+                Jenkins jenkins = Jenkins.getInstance();
+                resultIndex = new JobResultIndex(jenkins == null ? null :
+                    new File(jenkins.getRootDir(), "flowdock-job-results.txt"));
+            }
+            return resultIndex;
+        }
+
+        /**
+         * @return the flap detector, or null if flapping jobs are notified as usual.
+         */
+        public synchronized FlapDetector getFlapDetector() {
+            if(flapThreshold <= 0)
+                return null;
+            // the recent results are kept as long as the settings stay the same
+            if(flapDetector == null || flapDetector.getThreshold() != flapThreshold ||
+                flapDetector.getWindow() != flapWindow) {
+                flapDetector = new FlapDetector(flapWindow, flapThreshold, FlapDetector.MAX_JOBS);
+            }
+            return flapDetector;
+        }
+
+        public synchronized BuildStats getBuildStats() {
+            if(buildStats == null) {
+                Jenkins jenkins = Jenkins.getInstance();
+                buildStats = new BuildStats(jenkins == null ? null :
+                    new File(jenkins.getRootDir(), "flowdock-build-stats.txt"));
+            }
+            return buildStats;
+        }
+
+        /**
+         * Sends a summary to each flow once the summary interval has passed.
+         */
+        public void sendBuildSummaries() {
+            BuildStats.Window window = getBuildStats().roll(summaryInterval * 60000L);
+            if(window == null)
+                return;
+            // the flow tokens are looked up now, so that they are never written to the statistics
+            Map<String, List<BuildStats.JobStats>> flows = new LinkedHashMap<String, List<BuildStats.JobStats>>();
+            for(BuildStats.JobStats job : window.getJobs()) {
+                if(job.getBuilds() == 0)
+                    continue;
+                String key = summaryFlow(job.getName());
+                if(key == null)
+                    continue;
+                List<BuildStats.JobStats> flow = flows.get(key);
+                if(flow == null) {
+                    flow = new ArrayList<BuildStats.JobStats>();
+                    flows.put(key, flow);
+                }
+                flow.add(job);
+            }
+            for(Map.Entry<String, List<BuildStats.JobStats>> flow : flows.entrySet()) {
+                String[] key = flow.getKey().split("\n", 2);
+                TeamInboxMessage msg = TeamInboxMessage.summary(window, flow.getValue());
+                msg.setTags(key[1].length() == 0 ? null : key[1]);
+                // summaries are not about a single build, so there's no build to report to
+                if(!getDispatcher().dispatch(new FlowdockNotification(null, null, apiUrl, key[0], null, msg, null))) {
+                    LOGGER.warning("Flowdock dispatch queue is full, build summary dropped");
+                }
+            }
+        }
+
+        /**
+         * @return the flow token(s) and the expanded tags the summary of the job is sent
+         *     with, separated by a newline, or null if the job no longer sends summaries.
+         */
+        private String summaryFlow(String jobName) {
+            AbstractProject project = Jenkins.getInstance().getItemByFullName(jobName, AbstractProject.class);
+            if(project == null)
+                return null;
+            FlowdockNotifier notifier = (FlowdockNotifier) project.getPublishersList().get(FlowdockNotifier.class);
+            NotificationProfile settings = notifier == null ? null : notifier.getEffectiveProfile();
+            if(settings == null || settings.getFlowToken() == null)
+                return null;
+            String tags = settings.getNotificationTags();
+            // variables in the tags are taken from the last build of the job
+            AbstractBuild build = (AbstractBuild) project.getLastCompletedBuild();
+            if(tags != null && build != null) {
+                try {
+                    tags = NotificationContext.of(build, BuildResult.fromBuild(build), TaskListener.NULL).expand(tags);
+                } catch(IOException ex) {
+                    LOGGER.log(Level.FINE, "Failed to expand the tags of the build summary of " + jobName, ex);
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return settings.getFlowToken() + "\n" + (tags == null ? "" : tags);
+        }
+
+        public synchronized ChangeIndex getChangeIndex() {
+            if(changeIndex == null) {
+                Jenkins jenkins = Jenkins.getInstance();
+                changeIndex = new ChangeIndex(jenkins == null ? null :
+                    new File(jenkins.getRootDir(), "flowdock-changes.xml"));
+            }
+            return changeIndex;
+        }
+
+        /**
+         * Makes the next notification use a transport and dispatcher with the current settings.
+         */
+        private synchronized void restartDelivery() {
+            transport = null;
+            if(coalescer != null) {
+                coalescer.shutdown();
+                coalescer = null;
+            }
+            if(dispatcher != null) {
+                // notifications already queued are still delivered by the old workers
+                dispatcher.shutdown();
+                dispatcher = null;
+            }
+        }
     }
 }
@@ -0,0 +1,253 @@
+package com.flowdock.jenkins;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.util.List;
+
+/**
+ * Pipeline step sending a message to Flowdock, e.g.
+ * <pre>flowdockNotify message: 'Deployed to staging', profile: 'team', tags: 'deploy'</pre>
+ * The message is queued for the same background delivery as the notifications of
+ * freestyle jobs and the step returns right away. With {@code await: true} the step
+ * waits for the delivery and returns its status. The pipeline thread is not blocked
+ * while waiting.
+ */
+public class FlowdockNotifyStep extends AbstractStepImpl {
+    private final String message;
+    private String subject;
+    private String flowToken;
+    private String tags;
+    private String profile;
+    private boolean chat;
+    private boolean await;
+
+    @DataBoundConstructor
+    public FlowdockNotifyStep(String message) {
+        this.message = message;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @param subject subject of the Team Inbox message, by default the name and number of the build.
+     */
+    @DataBoundSetter
+    public void setSubject(String subject) {
+        this.subject = emptyToNull(subject);
+    }
+
+    public String getFlowToken() {
+        return flowToken;
+    }
+
+    /**
+     * @param flowToken flow API token(s), overriding the ones of the profile.
+     */
+    @DataBoundSetter
+    public void setFlowToken(String flowToken) {
+        this.flowToken = emptyToNull(flowToken);
+    }
+
+    public String getTags() {
+        return tags;
+    }
+
+    /**
+     * @param tags tags of the messages, overriding the ones of the profile.
+     */
+    @DataBoundSetter
+    public void setTags(String tags) {
+        this.tags = emptyToNull(tags);
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    @DataBoundSetter
+    public void setProfile(String profile) {
+        this.profile = emptyToNull(profile);
+    }
+
+    public boolean isChat() {
+        return chat;
+    }
+
+    /**
+     * @param chat true to also post the message to the chat of the flow.
+     */
+    @DataBoundSetter
+    public void setChat(boolean chat) {
+        this.chat = chat;
+    }
+
+    public boolean isAwait() {
+        return await;
+    }
+
+    /**
+     * @param await true to wait for the delivery and return its status.
+     */
+    @DataBoundSetter
+    public void setAwait(boolean await) {
+        this.await = await;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().length() == 0 ? null : value.trim();
+    }
+
+    /**
+     * Renders the messages on the pipeline thread, so that only the sending is left to
+     * the dispatcher.
+     */
+    FlowdockNotification createNotification(Run run, FlowdockNotifier.DescriptorImpl descriptor,
+        FlowdockDeliveryAction action, FlowdockNotification.DeliveryListener deliveryListener)
+        throws AbortException {
+        String token = flowToken;
+        String notificationTags = tags;
+        if(profile != null) {
+            NotificationProfile settings = descriptor.getProfile(profile);
+            if(settings == null)
+                throw new AbortException("Flowdock: the notification profile does not exist: " + profile);
+            if(token == null)
+                token = settings.getFlowToken();
+            if(notificationTags == null)
+                notificationTags = settings.getNotificationTags();
+        }
+        if(token == null)
+            throw new AbortException("Flowdock: no flow API token given, set flowToken or profile");
+
+        String projectName = run.getParent().getFullName();
+        String rootUrl = FlowdockMessage.rootUrl();
+
+        TeamInboxMessage msg = new TeamInboxMessage();
+        msg.setProject(TeamInboxMessage.projectTag(projectName));
+        msg.setSubject(subject != null ? subject : projectName + " build " + run.getNumber());
+        msg.setContent(message);
+        if(rootUrl != null)
+            msg.setLink(rootUrl + run.getUrl());
+        msg.setTags(notificationTags);
+
+        ChatMessage chatMsg = null;
+        if(chat) {
+            chatMsg = new ChatMessage();
+            chatMsg.setContent(message);
+            chatMsg.setTags(notificationTags);
+        }
+
+        return new FlowdockNotification(run, action, descriptor.apiUrl(), token, null, msg, chatMsg,
+            deliveryListener);
+    }
+
+    public static class Execution extends AbstractStepExecutionImpl {
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true)
+        private transient FlowdockNotifyStep step;
+        @StepContextParameter
+        private transient Run run;
+        @StepContextParameter
+        private transient TaskListener listener;
+
+        @Override
+        public boolean start() throws Exception {
+            FlowdockNotifier.DescriptorImpl descriptor =
+                Jenkins.getInstance().getDescriptorByType(FlowdockNotifier.DescriptorImpl.class);
+            FlowdockDeliveryAction action = (FlowdockDeliveryAction) run.getAction(FlowdockDeliveryAction.class);
+            if(action == null) {
+                action = new FlowdockDeliveryAction();
+                run.addAction(action);
+            }
+
+            StatusListener status = step.isAwait() ? new StatusListener(getContext()) : null;
+            FlowdockNotification notification = step.createNotification(run, descriptor, action, status);
+            // start() runs on the pipeline thread, so the notification is only handed off
+            if(descriptor.offer(notification)) {
+                listener.getLogger().println("Flowdock: notification queued for delivery");
+            } else {
+                // a dropped notification is completed right away, an awaiting step gets the status
+                listener.getLogger().println("Flowdock: dispatch queue is full, notification dropped");
+            }
+            if(status == null) {
+                getContext().onSuccess(null);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            // the notification may still be sent, only the step stops waiting for it
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            getContext().onFailure(new AbortException(
+                "Flowdock: Jenkins was restarted while waiting for the delivery, the status is not known"));
+        }
+    }
+
+    /**
+     * Completes an awaiting step with the delivery status of each flow.
+     */
+    private static final class StatusListener implements FlowdockNotification.DeliveryListener {
+        private final StepContext context;
+
+        StatusListener(StepContext context) {
+            this.context = context;
+        }
+
+        public void delivered(List<String> results) {
+            StringBuilder status = new StringBuilder();
+            for(String result : results) {
+                if(status.length() > 0)
+                    status.append('\n');
+                status.append(result);
+            }
+            context.onSuccess(status.toString());
+        }
+    }
+
+    @Extension(optional = true)
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "flowdockNotify";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Send a Flowdock notification";
+        }
+
+        public ListBoxModel doFillProfileItems() {
+            return Jenkins.getInstance().getDescriptorByType(FlowdockNotifier.DescriptorImpl.class)
+                .doFillProfileItems();
+        }
+    }
+}
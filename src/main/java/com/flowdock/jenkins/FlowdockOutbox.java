@@ -0,0 +1,356 @@
+package com.flowdock.jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the posts that haven't been accepted by Flowdock yet.
+ *
+ * Every post is appended to the current segment file before it is sent and a done
+ * record is appended once Flowdock has accepted it. Callers make their posts durable
+ * with {@link #commit()}; concurrent commits are grouped so that one fsync covers all
+ * records written before it. Done records are not synced, so a crash may cause a post
+ * to be sent twice but never lost.
+ *
+ * When the current segment grows too large, the pending posts are copied to a new
+ * segment and the old segments are deleted. Pending posts are kept in memory, so the
+ * number of them is bounded; when the limit is reached the oldest post is dropped.
+ */
+public class FlowdockOutbox {
+    private static final Logger LOGGER = Logger.getLogger(FlowdockOutbox.class.getName());
+
+    public static final int DEFAULT_MAX_PENDING = 10000;
+    public static final long SEGMENT_SIZE = 4L * 1024 * 1024;
+
+    private static final byte ADD = 1;
+    private static final byte DONE = 2;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File dir;
+    private final int maxPending;
+    private final Map<Long, OutboxEntry> pending = new LinkedHashMap<Long, OutboxEntry>();
+    private long pendingBytes;
+    private long nextId = 1;
+
+    private long segment;
+    private FileChannel channel;
+    private long segmentBytes;
+    private long written;
+
+    private final Object syncLock = new Object();
+    private volatile long synced;
+
+    public FlowdockOutbox(File dir, int maxPending) throws IOException {
+        this.dir = dir;
+        this.maxPending = Math.max(1, maxPending);
+        recover();
+    }
+
+    /**
+     * Appends a post to the journal. The post is durable only after {@link #commit()}.
+     * The returned entry is claimed by the caller.
+     */
+    public synchronized OutboxEntry add(String apiUrl, String flowToken, String path, byte[] data) throws IOException {
+        if(pending.size() >= maxPending) {
+            dropOldest();
+        }
+        OutboxEntry entry = new OutboxEntry(nextId++, apiUrl, flowToken, path, data, System.currentTimeMillis());
+        entry.claim();
+        write(encodeAdd(entry));
+        pending.put(entry.getId(), entry);
+        pendingBytes += data.length;
+        rollIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Forces everything appended so far to disk. Threads calling this while another
+     * thread is syncing wait for it and are then usually covered by a single sync.
+     */
+    public void commit() throws IOException {
+        long target;
+        synchronized(this) {
+            target = written;
+        }
+        if(synced >= target)
+            return;
+
+        synchronized(syncLock) {
+            if(synced >= target)
+                return;
+            FileChannel current;
+            long upTo;
+            synchronized(this) {
+                current = channel;
+                upTo = written;
+            }
+            try {
+                current.force(false);
+            } catch(ClosedChannelException ex) {
+                // the segment was rolled over, which forces it before closing it
+            }
+            synced = upTo;
+        }
+    }
+
+    /**
+     * Marks the post as accepted by Flowdock, or given up on.
+     */
+    public synchronized void done(OutboxEntry entry) {
+        if(pending.remove(entry.getId()) == null)
+            return;
+        pendingBytes -= entry.getData().length;
+        try {
+            write(encodeDone(entry.getId()));
+            rollIfNeeded();
+        } catch(IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to mark Flowdock outbox entry " + entry.getId() + " done", ex);
+        }
+    }
+
+    /**
+     * Hands a failed post back to the outbox, so that it's sent again later.
+     */
+    public void release(OutboxEntry entry) {
+        entry.release();
+    }
+
+    /**
+     * Claims up to the given number of pending posts that nobody is sending at the moment.
+     */
+    public synchronized List<OutboxEntry> claimPending(int max) {
+        List<OutboxEntry> claimed = new ArrayList<OutboxEntry>();
+        for(OutboxEntry entry : pending.values()) {
+            if(claimed.size() >= max)
+                break;
+            if(entry.claim())
+                claimed.add(entry);
+        }
+        return claimed;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Drops the oldest post, even if it is being sent. A sender still delivers it but
+     * it is no longer journaled, so it is not sent again if that fails.
+     */
+    private void dropOldest() throws IOException {
+        Iterator<OutboxEntry> it = pending.values().iterator();
+        OutboxEntry oldest = it.next();
+        it.remove();
+        pendingBytes -= oldest.getData().length;
+        write(encodeDone(oldest.getId()));
+        LOGGER.warning("Flowdock outbox is full, dropped the message to flow " +
+            FlowdockAPI.describeFlowToken(oldest.getFlowToken()) + " queued at " + oldest.getCreated());
+    }
+
+    private void write(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(12 + payload.length);
+        record.putInt(payload.length).putLong(crc.getValue()).put(payload);
+        record.flip();
+        while(record.hasRemaining()) {
+            channel.write(record);
+        }
+        segmentBytes += 12 + payload.length;
+        written++;
+    }
+
+    private void rollIfNeeded() throws IOException {
+        // the pending posts are copied to the new segment, don't roll over just to copy them again
+        if(segmentBytes > Math.max(SEGMENT_SIZE, 2 * pendingBytes)) {
+            roll();
+        }
+    }
+
+    /**
+     * Starts a new segment containing only the pending posts and deletes the old ones.
+     */
+    private void roll() throws IOException {
+        if(channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+        segment++;
+        channel = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+        channel.position(channel.size());
+        segmentBytes = channel.size();
+        for(OutboxEntry entry : pending.values()) {
+            write(encodeAdd(entry));
+        }
+        channel.force(false);
+        synced = written;
+
+        for(long old : listSegments()) {
+            if(old < segment && !segmentFile(old).delete()) {
+                LOGGER.warning("Failed to delete Flowdock outbox segment " + segmentFile(old));
+            }
+        }
+    }
+
+    private synchronized void recover() throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create Flowdock outbox directory " + dir);
+        }
+        for(long s : listSegments()) {
+            readSegment(s);
+            segment = s;
+        }
+        roll();
+        if(!pending.isEmpty()) {
+            LOGGER.info("Flowdock outbox contains " + pending.size() + " messages waiting for delivery");
+        }
+    }
+
+    private void readSegment(long s) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(s))));
+        try {
+            while(true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch(EOFException ex) {
+                    return;
+                }
+                if(length <= 0 || length > MAX_RECORD_SIZE) {
+                    LOGGER.warning("Corrupted record in " + segmentFile(s) + ", ignoring the rest of the segment");
+                    return;
+                }
+                byte[] payload = new byte[length];
+                long checksum;
+                try {
+                    checksum = in.readLong();
+                    in.readFully(payload);
+                } catch(EOFException ex) {
+                    // the last write before a crash was incomplete
+                    return;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if(crc.getValue() != checksum) {
+                    LOGGER.warning("Corrupted record in " + segmentFile(s) + ", ignoring the rest of the segment");
+                    return;
+                }
+                apply(payload);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long id = in.readLong();
+        nextId = Math.max(nextId, id + 1);
+        if(type == ADD) {
+            OutboxEntry entry = new OutboxEntry(id, readString(in), readString(in), readString(in),
+                readBytes(in), in.readLong());
+            OutboxEntry previous = pending.put(id, entry);
+            if(previous != null)
+                pendingBytes -= previous.getData().length;
+            pendingBytes += entry.getData().length;
+        } else if(type == DONE) {
+            OutboxEntry entry = pending.remove(id);
+            if(entry != null)
+                pendingBytes -= entry.getData().length;
+        }
+    }
+
+    private static byte[] encodeAdd(OutboxEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entry.getData().length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ADD);
+        out.writeLong(entry.getId());
+        writeString(out, entry.getApiUrl());
+        writeString(out, entry.getFlowToken());
+        writeString(out, entry.getPath());
+        writeBytes(out, entry.getData());
+        out.writeLong(entry.getCreated());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeDone(long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DONE);
+        out.writeLong(id);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes("UTF-8"));
+    }
+
+    // DataOutput.writeUTF is limited to 64 KB, message content can be longer
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), "UTF-8");
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private File segmentFile(long s) {
+        return new File(dir, SEGMENT_PREFIX + s + SEGMENT_SUFFIX);
+    }
+
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<Long>();
+        String[] names = dir.list();
+        if(names == null)
+            return segments;
+        for(String name : names) {
+            if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    segments.add(Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch(NumberFormatException ex) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
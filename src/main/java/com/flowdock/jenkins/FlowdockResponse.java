@@ -0,0 +1,46 @@
+package com.flowdock.jenkins;
+
+import java.io.Serializable;
+
+public class FlowdockResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final String message;
+    private final String content;
+    private final long retryAfterMillis;
+
+    public FlowdockResponse(int status, String message, String content) {
+        this(status, message, content, -1L);
+    }
+
+    public FlowdockResponse(int status, String message, String content, long retryAfterMillis) {
+        this.status = status;
+        this.message = message;
+        this.content = content;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * @return the wait requested with the Retry-After header in milliseconds, -1 if none.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public boolean isSuccess() {
+        return status == 200;
+    }
+}
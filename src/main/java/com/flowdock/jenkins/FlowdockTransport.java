@@ -0,0 +1,19 @@
+package com.flowdock.jenkins;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Sends requests to the Flowdock API. Implementations are shared by all notifiers
+ * and must be thread safe.
+ */
+public interface FlowdockTransport {
+    /**
+     * Posts form encoded data to the given URL. The response must be fully consumed
+     * before returning so that the underlying connection can be reused.
+     *
+     * @param data buffer holding the data, which may be reused after the call returns.
+     * @param length number of bytes to send from the start of the buffer.
+     */
+    FlowdockResponse post(URL url, byte[] data, int length) throws IOException;
+}
@@ -0,0 +1,164 @@
+package com.flowdock.jenkins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes form fields as application/x-www-form-urlencoded UTF-8 straight into a
+ * byte buffer, with the same rules as {@link java.net.URLEncoder} but without the
+ * intermediate Strings. Each thread reuses its own buffer through {@link #forThread()}.
+ */
+public final class FormEncoder {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(ASCII);
+
+    // don't keep huge buffers around after an exceptionally large message
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<FormEncoder> ENCODERS = new ThreadLocal<FormEncoder>() {
+        @Override
+        protected FormEncoder initialValue() {
+            return new FormEncoder();
+        }
+    };
+
+    private byte[] buffer;
+    private int size;
+
+    public FormEncoder() {
+        this(1024);
+    }
+
+    public FormEncoder(int capacity) {
+        this.buffer = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * @return an empty encoder owned by the current thread. It must not be used after
+     *     the next call from the same thread.
+     */
+    public static FormEncoder forThread() {
+        FormEncoder encoder = ENCODERS.get();
+        if(encoder.buffer.length > MAX_RETAINED_SIZE) {
+            encoder = new FormEncoder();
+            ENCODERS.set(encoder);
+        }
+        encoder.reset();
+        return encoder;
+    }
+
+    public FormEncoder reset() {
+        size = 0;
+        return this;
+    }
+
+    /**
+     * Appends a field. A null value is encoded as an empty one.
+     */
+    public FormEncoder field(String name, CharSequence value) {
+        return field(name, value, false);
+    }
+
+    /**
+     * Appends a field leaving out all whitespace in the value, e.g. for tag lists.
+     */
+    public FormEncoder fieldWithoutWhitespace(String name, CharSequence value) {
+        return field(name, value, true);
+    }
+
+    private FormEncoder field(String name, CharSequence value, boolean skipWhitespace) {
+        if(size > 0)
+            append((byte)'&');
+        encode(name, false);
+        append((byte)'=');
+        if(value != null)
+            encode(value, skipWhitespace);
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the internal buffer, valid up to {@link #size()}.
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[size];
+        System.arraycopy(buffer, 0, copy, 0, size);
+        return copy;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, ASCII);
+    }
+
+    private void encode(CharSequence value, boolean skipWhitespace) {
+        int length = value.length();
+        ensureCapacity(length);
+        for(int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '.' || c == '-' || c == '*' || c == '_') {
+                append((byte)c);
+            } else if(skipWhitespace && isWhitespace(c)) {
+                continue;
+            } else if(c == ' ') {
+                append((byte)'+');
+            } else if(c < 0x80) {
+                percent(c);
+            } else if(c < 0x800) {
+                percent(0xC0 | (c >> 6));
+                percent(0x80 | (c & 0x3F));
+            } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                percent(0xF0 | (codePoint >> 18));
+                percent(0x80 | ((codePoint >> 12) & 0x3F));
+                percent(0x80 | ((codePoint >> 6) & 0x3F));
+                percent(0x80 | (codePoint & 0x3F));
+            } else if(Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // unpaired surrogate, encoded as '?' like URLEncoder does
+                percent('?');
+            } else {
+                percent(0xE0 | (c >> 12));
+                percent(0x80 | ((c >> 6) & 0x3F));
+                percent(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    // same characters as \s in a regular expression
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private void percent(int b) {
+        ensureCapacity(3);
+        buffer[size++] = '%';
+        buffer[size++] = HEX[(b >> 4) & 0x0F];
+        buffer[size++] = HEX[b & 0x0F];
+    }
+
+    private void append(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+    }
+
+    private void ensureCapacity(int additional) {
+        if(size + additional > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, size + additional)];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+    }
+}
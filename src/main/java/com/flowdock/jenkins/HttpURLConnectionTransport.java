@@ -0,0 +1,307 @@
+package com.flowdock.jenkins;
+
+import hudson.ProxyConfiguration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.Proxy.Type;
+import java.net.URL;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Transport built on {@link HttpURLConnection}. The JDK keeps idle connections in its
+ * keep-alive cache, keyed by host and proxy, as long as every response body is read
+ * to the end and the streams are closed without disconnecting. Consecutive posts to
+ * the same API URL therefore reuse the same TCP and TLS connection.
+ */
+public class HttpURLConnectionTransport implements FlowdockTransport {
+    private static final Logger LOGGER = Logger.getLogger(HttpURLConnectionTransport.class.getName());
+    // HttpURLConnection.setAuthenticator, Java 9 and later
+    private static final Method SET_AUTHENTICATOR = setAuthenticatorMethod();
+
+    private static volatile ProxySettings proxySettings;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+    public static final int DEFAULT_READ_TIMEOUT = 30;
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    // the proxy of a transport that doesn't use the Jenkins proxy configuration, null for none
+    private final ProxySettings proxy;
+    private final boolean jenkinsProxy;
+
+    public HttpURLConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT * 1000, DEFAULT_READ_TIMEOUT * 1000);
+    }
+
+    public HttpURLConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.proxy = null;
+        this.jenkinsProxy = true;
+    }
+
+    /**
+     * Creates a transport using the given proxy instead of the Jenkins proxy
+     * configuration, e.g. on an agent where the configuration is not available.
+     *
+     * @param proxy the proxy to connect through, or null to connect directly.
+     */
+    HttpURLConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis, ProxySettings proxy) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.proxy = proxy;
+        this.jenkinsProxy = false;
+    }
+
+    public FlowdockResponse post(URL url, byte[] data, int length) throws IOException {
+        HttpURLConnection connection = open(url);
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        connection.setRequestProperty("Connection", "keep-alive");
+        connection.setFixedLengthStreamingMode(length);
+        connection.setUseCaches(false);
+        connection.setDoInput(true);
+        connection.setDoOutput(true);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(data, 0, length);
+            out.flush();
+        } finally {
+            out.close();
+        }
+
+        int status;
+        try {
+            status = connection.getResponseCode();
+        } catch(IOException ex) {
+            // the connection is in an unknown state, don't return it to the cache
+            connection.disconnect();
+            throw ex;
+        }
+        String content = drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return new FlowdockResponse(status, connection.getResponseMessage(), content, retryAfter(connection));
+    }
+
+    /**
+     * Parses the Retry-After header, which is either a number of seconds or a date.
+     */
+    private static long retryAfter(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Retry-After");
+        if(value == null)
+            return -1L;
+        try {
+            return Math.max(0L, Long.parseLong(value.trim()) * 1000L);
+        } catch(NumberFormatException ex) {
+            long date = connection.getHeaderFieldDate("Retry-After", -1L);
+            return date < 0L ? -1L : Math.max(0L, date - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Reads the stream to the end and closes it, which returns the connection to the
+     * keep-alive cache.
+     */
+    private static String drain(InputStream in) throws IOException {
+        if(in == null)
+            return "";
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return content.toString("UTF-8");
+    }
+
+    /**
+     * Opens the connection through the Jenkins proxy unless the host matches one of
+     * the no proxy host patterns. Proxy credentials are set on each connection.
+     */
+    private HttpURLConnection open(URL url) throws IOException {
+        ProxySettings settings = jenkinsProxy ? proxySettings() : proxy;
+        if(settings == null || settings.bypass(url.getHost()))
+            return (HttpURLConnection)url.openConnection(Proxy.NO_PROXY);
+
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection(settings.proxy);
+        if(settings.authorization != null) {
+            if("http".equals(url.getProtocol())) {
+                connection.setRequestProperty("Proxy-Authorization", settings.authorization);
+            } else if(SET_AUTHENTICATOR != null) {
+                // the JDK tunnels HTTPS with its own CONNECT request and would send a header set
+                // here on to the server, so the tunnel is authenticated by the authenticator
+                try {
+                    SET_AUTHENTICATOR.invoke(connection, settings.authenticator);
+                } catch(Exception ex) {
+                    LOGGER.log(Level.FINE, "Cannot set the proxy authenticator of the connection", ex);
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Returns the proxy settings for the current Jenkins proxy configuration, resolved
+     * again only when the configuration has been changed.
+     *
+     * @return null if no proxy is configured.
+     */
+    static ProxySettings proxySettings() {
+        Jenkins jenkins = Jenkins.getInstance();
+        ProxyConfiguration proxyConf = jenkins == null ? null : jenkins.proxy;
+        if(proxyConf == null)
+            return null;
+
+        ProxySettings settings = proxySettings;
+        if(settings == null || settings.configuration != proxyConf) {
+            settings = new ProxySettings(proxyConf, proxyConf.name, proxyConf.port, proxyConf.noProxyHost,
+                proxyConf.getUserName(), proxyConf.getPassword());
+            LOGGER.fine("Using proxy " + proxyConf.name + ":" + proxyConf.port + (settings.authorization != null ?
+                " with the credentials of " + proxyConf.getUserName() : ""));
+            if(settings.authorization != null && SET_AUTHENTICATOR == null) {
+                // before Java 9 the tunnel for HTTPS can only be authenticated by the default authenticator,
+                // install one that only answers for this proxy, and only when the configuration changes
+                Authenticator.setDefault(settings.authenticator);
+            }
+            proxySettings = settings;
+        }
+        return settings;
+    }
+
+    private static Method setAuthenticatorMethod() {
+        try {
+            return HttpURLConnection.class.getMethod("setAuthenticator", Authenticator.class);
+        } catch(NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * A Jenkins proxy configuration resolved for the connections. The proxy address is
+     * left unresolved so that building it never blocks on DNS.
+     */
+    static final class ProxySettings {
+        private final ProxyConfiguration configuration;
+        private final String host;
+        private final int port;
+        private final String noProxyHost;
+        private final String userName;
+        private final String password;
+        private final Proxy proxy;
+        private final List<Pattern> noProxyHosts;
+        private final String authorization;
+        private final Authenticator authenticator;
+
+        /**
+         * @param configuration the Jenkins proxy configuration the settings were resolved from,
+         *     or null if they were not.
+         */
+        ProxySettings(ProxyConfiguration configuration, String host, int port, String noProxyHost,
+            String userName, String password) {
+            this.configuration = configuration;
+            this.host = host;
+            this.port = port;
+            this.noProxyHost = noProxyHost;
+            this.userName = userName;
+            this.password = password;
+            this.proxy = new Proxy(Type.HTTP, InetSocketAddress.createUnresolved(host, port));
+            this.noProxyHosts = ProxyConfiguration.getNoProxyHostPatterns(noProxyHost);
+
+            if(StringUtils.isNotEmpty(userName)) {
+                String pass = StringUtils.defaultString(password);
+                this.authorization = "Basic " + base64(userName + ":" + pass);
+                this.authenticator = new ProxyAuthenticator(host, port,
+                    new PasswordAuthentication(userName, pass.toCharArray()));
+            } else {
+                this.authorization = null;
+                this.authenticator = null;
+            }
+        }
+
+        String getHost() {
+            return host;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        String getNoProxyHost() {
+            return noProxyHost;
+        }
+
+        String getUserName() {
+            return userName;
+        }
+
+        String getPassword() {
+            return password;
+        }
+
+        boolean bypass(String host) {
+            if(noProxyHosts == null)
+                return false;
+            for(Pattern pattern : noProxyHosts) {
+                if(pattern.matcher(host).matches())
+                    return true;
+            }
+            return false;
+        }
+
+        private static String base64(String value) {
+            try {
+                return new String(Base64.encodeBase64(value.getBytes("UTF-8")), "US-ASCII");
+            } catch(UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /**
+     * Answers only the authentication requests of the given proxy.
+     */
+    private static final class ProxyAuthenticator extends Authenticator {
+        private final String host;
+        private final int port;
+        private final PasswordAuthentication credentials;
+
+        ProxyAuthenticator(String host, int port, PasswordAuthentication credentials) {
+            this.host = host;
+            this.port = port;
+            this.credentials = credentials;
+        }
+
+        @Override
+        protected PasswordAuthentication getPasswordAuthentication() {
+            if(getRequestorType() == RequestorType.PROXY && getRequestingPort() == port &&
+                host.equalsIgnoreCase(getRequestingHost())) {
+                return credentials;
+            }
+            return null;
+        }
+    }
+}
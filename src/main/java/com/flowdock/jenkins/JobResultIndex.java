@@ -0,0 +1,194 @@
+package com.flowdock.jenkins;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of the last build of each job that the notifier has seen, so that the
+ * previous result is known without loading the previous build record from disk.
+ * The indexed result is only used for the build right after it. Jobs missing from
+ * the index, or with builds the notifier didn't see, fall back to the previous build.
+ * <p>
+ * The index is saved a few seconds after it changes to a small text file with one
+ * line per job: build number, result and the full name of the job.
+ */
+public class JobResultIndex {
+    private static final Logger LOGGER = Logger.getLogger(JobResultIndex.class.getName());
+    private static final long SAVE_DELAY = 5;
+
+    private final File file;
+    private final ConcurrentMap<String, LastResult> results = new ConcurrentHashMap<String, LastResult>();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    /**
+     * @param file where the index is saved, or null to keep it in memory only.
+     */
+    public JobResultIndex(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * @return the result of the build before the given one, or null if the job has
+     *     not been built before.
+     */
+    public Result previousResult(AbstractBuild build) {
+        LastResult last = results.get(build.getProject().getFullName());
+        if(last != null && last.number == build.getNumber() - 1)
+            return last.result;
+        // not indexed yet, builds not recorded while the notifier was missing or builds finishing out of order
+        Run previous = build.getPreviousBuild();
+        return previous == null ? null : previous.getResult();
+    }
+
+    /**
+     * Records the result of a completed build, unless a later build of the job has
+     * already been recorded.
+     */
+    public void record(AbstractBuild build) {
+        Result result = build.getResult();
+        if(result == null)
+            return;
+        String job = build.getProject().getFullName();
+        LastResult recorded = new LastResult(build.getNumber(), result);
+        while(true) {
+            LastResult last = results.putIfAbsent(job, recorded);
+            if(last == null)
+                break;
+            if(last.number >= recorded.number)
+                return;
+            if(results.replace(job, last, recorded))
+                break;
+        }
+        scheduleSave();
+    }
+
+    void remove(String job) {
+        if(results.remove(job) != null)
+            scheduleSave();
+    }
+
+    void rename(String oldName, String newName) {
+        LastResult last = results.remove(oldName);
+        if(last != null) {
+            results.put(newName, last);
+            scheduleSave();
+        }
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    private void scheduleSave() {
+        if(file == null || !saveScheduled.compareAndSet(false, true))
+            return;
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                saveScheduled.set(false);
+                save();
+            }
+        }, SAVE_DELAY, TimeUnit.SECONDS);
+    }
+
+    synchronized void save() {
+        if(file == null)
+            return;
+        try {
+            AtomicFileWriter writer = new AtomicFileWriter(file);
+            try {
+                for(Map.Entry<String, LastResult> entry : results.entrySet()) {
+                    writer.write(entry.getValue().number + "\t" + entry.getValue().result + "\t" + entry.getKey() + "\n");
+                }
+                writer.commit();
+            } finally {
+                writer.abort();
+            }
+        } catch(IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to save the Flowdock job result index to " + file, ex);
+        }
+    }
+
+    private void load() {
+        if(file == null || !file.exists())
+            return;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 3);
+                    if(fields.length < 3)
+                        continue;
+                    try {
+                        results.put(fields[2], new LastResult(Integer.parseInt(fields[0]), Result.fromString(fields[1])));
+                    } catch(NumberFormatException ex) {
+                        LOGGER.fine("Skipping invalid line in " + file + ": " + line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch(IOException ex) {
+            // the index is rebuilt from the build records as the jobs are built
+            LOGGER.log(Level.WARNING, "Failed to read the Flowdock job result index from " + file, ex);
+        }
+    }
+
+    private static final class LastResult {
+        private final int number;
+        private final Result result;
+
+        LastResult(int number, Result result) {
+            this.number = number;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Keeps the result and change indexes in step with renamed and deleted jobs.
+     */
+    @Extension
+    public static class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if(item instanceof Job) {
+                descriptor().getResultIndex().remove(item.getFullName());
+                descriptor().getChangeIndex().remove(item.getFullName());
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if(item instanceof Job) {
+                descriptor().getResultIndex().rename(oldFullName, newFullName);
+                descriptor().getChangeIndex().rename(oldFullName, newFullName);
+            }
+        }
+
+        private static FlowdockNotifier.DescriptorImpl descriptor() {
+            return Jenkins.getInstance().getDescriptorByType(FlowdockNotifier.DescriptorImpl.class);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.flowdock.jenkins;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds. Every power of two is split into
+ * four buckets, so percentiles are accurate to within 25% whatever the scale, and
+ * recording is a few atomic increments without allocation.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^40 microseconds is almost two weeks, anything longer goes to the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current;
+        while(micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+            // another thread recorded a new maximum, compare again
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0L : total.get() / n;
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * @param p percentile between 0.0 and 1.0.
+     * @return the upper bound of the bucket the percentile falls into, in microseconds.
+     */
+    public long getPercentileMicros(double p) {
+        long n = count.get();
+        if(n == 0)
+            return 0L;
+        long rank = Math.max(1L, (long)Math.ceil(p * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if(seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        total.set(0L);
+        max.set(0L);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * @return the non-empty buckets as "bucket:count" pairs separated by commas, for saving
+     *     the histogram.
+     */
+    String bucketsToString() {
+        StringBuilder saved = new StringBuilder();
+        for(int i = 0; i < BUCKETS; i++) {
+            long n = buckets.get(i);
+            if(n > 0) {
+                if(saved.length() > 0)
+                    saved.append(',');
+                saved.append(i).append(':').append(n);
+            }
+        }
+        return saved.toString();
+    }
+
+    /**
+     * Adds the values of buckets saved with {@link #bucketsToString()}. The mean and
+     * maximum are restored from the bucket bounds, so they are only approximate.
+     */
+    void addBuckets(String saved) {
+        if(saved == null || saved.length() == 0)
+            return;
+        for(String pair : saved.split(",")) {
+            int colon = pair.indexOf(':');
+            if(colon < 0)
+                continue;
+            int bucket = Integer.parseInt(pair.substring(0, colon));
+            long n = Long.parseLong(pair.substring(colon + 1));
+            if(bucket < 0 || bucket >= BUCKETS || n <= 0)
+                continue;
+            buckets.addAndGet(bucket, n);
+            count.addAndGet(n);
+            long bound = upperBound(bucket);
+            total.addAndGet(bound * n);
+            long current;
+            while(bound > (current = max.get()) && !max.compareAndSet(current, bound)) {
+                // another thread recorded a new maximum, compare again
+            }
+        }
+    }
+
+    static int bucket(long value) {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if(exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int subBucket = (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * The histogram summarized in milliseconds, for display.
+     */
+    public static final class Snapshot {
+        private final String name;
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        private Snapshot(LatencyHistogram histogram) {
+            this.name = histogram.getName();
+            this.count = histogram.getCount();
+            this.mean = histogram.getMeanMicros();
+            this.p50 = histogram.getPercentileMicros(0.5);
+            this.p99 = histogram.getPercentileMicros(0.99);
+            this.p999 = histogram.getPercentileMicros(0.999);
+            this.max = histogram.getMaxMicros();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public String getMean() {
+            return millis(mean);
+        }
+
+        public String getP50() {
+            return millis(p50);
+        }
+
+        public String getP99() {
+            return millis(p99);
+        }
+
+        public String getP999() {
+            return millis(p999);
+        }
+
+        public String getMax() {
+            return millis(max);
+        }
+
+        private static String millis(long micros) {
+            return String.format("%.1f", micros / 1000.0);
+        }
+    }
+}
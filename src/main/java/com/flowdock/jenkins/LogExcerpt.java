@@ -0,0 +1,152 @@
+package com.flowdock.jenkins;
+
+import hudson.console.ConsoleNote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the last lines of a console log for failure notifications. The log is read
+ * backwards from its end in small chunks, so only the end of even a very large log
+ * is read. Reading stops when enough lines are found, when the excerpt reaches its
+ * size limit, after {@link #MAX_SCAN_BYTES} of the log or when the time is up,
+ * whichever comes first.
+ */
+public class LogExcerpt {
+    public static final int DEFAULT_LINES = 20;
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024;
+    public static final int DEFAULT_TIMEOUT = 500;
+    static final long MAX_SCAN_BYTES = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;
+    // console notes make the raw lines much longer than the text shown
+    private static final int MAX_LINE_BYTES = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 500;
+
+    private final int maxLines;
+    private final Pattern filter;
+    private final int maxBytes;
+    private final long timeoutNanos;
+
+    /**
+     * @param maxLines maximum number of lines in the excerpt.
+     * @param filter only lines containing a match are included, or null for all lines.
+     * @param maxBytes maximum size of the lines in the excerpt.
+     * @param timeoutMillis time after which reading stops with the lines found so far.
+     */
+    public LogExcerpt(int maxLines, Pattern filter, int maxBytes, long timeoutMillis) {
+        this.maxLines = maxLines;
+        this.filter = filter;
+        this.maxBytes = maxBytes;
+        this.timeoutNanos = timeoutMillis * 1000000L;
+    }
+
+    public boolean isEnabled() {
+        return maxLines > 0 && maxBytes > 0;
+    }
+
+    /**
+     * @return the last lines of the log, oldest first, or an empty list if the log
+     *     cannot be read backwards.
+     */
+    public List<String> read(File log) throws IOException {
+        if(!isEnabled() || log == null || !log.isFile() || log.getName().endsWith(".gz"))
+            return Collections.emptyList();
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        List<String> lines = new ArrayList<String>();
+        int bytes = 0;
+        RandomAccessFile file = new RandomAccessFile(log, "r");
+        try {
+            long end = file.length();
+            long stop = Math.max(0, end - MAX_SCAN_BYTES);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            // the end of the line that continues before the current chunk
+            byte[] partial = new byte[0];
+            boolean partialTruncated = false;
+            boolean lastLine = true;
+            long position = end;
+            while(position > stop) {
+                int length = (int) Math.min(CHUNK_SIZE, position - stop);
+                position -= length;
+                file.seek(position);
+                file.readFully(chunk, 0, length);
+
+                int lineEnd = length;
+                for(int i = length - 1; i >= 0; i--) {
+                    if(chunk[i] != '\n')
+                        continue;
+                    byte[] line = join(chunk, i + 1, lineEnd, partial);
+                    boolean truncated = partialTruncated || line.length > MAX_LINE_BYTES;
+                    partial = new byte[0];
+                    partialTruncated = false;
+                    // skip the empty line after the final newline of the log
+                    if(!(lastLine && line.length == 0)) {
+                        String text = accept(line, truncated);
+                        if(text != null) {
+                            bytes += TeamInboxMessage.utf8Length(text, 0);
+                            if(bytes > maxBytes)
+                                return finish(lines);
+                            lines.add(text);
+                            if(lines.size() >= maxLines)
+                                return finish(lines);
+                        }
+                    }
+                    lastLine = false;
+                    lineEnd = i;
+                }
+                partial = join(chunk, 0, lineEnd, partial);
+                if(partial.length > MAX_LINE_BYTES) {
+                    // keep the beginning of a very long line
+                    partialTruncated = true;
+                    byte[] kept = new byte[MAX_LINE_BYTES];
+                    System.arraycopy(partial, 0, kept, 0, MAX_LINE_BYTES);
+                    partial = kept;
+                }
+                if(System.nanoTime() > deadline)
+                    return finish(lines);
+            }
+            if(position == 0 && partial.length > 0) {
+                String text = accept(partial, partialTruncated);
+                if(text != null && bytes + TeamInboxMessage.utf8Length(text, 0) <= maxBytes && lines.size() < maxLines)
+                    lines.add(text);
+            }
+            return finish(lines);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the line without console notes, or null if it doesn't match the filter.
+     */
+    private String accept(byte[] line, boolean truncated) throws IOException {
+        int length = Math.min(line.length, MAX_LINE_BYTES);
+        if(length > 0 && line[length - 1] == '\r')
+            length--;
+        String text = ConsoleNote.removeNotes(new String(line, 0, length, "UTF-8"));
+        if(filter != null && !filter.matcher(text).find())
+            return null;
+        if(text.length() > MAX_LINE_LENGTH) {
+            text = text.substring(0, MAX_LINE_LENGTH);
+            truncated = true;
+        }
+        return truncated ? text + "..." : text;
+    }
+
+    private static byte[] join(byte[] chunk, int from, int to, byte[] partial) {
+        byte[] line = new byte[to - from + partial.length];
+        System.arraycopy(chunk, from, line, 0, to - from);
+        System.arraycopy(partial, 0, line, to - from, partial.length);
+        return line;
+    }
+
+    private static List<String> finish(List<String> lines) {
+        Collections.reverse(lines);
+        return lines;
+    }
+}
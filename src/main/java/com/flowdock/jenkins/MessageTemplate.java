@@ -0,0 +1,163 @@
+package com.flowdock.jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A message template with {@code ${NAME}} variables, parsed once into its literal
+ * text and variable names. Compiled templates are cached by their text, so a
+ * configured template costs one pass over the segments per message. {@code $$} is
+ * a literal dollar sign.
+ */
+public final class MessageTemplate {
+    /**
+     * How variable values are escaped for the format of the message.
+     */
+    public enum Escaping {
+        NONE, HTML, MARKDOWN
+    }
+
+    /**
+     * Values of the template variables.
+     */
+    public interface Variables {
+        /**
+         * @return the value, or null if the variable is not defined.
+         */
+        String get(String name, Escaping escaping) throws IOException, InterruptedException;
+
+        /**
+         * @return true if the value of the variable is already formatted for the message
+         *     and must not be escaped.
+         */
+        boolean isFormatted(String name, Escaping escaping);
+    }
+
+    private static final int MAX_CACHED = 256;
+    private static final ConcurrentMap<String, MessageTemplate> CACHE = new ConcurrentHashMap<String, MessageTemplate>();
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+    // don't keep the buffer of an exceptionally large message around
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private final Escaping escaping;
+    // literals[i] comes before variables[i], the last literal after the last variable
+    private final String[] literals;
+    private final String[] variables;
+
+    private MessageTemplate(Escaping escaping, String[] literals, String[] variables) {
+        this.escaping = escaping;
+        this.literals = literals;
+        this.variables = variables;
+    }
+
+    public static MessageTemplate compile(String template, Escaping escaping) {
+        String key = escaping.name() + ':' + template;
+        MessageTemplate compiled = CACHE.get(key);
+        if(compiled == null) {
+            compiled = parse(template, escaping);
+            if(CACHE.size() >= MAX_CACHED)
+                CACHE.clear();
+            CACHE.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    private static MessageTemplate parse(String template, Escaping escaping) {
+        List<String> literals = new ArrayList<String>();
+        List<String> variables = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while(i < template.length()) {
+            char c = template.charAt(i);
+            if(c == '$' && i + 1 < template.length()) {
+                char next = template.charAt(i + 1);
+                if(next == '$') {
+                    literal.append('$');
+                    i += 2;
+                    continue;
+                }
+                int end = next == '{' ? template.indexOf('}', i + 2) : -1;
+                if(end > i + 2) {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    variables.add(template.substring(i + 2, end).trim());
+                    i = end + 1;
+                    continue;
+                }
+            }
+            literal.append(c);
+            i++;
+        }
+        literals.add(literal.toString());
+        return new MessageTemplate(escaping, literals.toArray(new String[literals.size()]),
+            variables.toArray(new String[variables.size()]));
+    }
+
+    /**
+     * @return true if the template uses the variable.
+     */
+    public boolean uses(String name) {
+        for(String variable : variables) {
+            if(variable.equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    public String render(Variables values) throws IOException, InterruptedException {
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        render(values, out);
+        String rendered = out.toString();
+        if(out.capacity() > MAX_RETAINED_BUFFER)
+            BUFFER.remove();
+        return rendered;
+    }
+
+    public void render(Variables values, StringBuilder out) throws IOException, InterruptedException {
+        for(int i = 0; i < variables.length; i++) {
+            out.append(literals[i]);
+            String value = values.get(variables[i], escaping);
+            if(value == null)
+                continue;
+            if(values.isFormatted(variables[i], escaping)) {
+                out.append(value);
+            } else {
+                escape(value, escaping, out);
+            }
+        }
+        out.append(literals[variables.length]);
+    }
+
+    static void escape(CharSequence value, Escaping escaping, StringBuilder out) {
+        if(value == null)
+            return;
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(escaping == Escaping.HTML) {
+                switch(c) {
+                    case '&': out.append("&amp;"); break;
+                    case '<': out.append("&lt;"); break;
+                    case '>': out.append("&gt;"); break;
+                    case '"': out.append("&quot;"); break;
+                    case '\'': out.append("&#39;"); break;
+                    default: out.append(c);
+                }
+            } else if(escaping == Escaping.MARKDOWN) {
+                if("\\`*_{}[]()#+-!>|".indexOf(c) >= 0)
+                    out.append('\\');
+                out.append(c);
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
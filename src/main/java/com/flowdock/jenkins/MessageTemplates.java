@@ -0,0 +1,46 @@
+package com.flowdock.jenkins;
+
+/**
+ * The message templates configured for one build result. An empty template leaves
+ * that part of the message in the default format.
+ */
+public class MessageTemplates {
+    private final String subject;
+    private final String content;
+    private final String chat;
+
+    public MessageTemplates(String subject, String content, String chat) {
+        this.subject = emptyToNull(subject);
+        this.content = emptyToNull(content);
+        this.chat = emptyToNull(chat);
+    }
+
+    /**
+     * @return the template of the Team Inbox subject, or null for the default.
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the HTML template of the Team Inbox content, or null for the default.
+     */
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * @return the Markdown template of the chat message, or null for the default.
+     */
+    public String getChat() {
+        return chat;
+    }
+
+    public boolean isEmpty() {
+        return subject == null && content == null && chat == null;
+    }
+
+    private static String emptyToNull(String template) {
+        return template == null || template.trim().length() == 0 ? null : template;
+    }
+}
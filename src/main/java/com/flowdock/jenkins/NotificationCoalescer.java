@@ -0,0 +1,148 @@
+package com.flowdock.jenkins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Holds notifications back for a while and sends the ones going to the same flows
+ * with the same tags as a single digest message. A batch is sent when the window
+ * since its first notification has passed or when it reaches the maximum size.
+ *
+ * Held back notifications are only kept in memory: they are journaled in the outbox
+ * when their batch is dispatched, so the ones still waiting are lost if Jenkins stops
+ * without {@link #shutdown()} being called.
+ */
+public class NotificationCoalescer {
+    private static final Logger LOGGER = Logger.getLogger(NotificationCoalescer.class.getName());
+
+    public static final int DEFAULT_WINDOW = 0;
+    public static final int DEFAULT_MAX_BATCH = 20;
+
+    private final FlowdockDispatcher dispatcher;
+    private final long windowMillis;
+    private final int maxBatch;
+    private final boolean immediateFailures;
+    private final Map<String, List<FlowdockNotification>> batches = new HashMap<String, List<FlowdockNotification>>();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param immediateFailures send failed and unstable builds right away instead of
+     *     holding them back.
+     */
+    public NotificationCoalescer(FlowdockDispatcher dispatcher, long windowMillis, int maxBatch,
+        boolean immediateFailures) {
+        this.dispatcher = dispatcher;
+        this.windowMillis = windowMillis;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.immediateFailures = immediateFailures;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Flowdock notification coalescer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Adds the notification to its batch, or dispatches it right away if it should
+     * not wait. Notifications with a chat message are never held back, nor are the
+     * ones added after {@link #shutdown()}.
+     *
+     * @return false if the notification, or the batch it completed, was dispatched and
+     *     dropped because the queue is full.
+     */
+    public boolean add(FlowdockNotification notification) {
+        if(isUrgent(notification)) {
+            return dispatcher.dispatch(notification);
+        }
+
+        String key = notification.getApiUrl() + "\n" + notification.getFlowToken() + "\n" +
+            notification.getTeamInboxMessage().getTags();
+        List<FlowdockNotification> full = null;
+        synchronized(this) {
+            if(timer.isShutdown()) {
+                // the batches have been sent already, nothing would flush a new one
+                full = new ArrayList<FlowdockNotification>(1);
+                full.add(notification);
+            } else {
+                List<FlowdockNotification> batch = batches.get(key);
+                if(batch == null) {
+                    batch = new ArrayList<FlowdockNotification>();
+                    batches.put(key, batch);
+                    timer.schedule(new Flush(key, batch), windowMillis, TimeUnit.MILLISECONDS);
+                }
+                batch.add(notification);
+                if(batch.size() >= maxBatch) {
+                    batches.remove(key);
+                    full = batch;
+                }
+            }
+        }
+        return full == null || send(full);
+    }
+
+    /**
+     * Sends all batches right away and stops the timer.
+     */
+    public void shutdown() {
+        List<List<FlowdockNotification>> pending;
+        synchronized(this) {
+            timer.shutdownNow();
+            pending = new ArrayList<List<FlowdockNotification>>(batches.values());
+            batches.clear();
+        }
+        for(List<FlowdockNotification> batch : pending) {
+            send(batch);
+        }
+    }
+
+    private boolean isUrgent(FlowdockNotification notification) {
+        if(notification.getChatMessage() != null)
+            return true;
+        BuildResult result = notification.getBuildResult();
+        return immediateFailures && (result == BuildResult.FAILURE || result == BuildResult.UNSTABLE);
+    }
+
+    /**
+     * Dispatches the batch. A rejected batch has been reported as dropped and
+     * completed by the dispatcher, so only the loss is logged here.
+     *
+     * @return false if the batch was dropped because the queue is full.
+     */
+    private boolean send(List<FlowdockNotification> batch) {
+        FlowdockNotification notification = batch.size() == 1 ? batch.get(0) : FlowdockNotification.digest(batch);
+        if(!dispatcher.dispatch(notification)) {
+            LOGGER.warning("Flowdock dispatch queue is full, dropped " + batch.size() + " held back notifications");
+            return false;
+        }
+        return true;
+    }
+
+    private class Flush implements Runnable {
+        private final String key;
+        private final List<FlowdockNotification> batch;
+
+        Flush(String key, List<FlowdockNotification> batch) {
+            this.key = key;
+            this.batch = batch;
+        }
+
+        public void run() {
+            synchronized(NotificationCoalescer.this) {
+                // the batch may have been sent already because it filled up
+                if(batches.get(key) != batch)
+                    return;
+                batches.remove(key);
+            }
+            send(batch);
+        }
+    }
+}
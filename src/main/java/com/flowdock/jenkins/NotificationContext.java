@@ -0,0 +1,325 @@
+package com.flowdock.jenkins;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.ChangeLogSet.Entry;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What the messages of one notification are rendered from, captured once per build.
+ * The names, links and result are read when the context is created. The environment,
+ * which runs every EnvironmentContributor, and the change set are only read when a
+ * message first needs them, and then reused by all messages and flows. Once populated
+ * nothing in the context changes, so it can be handed to other threads.
+ */
+public final class NotificationContext {
+    private static final Logger LOGGER = Logger.getLogger(NotificationContext.class.getName());
+
+    private final AbstractBuild build;
+    private final TaskListener listener;
+    private final BuildResult buildResult;
+    private final Result result;
+    private final String projectName;
+    private final String configuration;
+    private final String configurationName;
+    private final String displayName;
+    private final String buildNumber;
+    private final String fullDisplayName;
+    private final String buildLink;
+
+    private EnvVars environment;
+    // the newest commits of the build, up to the largest limit asked for so far
+    private List<Entry> commits;
+    private int commitsLimit;
+    private int commitCount;
+    private List<Change> buildChanges;
+    private List<Change> earlierChanges;
+    private int earlierCount;
+    private List<String> logExcerpt;
+    private TestSummary testSummary;
+    private boolean testSummaryRead;
+    private final Map<String, String> expanded = new HashMap<String, String>();
+
+    private NotificationContext(AbstractBuild build, TaskListener listener, BuildResult buildResult,
+        EnvVars environment, String rootUrl, List<Change> earlierChanges) {
+        this.build = build;
+        this.earlierChanges = earlierChanges;
+        this.earlierCount = earlierChanges.size();
+        this.listener = listener;
+        this.buildResult = buildResult;
+        this.environment = environment;
+        this.result = build.getResult();
+
+        AbstractProject project = build.getProject();
+        AbstractProject rootProject = project.getRootProject();
+        if(rootProject != project) {
+            this.projectName = rootProject.getDisplayName();
+            this.configurationName = project.getDisplayName();
+            this.configuration = " on " + configurationName;
+        } else {
+            this.projectName = project.getDisplayName();
+            this.configurationName = "";
+            this.configuration = "";
+        }
+        this.displayName = build.getDisplayName();
+        this.buildNumber = withoutHash(displayName);
+        this.fullDisplayName = build.getFullDisplayName();
+        this.buildLink = rootUrl == null ? null : rootUrl + build.getUrl();
+    }
+
+    public static NotificationContext of(AbstractBuild build, BuildResult buildResult, TaskListener listener) {
+        return of(build, buildResult, listener, Collections.<Change>emptyList());
+    }
+
+    /**
+     * @param earlierChanges commits of the earlier builds since the last successful build,
+     *     listed after the commits of this build.
+     */
+    public static NotificationContext of(AbstractBuild build, BuildResult buildResult, TaskListener listener,
+        List<Change> earlierChanges) {
+        return new NotificationContext(build, listener, buildResult, null, FlowdockMessage.rootUrl(), earlierChanges);
+    }
+
+    /**
+     * A context with an already resolved environment and root URL, which needs nothing
+     * from the running Jenkins instance.
+     *
+     * @param rootUrl root URL of Jenkins, or null if not configured.
+     */
+    public static NotificationContext of(AbstractBuild build, BuildResult buildResult, EnvVars environment,
+        String rootUrl) {
+        return new NotificationContext(build, null, buildResult, environment, rootUrl, Collections.<Change>emptyList());
+    }
+
+    public AbstractBuild getBuild() {
+        return build;
+    }
+
+    public BuildResult getBuildResult() {
+        return buildResult;
+    }
+
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * @return the display name of the project, or of the matrix project of a configuration.
+     */
+    public String getProjectName() {
+        return projectName;
+    }
+
+    /**
+     * @return " on " and the configuration for a matrix configuration, otherwise empty.
+     */
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return the name of the matrix configuration, otherwise empty.
+     */
+    public String getConfigurationName() {
+        return configurationName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @return the build number without the "#".
+     */
+    public String getBuildNumber() {
+        return buildNumber;
+    }
+
+    private static String withoutHash(String name) {
+        if(name.indexOf('#') < 0)
+            return name;
+        StringBuilder stripped = new StringBuilder(name.length());
+        for(int i = 0; i < name.length(); i++) {
+            if(name.charAt(i) != '#')
+                stripped.append(name.charAt(i));
+        }
+        return stripped.toString();
+    }
+
+    public String getFullDisplayName() {
+        return fullDisplayName;
+    }
+
+    /**
+     * @return the URL of the build, or null if the Jenkins root URL is not configured.
+     */
+    public String getBuildLink() {
+        return buildLink;
+    }
+
+    public synchronized EnvVars getEnvironment() throws IOException, InterruptedException {
+        if(environment == null) {
+            environment = build.getEnvironment(listener);
+        }
+        return environment;
+    }
+
+    /**
+     * Expands the build variables in the value, e.g. in the notification tags.
+     */
+    public synchronized String expand(String value) throws IOException, InterruptedException {
+        if(value == null)
+            return null;
+        String expandedValue = expanded.get(value);
+        if(expandedValue == null) {
+            expandedValue = getEnvironment().expand(value);
+            expanded.put(value, expandedValue);
+        }
+        return expandedValue;
+    }
+
+    /**
+     * @return the end of the console log of a failed or unstable build, or an empty list
+     *     for other builds or if the log cannot be read.
+     */
+    public synchronized List<String> getLogExcerpt(LogExcerpt excerpt) {
+        if(logExcerpt == null) {
+            logExcerpt = Collections.emptyList();
+            if(excerpt != null && (buildResult == BuildResult.FAILURE || buildResult == BuildResult.UNSTABLE)) {
+                try {
+                    logExcerpt = Collections.unmodifiableList(excerpt.read(build.getLogFile()));
+                } catch(IOException ex) {
+                    LOGGER.log(Level.FINE, "Failed to read the console log of " + fullDisplayName, ex);
+                }
+            }
+        }
+        return logExcerpt;
+    }
+
+    /**
+     * @return the test results of the build, or null if it has none or no report is wanted.
+     */
+    public synchronized TestSummary getTestSummary(TestReport report) {
+        if(!testSummaryRead) {
+            testSummaryRead = true;
+            if(report != null)
+                testSummary = report.summarize(build);
+        }
+        return testSummary;
+    }
+
+    /**
+     * @return the newest commits of the build, at most the given number, newest first.
+     */
+    public synchronized List<Entry> getCommits(int limit) {
+        if(commits == null || limit > commitsLimit && commitCount > commits.size())
+            readCommits(limit);
+        return commits.size() > limit ? commits.subList(0, limit) : commits;
+    }
+
+    /**
+     * @return the number of commits of the build, including those not collected.
+     */
+    public synchronized int getCommitCount() {
+        if(commits == null)
+            readCommits(0);
+        return commitCount;
+    }
+
+    /**
+     * Keeps the newest commits of the change set and only counts the others, so a
+     * build with a huge change set doesn't fill the memory with them.
+     */
+    private void readCommits(int limit) {
+        ArrayDeque<Entry> newest = new ArrayDeque<Entry>(Math.min(limit, 64) + 1);
+        int count = 0;
+        ChangeLogSet<? extends Entry> changeSet = build.getChangeSet();
+        if(changeSet != null) {
+            // the change set lists the oldest commit first
+            for(Entry entry : changeSet) {
+                count++;
+                if(limit <= 0)
+                    continue;
+                if(newest.size() == limit)
+                    newest.removeFirst();
+                newest.addLast(entry);
+            }
+        }
+        List<Entry> read = new ArrayList<Entry>(newest.size());
+        for(Iterator<Entry> it = newest.descendingIterator(); it.hasNext(); ) {
+            read.add(it.next());
+        }
+        commits = Collections.unmodifiableList(read);
+        commitsLimit = limit;
+        commitCount = count;
+        buildChanges = null;
+    }
+
+    /**
+     * @return the newest commits of this build, at most the given number, newest first.
+     */
+    public synchronized List<Change> getBuildChanges(int limit) {
+        List<Entry> buildCommits = getCommits(limit);
+        if(buildChanges == null) {
+            List<Change> parsed = new ArrayList<Change>(commits.size());
+            int number = build.getNumber();
+            for(Entry commit : commits) {
+                parsed.add(Change.fromEntry(commit, number));
+            }
+            buildChanges = Collections.unmodifiableList(parsed);
+        }
+        return buildChanges.subList(0, buildCommits.size());
+    }
+
+    /**
+     * @return the newest commits of this build followed by those of the earlier builds
+     *     since the last successful build, at most the given number, newest first.
+     */
+    public synchronized List<Change> getChanges(int limit) {
+        List<Change> all = new ArrayList<Change>(getBuildChanges(limit));
+        for(Change change : earlierChanges) {
+            if(all.size() >= limit)
+                break;
+            all.add(change);
+        }
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * @return the number of commits of this build and the earlier builds since the last
+     *     successful build.
+     */
+    public synchronized int getChangeCount() {
+        return getCommitCount() + earlierCount;
+    }
+
+    /**
+     * Sets the commits of the earlier builds once they are known, e.g. after recording
+     * the commits of this build in the change index.
+     */
+    synchronized void setEarlierChanges(ChangeIndex.EarlierChanges earlier) {
+        this.earlierChanges = earlier.getChanges();
+        this.earlierCount = earlier.getCount();
+    }
+
+    /**
+     * @return true if the changes include commits of earlier builds.
+     */
+    public synchronized boolean hasEarlierChanges() {
+        return !earlierChanges.isEmpty();
+    }
+}
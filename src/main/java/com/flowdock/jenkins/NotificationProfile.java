@@ -0,0 +1,99 @@
+package com.flowdock.jenkins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.EnumSet;
+
+/**
+ * Where and when to send notifications. Profiles are defined once in the global
+ * configuration and referenced from jobs by name, so that changing a profile changes
+ * every job using it. A job without a profile has its own settings in the same form.
+ */
+public class NotificationProfile {
+    private final String name;
+    private final String flowToken;
+    private final String notificationTags;
+    private final boolean chatNotification;
+    private final boolean notifyStateChangeOnly;
+    private final EnumSet<BuildResult> results;
+
+    @DataBoundConstructor
+    public NotificationProfile(String name, String flowToken, String notificationTags, boolean chatNotification,
+        boolean notifySuccess, boolean notifyFailure, boolean notifyFixed, boolean notifyUnstable,
+        boolean notifyAborted, boolean notifyNotBuilt, boolean notifyStateChangeOnly) {
+        this(name, flowToken, notificationTags, chatNotification, notifyStateChangeOnly,
+            results(notifySuccess, notifyFailure, notifyFixed, notifyUnstable, notifyAborted, notifyNotBuilt));
+    }
+
+    NotificationProfile(String name, String flowToken, String notificationTags, boolean chatNotification,
+        boolean notifyStateChangeOnly, EnumSet<BuildResult> results) {
+        this.name = name == null ? null : name.trim();
+        this.flowToken = flowToken;
+        this.notificationTags = notificationTags;
+        this.chatNotification = chatNotification;
+        this.notifyStateChangeOnly = notifyStateChangeOnly;
+        this.results = results;
+    }
+
+    static EnumSet<BuildResult> results(boolean success, boolean failure, boolean fixed, boolean unstable,
+        boolean aborted, boolean notBuilt) {
+        EnumSet<BuildResult> results = EnumSet.noneOf(BuildResult.class);
+        if(success) results.add(BuildResult.SUCCESS);
+        if(failure) results.add(BuildResult.FAILURE);
+        if(fixed) results.add(BuildResult.FIXED);
+        if(unstable) results.add(BuildResult.UNSTABLE);
+        if(aborted) results.add(BuildResult.ABORTED);
+        if(notBuilt) results.add(BuildResult.NOT_BUILT);
+        return results;
+    }
+
+    /**
+     * @return the name jobs refer to the profile with, or null for the settings of a single job.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getFlowToken() {
+        return flowToken;
+    }
+
+    public String getNotificationTags() {
+        return notificationTags;
+    }
+
+    public boolean getChatNotification() {
+        return chatNotification;
+    }
+
+    public boolean getNotifyStateChangeOnly() {
+        return notifyStateChangeOnly;
+    }
+
+    NotificationProfile withNotifyStateChangeOnly(boolean notifyStateChangeOnly) {
+        return new NotificationProfile(name, flowToken, notificationTags, chatNotification, notifyStateChangeOnly, results);
+    }
+
+    public boolean shouldNotify(BuildResult result) {
+        return results.contains(result);
+    }
+
+    public boolean getNotifySuccess() {
+        return results.contains(BuildResult.SUCCESS);
+    }
+    public boolean getNotifyFailure() {
+        return results.contains(BuildResult.FAILURE);
+    }
+    public boolean getNotifyFixed() {
+        return results.contains(BuildResult.FIXED);
+    }
+    public boolean getNotifyUnstable() {
+        return results.contains(BuildResult.UNSTABLE);
+    }
+    public boolean getNotifyAborted() {
+        return results.contains(BuildResult.ABORTED);
+    }
+    public boolean getNotifyNotBuilt() {
+        return results.contains(BuildResult.NOT_BUILT);
+    }
+}
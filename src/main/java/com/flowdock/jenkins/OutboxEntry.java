@@ -0,0 +1,67 @@
+package com.flowdock.jenkins;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single encoded post to one flow, recorded in the {@link FlowdockOutbox} until
+ * Flowdock has accepted it.
+ */
+public final class OutboxEntry {
+    private final long id;
+    private final String apiUrl;
+    private final String flowToken;
+    private final String path;
+    private final byte[] data;
+    private final long created;
+
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    OutboxEntry(long id, String apiUrl, String flowToken, String path, byte[] data, long created) {
+        this.id = id;
+        this.apiUrl = apiUrl;
+        this.flowToken = flowToken;
+        this.path = path;
+        this.data = data;
+        this.created = created;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getApiUrl() {
+        return apiUrl;
+    }
+
+    public String getFlowToken() {
+        return flowToken;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the form encoded post data, which must not be modified.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Marks the entry as being sent, so that it's not picked up by another sender.
+     *
+     * @return false if somebody else is already sending the entry.
+     */
+    boolean claim() {
+        return claimed.compareAndSet(false, true);
+    }
+
+    void release() {
+        claimed.set(false);
+    }
+}
@@ -0,0 +1,20 @@
+package com.flowdock.jenkins;
+
+/**
+ * What the dispatcher does with a notification when its queue is full.
+ */
+public enum OverflowPolicy {
+    DISCARD_NEWEST("Drop the new notification"),
+    DISCARD_OLDEST("Drop the oldest queued notification"),
+    SEND_IN_CALLER("Send the new notification from the build thread");
+
+    private String description;
+
+    private OverflowPolicy(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
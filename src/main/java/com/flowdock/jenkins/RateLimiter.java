@@ -0,0 +1,165 @@
+package com.flowdock.jenkins;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out the requests to Flowdock with token buckets, one shared by all flows and
+ * one for each flow. Each request reserves the next free slot of both buckets, so
+ * that concurrent senders are queued evenly instead of bursting.
+ *
+ * When Flowdock answers 429, the flow is paused for the time given in Retry-After and
+ * its rate is halved. The rate then grows back towards the configured limit with
+ * every accepted request.
+ */
+public class RateLimiter {
+    public static final int DEFAULT_GLOBAL_LIMIT = 600;
+    public static final int DEFAULT_FLOW_LIMIT = 60;
+
+    private final TokenBucket global;
+    private final int flowLimit;
+    private final ConcurrentMap<String, TokenBucket> flows = new ConcurrentHashMap<String, TokenBucket>();
+
+    /**
+     * @param globalLimit requests per minute to all flows, 0 for no limit.
+     * @param flowLimit requests per minute to a single flow, 0 for no limit.
+     */
+    public RateLimiter(int globalLimit, int flowLimit) {
+        this.global = globalLimit > 0 ? new TokenBucket(globalLimit) : null;
+        this.flowLimit = flowLimit;
+    }
+
+    /**
+     * Waits until a request to the flow may be sent.
+     *
+     * @throws IOException if the request could not be sent before the deadline.
+     */
+    public void acquire(String flowToken, long deadline) throws IOException {
+        TokenBucket flow = flowBucket(flowToken);
+        // after creating the bucket, which starts at the current time
+        long now = System.nanoTime();
+        long wait = 0L;
+        if(flow != null)
+            wait = flow.reserve(now);
+        if(global != null)
+            wait = Math.max(wait, global.reserve(now));
+        if(wait == 0L)
+            return;
+
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(wait);
+        if(System.currentTimeMillis() + waitMillis >= deadline) {
+            // the request won't be sent, don't hold up the senders behind it
+            if(flow != null)
+                flow.refund();
+            if(global != null)
+                global.refund();
+            throw new IOException("Flowdock rate limit reached, the request could not be sent in time");
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the Flowdock rate limit");
+        }
+    }
+
+    /**
+     * Records a 429 response for the flow.
+     *
+     * @param retryAfterMillis time to wait before the next request, -1 if not given.
+     */
+    public void throttled(String flowToken, long retryAfterMillis) {
+        TokenBucket flow = flowBucket(flowToken);
+        if(flow != null) {
+            flow.throttle(retryAfterMillis);
+        } else if(global != null) {
+            global.throttle(retryAfterMillis);
+        }
+    }
+
+    public void accepted(String flowToken) {
+        TokenBucket flow = flowBucket(flowToken);
+        if(flow != null)
+            flow.recover();
+    }
+
+    private TokenBucket flowBucket(String flowToken) {
+        if(flowLimit <= 0)
+            return null;
+        TokenBucket bucket = flows.get(flowToken);
+        if(bucket == null) {
+            TokenBucket created = new TokenBucket(flowLimit);
+            bucket = flows.putIfAbsent(flowToken, created);
+            if(bucket == null)
+                bucket = created;
+        }
+        return bucket;
+    }
+
+    static class TokenBucket {
+        private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+        private final long minInterval;
+        private final long maxInterval;
+        private final double burst;
+        private long interval;
+        private double stored;
+        private long next;
+
+        TokenBucket(int perMinute) {
+            this.minInterval = MINUTE / perMinute;
+            this.maxInterval = MINUTE;
+            // allow a second's worth of requests to go out without waiting
+            this.burst = Math.max(1.0, perMinute / 60.0);
+            this.interval = minInterval;
+            this.stored = burst;
+            this.next = System.nanoTime();
+        }
+
+        /**
+         * Reserves the next request slot.
+         *
+         * @return nanoseconds to wait before sending the request.
+         */
+        synchronized long reserve(long now) {
+            if(now > next) {
+                stored = Math.min(burst, stored + (double)(now - next) / interval);
+                next = now;
+            }
+            if(stored >= 1.0) {
+                // a refunded slot is not used before the slots already reserved
+                stored -= 1.0;
+                return Math.max(0L, next - now);
+            }
+            // the slot comes once the rest of a token has been added after the slots already reserved
+            next += (long)((1.0 - stored) * interval);
+            stored = 0.0;
+            return next - now;
+        }
+
+        /**
+         * Gives back a slot reserved with {@link #reserve} that won't be used.
+         */
+        synchronized void refund() {
+            stored = Math.min(burst, stored + 1.0);
+        }
+
+        synchronized void throttle(long retryAfterMillis) {
+            interval = Math.min(maxInterval, interval * 2);
+            stored = 0.0;
+            long now = System.nanoTime();
+            long until = now + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, retryAfterMillis));
+            // the next slot is an interval after next
+            next = Math.max(next, Math.max(until, now + interval) - interval);
+        }
+
+        synchronized void recover() {
+            if(interval > minInterval) {
+                interval = Math.max(minInterval, interval - interval / 10);
+            }
+        }
+    }
+}
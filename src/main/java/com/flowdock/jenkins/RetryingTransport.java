@@ -0,0 +1,153 @@
+package com.flowdock.jenkins;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Transport sending the requests through another transport, retrying I/O errors,
+ * 429 and 5xx responses with exponential backoff and jitter until the message
+ * deadline. Each API endpoint has a {@link CircuitBreaker}, so that requests fail
+ * fast while Flowdock is down. Requests are spaced out by a {@link RateLimiter}, which
+ * also takes care of waiting as long as a 429 response asks.
+ */
+public class RetryingTransport implements FlowdockTransport {
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final int DEFAULT_DEADLINE = 120;
+    public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+    public static final int DEFAULT_BREAKER_OPEN = 60;
+
+    private static final long BASE_BACKOFF_MILLIS = 1000L;
+    private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+    private final FlowdockTransport delegate;
+    private final int maxRetries;
+    private final long deadlineMillis;
+    private final int breakerThreshold;
+    private final long breakerOpenMillis;
+    private final RateLimiter rateLimiter;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private final Random random = new Random();
+    private final DeliveryMetrics metrics = DeliveryMetrics.get();
+
+    /**
+     * @param deadlineMillis time after which a failed message is not retried anymore.
+     *     A single attempt is bounded by the connect and read timeouts of the delegate.
+     */
+    public RetryingTransport(FlowdockTransport delegate, int maxRetries, long deadlineMillis,
+        int breakerThreshold, long breakerOpenMillis) {
+        this(delegate, maxRetries, deadlineMillis, breakerThreshold, breakerOpenMillis, new RateLimiter(0, 0));
+    }
+
+    public RetryingTransport(FlowdockTransport delegate, int maxRetries, long deadlineMillis,
+        int breakerThreshold, long breakerOpenMillis, RateLimiter rateLimiter) {
+        this.delegate = delegate;
+        this.rateLimiter = rateLimiter;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.deadlineMillis = deadlineMillis;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerOpenMillis = breakerOpenMillis;
+    }
+
+    public FlowdockResponse post(URL url, byte[] data, int length) throws IOException {
+        CircuitBreaker breaker = breakerFor(url);
+        String flowToken = flowToken(url);
+        long deadline = System.currentTimeMillis() + deadlineMillis;
+        for(int attempt = 0; ; attempt++) {
+            // waiting for the rate limiter may fail, so it's done before a probe is taken
+            rateLimiter.acquire(flowToken, deadline);
+
+            if(!breaker.allowRequest()) {
+                metrics.recordRejectedByCircuitBreaker();
+                throw new IOException("Flowdock API at " + breaker.getName() +
+                    " is failing, not sending requests to it for a while: " + breaker.getLastFailure());
+            }
+
+            FlowdockResponse response = null;
+            IOException failure = null;
+            boolean settled = false;
+            metrics.recordAttempt(length, attempt > 0);
+            try {
+                response = delegate.post(url, data, length);
+                if(response.getStatus() >= 500) {
+                    breaker.recordFailure(response.getStatus() + " " + response.getMessage());
+                    settled = true;
+                } else {
+                    // a 429 means the endpoint is up, it just wants us to slow down
+                    breaker.recordSuccess();
+                    settled = true;
+                    if(response.getStatus() != 429) {
+                        rateLimiter.accepted(flowToken);
+                        return response;
+                    }
+                    metrics.recordThrottled();
+                    rateLimiter.throttled(flowToken, response.getRetryAfterMillis());
+                }
+            } catch(IOException ex) {
+                breaker.recordFailure(ex.toString());
+                settled = true;
+                failure = ex;
+            } finally {
+                // e.g. a RuntimeException of the delegate, the outcome of a probe is unknown
+                if(!settled)
+                    breaker.releaseProbe();
+            }
+
+            // after a 429 the rate limiter makes the next attempt wait as long as asked
+            long backoff = response != null && response.getStatus() == 429 ? 0L : backoff(attempt);
+            long retryAfter = response != null ? Math.max(0L, response.getRetryAfterMillis()) : 0L;
+            if(attempt >= maxRetries || System.currentTimeMillis() + Math.max(backoff, retryAfter) >= deadline) {
+                if(failure != null)
+                    throw failure;
+                return response;
+            }
+            sleep(backoff);
+        }
+    }
+
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return new ArrayList<CircuitBreaker>(breakers.values());
+    }
+
+    /**
+     * Flowdock push API URLs end with the flow token(s).
+     */
+    private static String flowToken(URL url) {
+        String path = url.getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private CircuitBreaker breakerFor(URL url) {
+        String endpoint = url.getProtocol() + "://" + url.getAuthority();
+        CircuitBreaker breaker = breakers.get(endpoint);
+        if(breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(endpoint, breakerThreshold, breakerOpenMillis);
+            breaker = breakers.putIfAbsent(endpoint, created);
+            if(breaker == null)
+                breaker = created;
+        }
+        return breaker;
+    }
+
+    /**
+     * Full jitter: a random delay up to the exponentially growing limit.
+     */
+    private long backoff(int attempt) {
+        long limit = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return (long)(random.nextDouble() * limit);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the Flowdock request");
+        }
+    }
+}
@@ -2,15 +2,18 @@ package com.flowdock.jenkins;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
 import java.io.IOException;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.EnvVars;
-import hudson.model.Hudson;
 import hudson.model.Result;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.ChangeLogSet.Entry;
-import java.io.UnsupportedEncodingException;
 import static org.apache.commons.lang.StringEscapeUtils.escapeHtml;
 
 public class TeamInboxMessage extends FlowdockMessage {
@@ -23,6 +26,10 @@ public class TeamInboxMessage extends FlowdockMessage {
     public static final String FLOWDOCK_BUILD_OK_EMAIL = "build+ok@flowdock.com";
     public static final String FLOWDOCK_BUILD_FAIL_EMAIL = "build+fail@flowdock.com";
 
+    public static final int DEFAULT_MAX_COMMITS = 100;
+    public static final int DEFAULT_MAX_CHANGES_BYTES = 64 * 1024;
+    private static final int MAX_SUMMARY_JOBS = 10;
+
     protected String source;
     protected String project;
     protected String subject;
@@ -60,93 +67,419 @@ public class TeamInboxMessage extends FlowdockMessage {
         this.fromName = fromName;
     }
 
-    public String asPostData() throws UnsupportedEncodingException {
-        StringBuilder postData = new StringBuilder();
-        postData.append("subject=").append(urlEncode(subject));
-        postData.append("&content=").append(urlEncode(content));
-        postData.append("&from_address=").append(urlEncode(fromAddress));
-        postData.append("&from_name=").append(urlEncode(fromName));
-        postData.append("&source=").append(urlEncode(source));
-        postData.append("&project=").append(urlEncode(project));
-        postData.append("&link=").append(urlEncode(link));
-        postData.append("&tags=").append(urlEncode(removeWhitespace(tags)));
-        return postData.toString();
+    public String getProject() {
+        return project;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getLink() {
+        return link;
+    }
+
+    public String getFromAddress() {
+        return fromAddress;
+    }
+
+    public void writePostData(FormEncoder encoder) {
+        encoder.field("subject", subject);
+        encoder.field("content", content);
+        encoder.field("from_address", fromAddress);
+        encoder.field("from_name", fromName);
+        encoder.field("source", source);
+        encoder.field("project", project);
+        encoder.field("link", link);
+        encoder.fieldWithoutWhitespace("tags", tags);
     }
 
     public static TeamInboxMessage fromBuild(AbstractBuild build, BuildResult buildResult, BuildListener listener) throws IOException, InterruptedException {
-        TeamInboxMessage msg = new TeamInboxMessage();
+        return fromBuild(build, buildResult, listener, DEFAULT_MAX_COMMITS, DEFAULT_MAX_CHANGES_BYTES);
+    }
 
-        String projectName = "";
-        String configuration = "";
-        if(build.getProject().getRootProject() != build.getProject()) {
-            projectName = build.getProject().getRootProject().getDisplayName();
-            configuration = " on " + build.getProject().getDisplayName();
-        } else {
-            projectName = build.getProject().getDisplayName();
+    /**
+     * @param maxCommits maximum number of commits listed in the message.
+     * @param maxChangesBytes maximum size of the list of commits in bytes.
+     */
+    public static TeamInboxMessage fromBuild(AbstractBuild build, BuildResult buildResult, BuildListener listener,
+        int maxCommits, int maxChangesBytes) throws IOException, InterruptedException {
+        return fromContext(NotificationContext.of(build, buildResult, listener), maxCommits, maxChangesBytes);
+    }
+
+    /**
+     * Renders the message from an already resolved environment and root URL, without
+     * looking anything up from the running Jenkins instance.
+     *
+     * @param rootUrl root URL of Jenkins, or null if not configured.
+     */
+    public static TeamInboxMessage fromBuild(AbstractBuild build, BuildResult buildResult, EnvVars envVars,
+        String rootUrl, int maxCommits, int maxChangesBytes) {
+        try {
+            return fromContext(NotificationContext.of(build, buildResult, envVars, rootUrl), maxCommits, maxChangesBytes);
+        } catch(IOException ex) {
+            throw new IllegalStateException("The environment was given, it is not read from the build", ex);
+        } catch(InterruptedException ex) {
+            throw new IllegalStateException("The environment was given, it is not read from the build", ex);
         }
+    }
+
+    /**
+     * @param maxCommits maximum number of commits listed in the message.
+     * @param maxChangesBytes maximum size of the list of commits in bytes.
+     */
+    public static TeamInboxMessage fromContext(NotificationContext context, int maxCommits, int maxChangesBytes)
+        throws IOException, InterruptedException {
+        return fromContext(context, null, null, null, maxCommits, maxChangesBytes);
+    }
+
+    /**
+     * @param templates templates of the subject and content, or null for the default format.
+     * @param logExcerpt how much of the console log of a failed build is included, or null for none.
+     * @param testReport how the test results are summarized, or null for none.
+     * @param maxCommits maximum number of commits listed in the message.
+     * @param maxChangesBytes maximum size of the list of commits in bytes.
+     */
+    public static TeamInboxMessage fromContext(NotificationContext context, MessageTemplates templates,
+        LogExcerpt logExcerpt, TestReport testReport, int maxCommits, int maxChangesBytes)
+        throws IOException, InterruptedException {
+        TeamInboxMessage msg = new TeamInboxMessage();
 
-        msg.setProject(projectName.replaceAll("[^a-zA-Z0-9\\-_ ]", ""));
-        String buildNo = build.getDisplayName().replaceAll("#", "");
-        msg.setSubject(projectName + " build " + buildNo + configuration + " " + buildResult.getHumanResult());
+        String projectName = context.getProjectName();
+        msg.setProject(projectTag(projectName));
 
-        String rootUrl = Hudson.getInstance().getRootUrl();
-        String buildLink = (rootUrl == null) ? null : rootUrl + build.getUrl();
+        String buildLink = context.getBuildLink();
         if(buildLink != null) msg.setLink(buildLink);
 
-        if(build.getResult().isWorseThan(Result.SUCCESS))
+        if(context.getResult().isWorseThan(Result.SUCCESS))
             msg.setFromAddress(FLOWDOCK_BUILD_FAIL_EMAIL);
 
+        ContextVariables variables = null;
+        if(templates != null && (templates.getSubject() != null || templates.getContent() != null))
+            variables = new ContextVariables(context, logExcerpt, testReport, maxCommits, maxChangesBytes);
+
+        if(templates != null && templates.getSubject() != null) {
+            msg.setSubject(MessageTemplate.compile(templates.getSubject(), MessageTemplate.Escaping.NONE).render(variables));
+        } else {
+            msg.setSubject(projectName + " build " + context.getBuildNumber() + context.getConfiguration() + " " +
+                context.getBuildResult().getHumanResult());
+        }
+
+        if(templates != null && templates.getContent() != null) {
+            msg.setContent(MessageTemplate.compile(templates.getContent(), MessageTemplate.Escaping.HTML).render(variables));
+        } else {
+            msg.setContent(defaultContent(context, logExcerpt, testReport, maxCommits, maxChangesBytes));
+        }
+
+        return msg;
+    }
+
+    private static String defaultContent(NotificationContext context, LogExcerpt logExcerpt, TestReport testReport,
+        int maxCommits, int maxChangesBytes) throws IOException, InterruptedException {
+        String buildLink = context.getBuildLink();
+
         StringBuilder content = new StringBuilder();
-        content.append("<h3>").append(projectName).append("</h3>");
-        content.append("Build: ").append(build.getDisplayName()).append("<br />");
-        content.append("Result: <strong>").append(buildResult.toString()).append("</strong><br />");
+        content.append("<h3>").append(escapeHtml(context.getProjectName())).append("</h3>");
+        content.append("Build: ").append(escapeHtml(context.getDisplayName())).append("<br />");
+        content.append("Result: <strong>").append(context.getBuildResult().toString()).append("</strong><br />");
+        TestSummary tests = context.getTestSummary(testReport);
+        if(tests != null && tests.getTotal() > 0)
+            content.append("Tests: ").append(tests.getCounts()).append("<br />");
         if(buildLink != null)
-            content.append("URL: <a href=\"").append(buildLink).append("\">").append(build.getFullDisplayName()).append("</a>").append("<br />");
+            content.append("URL: <a href=\"").append(buildLink).append("\">").append(escapeHtml(context.getFullDisplayName())).append("</a>").append("<br />");
 
-        EnvVars envVars = build.getEnvironment(listener);
-        String vcsInfo = versionControlVariableList(envVars);
+        String vcsInfo = versionControlVariableList(context.getEnvironment());
         if(vcsInfo.length() > 0) {
             content.append("<br /><strong>Version control:</strong><br />");
             content.append(vcsInfo);
             content.append("<br/>");
         }
 
-        List<Entry> commits = parseCommits(build);
-        if(commits != null) {
-            content.append("<h3>Changes</h3><div class=\"commits\"><ul class=\"commit-list clean\">");
-            for(Entry commit : commits) {
-                content.append("<li class=\"commit\"><span class=\"commit-details\">");
-                content.append("<span class=\"author-info\">").
-                    append("<span>").append(commit.getAuthor()).append("</span>").
-                append("</span> &nbsp;");
-                content.append("<span title=\"" + commitId(commit) + "\" class=\"commit-sha\">").
-                    append(commitId(commit, 7)).
-                append("</span> &nbsp;");
-                content.append("<span class=\"commit-message\">").append(escapeHtml(commit.getMsg())).append("</span>");
-                content.append("</span></li>");
+        if(tests != null && !tests.getFailures().isEmpty()) {
+            content.append("<h3>Failed tests</h3>");
+            appendFailedTests(content, tests);
+        }
+
+        if(context.getChangeCount() > 0) {
+            appendCommits(content, context, maxCommits, maxChangesBytes);
+        }
+
+        List<String> logLines = context.getLogExcerpt(logExcerpt);
+        if(!logLines.isEmpty()) {
+            content.append("<h3>Console output</h3>");
+            appendLogExcerpt(content, logLines);
+        }
+
+        return content.toString();
+    }
+
+    /**
+     * @return the project name without the characters Flowdock doesn't allow in a project.
+     */
+    static String projectTag(String projectName) {
+        StringBuilder project = new StringBuilder(projectName.length());
+        for(int i = 0; i < projectName.length(); i++) {
+            char c = projectName.charAt(i);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '-' || c == '_' || c == ' ')
+                project.append(c);
+        }
+        return project.toString();
+    }
+
+    /**
+     * Builds a single message listing the builds of the given notifications.
+     */
+    public static TeamInboxMessage digest(List<FlowdockNotification> notifications) {
+        TeamInboxMessage msg = new TeamInboxMessage();
+        TeamInboxMessage first = notifications.get(0).getTeamInboxMessage();
+        msg.setTags(first.getTags());
+        String project = first.getProject();
+
+        Map<BuildResult, Integer> results = new EnumMap<BuildResult, Integer>(BuildResult.class);
+        StringBuilder content = new StringBuilder();
+        content.append("<ul>");
+        for(FlowdockNotification notification : notifications) {
+            TeamInboxMessage part = notification.getTeamInboxMessage();
+            if(project != null && !project.equals(part.getProject()))
+                project = null;
+            if(FLOWDOCK_BUILD_FAIL_EMAIL.equals(part.getFromAddress()))
+                msg.setFromAddress(FLOWDOCK_BUILD_FAIL_EMAIL);
+
+            BuildResult result = notification.getBuildResult();
+            if(result != null) {
+                Integer count = results.get(result);
+                results.put(result, count == null ? 1 : count + 1);
+            }
+
+            content.append("<li>");
+            if(part.getLink() != null) {
+                content.append("<a href=\"").append(part.getLink()).append("\">")
+                    .append(escapeHtml(part.getSubject())).append("</a>");
+            } else {
+                content.append(escapeHtml(part.getSubject()));
             }
-            content.append("</ul></div>");
+            content.append("</li>");
         }
+        content.append("</ul>");
 
+        StringBuilder subject = new StringBuilder();
+        subject.append(notifications.size()).append(" builds finished");
+        String separator = ": ";
+        for(Map.Entry<BuildResult, Integer> result : results.entrySet()) {
+            subject.append(separator).append(result.getValue()).append(" ").append(result.getKey().toString());
+            separator = ", ";
+        }
+
+        msg.setProject(project);
+        msg.setSubject(subject.toString());
         msg.setContent(content.toString());
+        return msg;
+    }
+
+    /**
+     * Builds the notice sent instead of the notifications of a job that started or
+     * stopped flapping.
+     *
+     * @param flapping true if the job started flapping, false if it is stable again.
+     * @param flips number of result flips among the recent results.
+     * @param results number of recent results.
+     */
+    public static TeamInboxMessage flapNotice(NotificationContext context, boolean flapping, int flips, int results) {
+        TeamInboxMessage msg = new TeamInboxMessage();
+        String projectName = context.getProjectName();
+        msg.setProject(projectTag(projectName));
+        String buildLink = context.getBuildLink();
+        if(buildLink != null) msg.setLink(buildLink);
+        if(flapping || context.getResult().isWorseThan(Result.SUCCESS))
+            msg.setFromAddress(FLOWDOCK_BUILD_FAIL_EMAIL);
+
+        StringBuilder content = new StringBuilder();
+        content.append("<h3>").append(escapeHtml(projectName)).append("</h3>");
+        if(flapping) {
+            msg.setSubject(projectName + " is flapping");
+            content.append("The result changed ").append(flips).append(" times in the last ").append(results)
+                .append(" builds. Notifications of the job are paused until its results are stable.<br />");
+        } else {
+            msg.setSubject(projectName + " is stable again");
+            content.append("The results are stable again, notifications of the job are resumed.<br />");
+        }
+        content.append("Build: ").append(escapeHtml(context.getDisplayName())).append("<br />");
+        content.append("Result: <strong>").append(context.getBuildResult().toString()).append("</strong><br />");
+        if(buildLink != null)
+            content.append("URL: <a href=\"").append(buildLink).append("\">").append(escapeHtml(context.getFullDisplayName())).append("</a>").append("<br />");
+        msg.setContent(content.toString());
+        return msg;
+    }
+
+    /**
+     * Builds the periodic summary of the given jobs: their success rate, the 95th
+     * percentile of their build durations and the jobs with the most failures.
+     */
+    public static TeamInboxMessage summary(BuildStats.Window window, List<BuildStats.JobStats> jobs) {
+        long builds = 0;
+        long successes = 0;
+        long transitions = 0;
+        LatencyHistogram durations = new LatencyHistogram("summary");
+        List<BuildStats.JobStats> failing = new ArrayList<BuildStats.JobStats>();
+        for(BuildStats.JobStats job : jobs) {
+            builds += job.getBuilds();
+            successes += job.getSuccesses();
+            transitions += job.getTransitions();
+            durations.addBuckets(job.getDurations().bucketsToString());
+            if(job.getFailures() > 0)
+                failing.add(job);
+        }
+        Collections.sort(failing, new Comparator<BuildStats.JobStats>() {
+            public int compare(BuildStats.JobStats a, BuildStats.JobStats b) {
+                return a.getFailures() == b.getFailures() ? a.getName().compareTo(b.getName()) :
+                    a.getFailures() > b.getFailures() ? -1 : 1;
+            }
+        });
+
+        long minutes = Math.max(1L, (window.getEnd() - window.getStart()) / 60000L);
+        String successRate = builds == 0 ? "-" : String.format(Locale.ENGLISH, "%.1f%%", 100.0 * successes / builds);
+
+        TeamInboxMessage msg = new TeamInboxMessage();
+        msg.setSubject(builds + " builds in the last " + durationString(minutes * 60000L) + ", " +
+            successRate + " successful");
+        if(successes < builds)
+            msg.setFromAddress(FLOWDOCK_BUILD_FAIL_EMAIL);
 
+        StringBuilder content = new StringBuilder();
+        content.append("Builds: ").append(builds).append("<br />");
+        content.append("Successful: ").append(successRate).append("<br />");
+        content.append("Duration (95th percentile): ")
+            .append(durationString(durations.getPercentileMicros(0.95) / 1000L)).append("<br />");
+        if(transitions > 0)
+            content.append("Result changes: ").append(transitions).append("<br />");
+
+        if(!failing.isEmpty()) {
+            content.append("<h3>Top failing jobs</h3><ul>");
+            for(BuildStats.JobStats job : failing.subList(0, Math.min(MAX_SUMMARY_JOBS, failing.size()))) {
+                content.append("<li>").append(escapeHtml(job.getName())).append(": ")
+                    .append(job.getFailures()).append(" of ").append(job.getBuilds()).append(" failed");
+                if(job.getTransitions() > 0)
+                    content.append(", result changed ").append(job.getTransitions()).append(" times");
+                content.append("</li>");
+            }
+            content.append("</ul>");
+            if(failing.size() > MAX_SUMMARY_JOBS)
+                content.append("and ").append(failing.size() - MAX_SUMMARY_JOBS).append(" more failing jobs");
+        }
+        msg.setContent(content.toString());
         return msg;
     }
 
+    /**
+     * @return e.g. "45 s", "12 min" or "1 h 30 min".
+     */
+    static String durationString(long millis) {
+        long seconds = millis / 1000L;
+        if(seconds < 60)
+            return seconds + " s";
+        long minutes = seconds / 60;
+        if(minutes < 60)
+            return minutes + " min" + (minutes < 10 && seconds % 60 > 0 ? " " + seconds % 60 + " s" : "");
+        return minutes / 60 + " h" + (minutes % 60 > 0 ? " " + minutes % 60 + " min" : "");
+    }
+
+    /**
+     * Lists the commits, newest first, until either limit is reached. The rest of the
+     * commits are only counted.
+     */
+    static void appendCommits(StringBuilder content, NotificationContext context, int maxCommits, int maxBytes) {
+        List<Change> changes = context.getChanges(maxCommits);
+        content.append(context.hasEarlierChanges() ? "<h3>Changes since the last successful build</h3>" : "<h3>Changes</h3>");
+        content.append("<div class=\"commits\"><ul class=\"commit-list clean\">");
+        int listed = 0;
+        int bytes = 0;
+        int number = context.getBuild().getNumber();
+        for(Change change : changes) {
+            if(listed >= maxCommits)
+                break;
+            int start = content.length();
+            content.append("<li class=\"commit\"><span class=\"commit-details\">");
+            content.append("<span class=\"author-info\">").
+                append("<span>").append(escapeHtml(change.getAuthor())).append("</span>").
+            append("</span> &nbsp;");
+            content.append("<span title=\"").append(escapeHtml(commitId(change))).append("\" class=\"commit-sha\">").
+                append(escapeHtml(commitId(change, 7))).
+            append("</span> &nbsp;");
+            content.append("<span class=\"commit-message\">").append(escapeHtml(change.getMessage())).append("</span>");
+            if(change.getBuild() != number)
+                content.append(" <span class=\"commit-build\">(#").append(change.getBuild()).append(")</span>");
+            content.append("</span></li>");
+
+            bytes += utf8Length(content, start);
+            if(bytes > maxBytes) {
+                content.setLength(start);
+                break;
+            }
+            listed++;
+        }
+        content.append("</ul>");
+        if(listed < context.getChangeCount()) {
+            int more = context.getChangeCount() - listed;
+            content.append("<p>+").append(more).append(more == 1 ? " more commit" : " more commits").append("</p>");
+        }
+        content.append("</div>");
+    }
+
+    static void appendFailedTests(StringBuilder content, TestSummary tests) {
+        content.append("<ul>");
+        for(TestSummary.FailedTest test : tests.getFailures()) {
+            content.append("<li>").append(escapeHtml(test.getName()))
+                .append(" (").append(test.getDurationString()).append(")</li>");
+        }
+        content.append("</ul>");
+        int more = tests.getFailed() - tests.getFailures().size();
+        if(more > 0)
+            content.append("<p>+").append(more).append(more == 1 ? " more failed test" : " more failed tests").append("</p>");
+    }
+
+    static void appendLogExcerpt(StringBuilder content, List<String> lines) {
+        content.append("<pre>");
+        for(String line : lines) {
+            MessageTemplate.escape(line, MessageTemplate.Escaping.HTML, content);
+            content.append('\n');
+        }
+        content.append("</pre>");
+    }
+
+    static int utf8Length(CharSequence chars, int start) {
+        int length = 0;
+        for(int i = start; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if(c < 0x80) {
+                length++;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
     public static List<Entry> parseCommits(AbstractBuild build) {
         final ChangeLogSet<? extends Entry> cs = build.getChangeSet();
         if(cs == null || cs.isEmptySet())
             return null;
 
-        List<Entry> commits = new ArrayList();
+        List<Entry> commits = new ArrayList<Entry>();
         for (final Entry entry : cs) {
-            // reverse order in order to have recent commits first
-            commits.add(0, entry);
+            commits.add(entry);
         }
+        // reverse order in order to have recent commits first
+        Collections.reverse(commits);
         return commits;
     }
 
-    private static String commitId(Entry commit) {
+    private static String commitId(Change commit) {
       String id = commit.getCommitId();
       if (id == null) {
         return "unknown";
@@ -155,25 +488,25 @@ public class TeamInboxMessage extends FlowdockMessage {
       }
     }
 
-    private static String commitId(Entry commit, int length) {
+    private static String commitId(Change commit, int length) {
       String id = commitId(commit);
       return id.substring(0, Math.min(length, id.length()));
     }
 
-    private static String versionControlVariableList(EnvVars envVars) {
+    static String versionControlVariableList(EnvVars envVars) {
         StringBuilder envList = new StringBuilder();
 
         if(envVars.get("GIT_BRANCH") != null) {
-            envList.append("Git branch: ").append(envVars.get("GIT_BRANCH")).append("<br/>");
+            envList.append("Git branch: ").append(escapeHtml(envVars.get("GIT_BRANCH"))).append("<br/>");
         }
         if(envVars.get("GIT_URL") != null) {
-            envList.append("Git URL: ").append(envVars.get("GIT_URL")).append("<br/>");
+            envList.append("Git URL: ").append(escapeHtml(envVars.get("GIT_URL"))).append("<br/>");
         }
         if(envVars.get("SVN_REVISION") != null) {
-            envList.append("SVN revision: ").append(envVars.get("SVN_REVISION")).append("<br/>");
+            envList.append("SVN revision: ").append(escapeHtml(envVars.get("SVN_REVISION"))).append("<br/>");
         }
         if(envVars.get("SVN_URL") != null) {
-            envList.append("SVN URL: ").append(envVars.get("SVN_URL")).append("<br/>");
+            envList.append("SVN URL: ").append(escapeHtml(envVars.get("SVN_URL"))).append("<br/>");
         }
 
         return envList.toString();
@@ -0,0 +1,120 @@
+package com.flowdock.jenkins;
+
+import com.flowdock.jenkins.TestSummary.FailedTest;
+import hudson.model.AbstractBuild;
+import hudson.tasks.test.AbstractTestResultAction;
+import hudson.tasks.test.TestResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Summarizes the test results of a build for notifications. The counts are read from
+ * the test result action, which keeps them without loading the results. The failed
+ * tests are only read when there are few of them, keeping the longest ones, and only
+ * for as long as the time limit allows; otherwise the summary has the counts only.
+ * <p>
+ * Loading the results cannot be interrupted, so a read that runs past the time limit
+ * is left to finish in the background. At most two reads run at a time, and a build
+ * finding both busy reports the counts only.
+ */
+public class TestReport {
+    private static final Logger LOGGER = Logger.getLogger(TestReport.class.getName());
+    public static final int DEFAULT_MAX_FAILURES = 10;
+    public static final int DEFAULT_TIMEOUT = 1000;
+    // with more failures than this, loading the results to find the longest is not worth it
+    public static final int MAX_FAILURES_READ = 100;
+
+    // failed tests are read in the background so that reading them can be abandoned,
+    // and no more than two builds wait for slow test results at a time
+    private static final ThreadPoolExecutor READER = new ThreadPoolExecutor(0, 2, 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new FlowdockDispatcher.WorkerThreadFactory("Flowdock test result reader"));
+
+    private static final Comparator<FailedTest> BY_DURATION = new Comparator<FailedTest>() {
+        public int compare(FailedTest a, FailedTest b) {
+            return Float.compare(a.getDuration(), b.getDuration());
+        }
+    };
+
+    private final int maxFailures;
+    private final long timeoutMillis;
+
+    /**
+     * @param maxFailures maximum number of failed tests listed.
+     * @param timeoutMillis time after which only the counts are reported.
+     */
+    public TestReport(int maxFailures, long timeoutMillis) {
+        this.maxFailures = maxFailures;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the summary, or null if the build has no test results.
+     */
+    public TestSummary summarize(AbstractBuild build) {
+        final AbstractTestResultAction action = (AbstractTestResultAction) build.getAction(AbstractTestResultAction.class);
+        if(action == null)
+            return null;
+        int failed = action.getFailCount();
+        List<FailedTest> failures = Collections.emptyList();
+        boolean failuresRead = true;
+        if(failed > MAX_FAILURES_READ) {
+            failuresRead = false;
+        } else if(failed > 0 && maxFailures > 0) {
+            Future<List<FailedTest>> reading = null;
+            try {
+                reading = READER.submit(new Callable<List<FailedTest>>() {
+                    public List<FailedTest> call() {
+                        return longestFailures(action);
+                    }
+                });
+                failures = reading.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch(RejectedExecutionException ex) {
+                failuresRead = false;
+            } catch(TimeoutException ex) {
+                // stops the loop over the failures, the loading itself runs to its end
+                reading.cancel(true);
+                failuresRead = false;
+            } catch(ExecutionException ex) {
+                LOGGER.log(Level.FINE, "Failed to read the failed tests of " + build.getFullDisplayName(), ex.getCause());
+                failuresRead = false;
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failuresRead = false;
+            }
+        }
+        return new TestSummary(action.getTotalCount(), failed, action.getSkipCount(), failures, failuresRead);
+    }
+
+    private List<FailedTest> longestFailures(AbstractTestResultAction action) {
+        PriorityQueue<FailedTest> longest = new PriorityQueue<FailedTest>(maxFailures, BY_DURATION);
+        List<? extends TestResult> failedTests = action.getFailedTests();
+        for(TestResult test : failedTests) {
+            if(Thread.currentThread().isInterrupted())
+                break;
+            float duration = test.getDuration();
+            if(longest.size() < maxFailures) {
+                longest.add(new FailedTest(test.getFullDisplayName(), duration));
+            } else if(duration > longest.peek().getDuration()) {
+                longest.poll();
+                longest.add(new FailedTest(test.getFullDisplayName(), duration));
+            }
+        }
+        List<FailedTest> failures = new ArrayList<FailedTest>(longest);
+        Collections.sort(failures, Collections.reverseOrder(BY_DURATION));
+        return failures;
+    }
+}
@@ -0,0 +1,96 @@
+package com.flowdock.jenkins;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Test counts of a build and its longest failing tests.
+ */
+public final class TestSummary {
+    private final int total;
+    private final int failed;
+    private final int skipped;
+    private final List<FailedTest> failures;
+    private final boolean failuresRead;
+
+    TestSummary(int total, int failed, int skipped, List<FailedTest> failures, boolean failuresRead) {
+        this.total = total;
+        this.failed = failed;
+        this.skipped = skipped;
+        this.failures = Collections.unmodifiableList(failures);
+        this.failuresRead = failuresRead;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public int getPassed() {
+        return total - failed - skipped;
+    }
+
+    /**
+     * @return the failed tests listed in the notification, longest first.
+     */
+    public List<FailedTest> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return false if the failed tests could not be read in time and only the counts
+     *     are known.
+     */
+    public boolean isFailuresRead() {
+        return failuresRead;
+    }
+
+    /**
+     * @return e.g. "3 failed, 2 skipped, 120 passed".
+     */
+    public String getCounts() {
+        StringBuilder counts = new StringBuilder();
+        if(failed > 0)
+            counts.append(failed).append(" failed, ");
+        if(skipped > 0)
+            counts.append(skipped).append(" skipped, ");
+        counts.append(getPassed()).append(" passed");
+        return counts.toString();
+    }
+
+    public static final class FailedTest {
+        private final String name;
+        private final float duration;
+
+        FailedTest(String name, float duration) {
+            this.name = name;
+            this.duration = duration;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the duration in seconds.
+         */
+        public float getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return e.g. "1.25 s".
+         */
+        public String getDurationString() {
+            return String.format(Locale.ENGLISH, "%.2f s", duration);
+        }
+    }
+}
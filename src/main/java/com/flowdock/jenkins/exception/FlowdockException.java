@@ -1,7 +1,37 @@
 package com.flowdock.jenkins.exception;
 
 public class FlowdockException extends Exception {
+  private final int status;
+  private final boolean retryable;
+
   public FlowdockException(String message) {
+    this(message, 0);
+  }
+
+  public FlowdockException(String message, int status) {
+    this(message, status, status == 0 || status == 429 || status >= 500);
+  }
+
+  /**
+   * @param retryable false if the request can never succeed, e.g. because the URL is invalid.
+   */
+  public FlowdockException(String message, int status, boolean retryable) {
     super(message);
+    this.status = status;
+    this.retryable = retryable;
+  }
+
+  /**
+   * @return the HTTP status returned by Flowdock, 0 if the request didn't get a response.
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @return true if sending the same request again later may succeed.
+   */
+  public boolean isRetryable() {
+    return retryable;
   }
-}
\ No newline at end of file
+}
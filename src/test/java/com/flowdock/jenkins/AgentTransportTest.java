@@ -0,0 +1,155 @@
+package com.flowdock.jenkins;
+
+import hudson.remoting.Callable;
+import hudson.remoting.ChannelClosedException;
+import hudson.remoting.Future;
+import hudson.remoting.VirtualChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class AgentTransportTest {
+    private static final byte[] DATA = "content=x".getBytes();
+
+    private URL url;
+    private FakeChannel channel;
+    private CountingTransport controller;
+    private AgentTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        url = new URL("https://api.flowdock.com/v1/messages/team_inbox/token");
+        channel = new FakeChannel();
+        controller = new CountingTransport();
+        transport = new AgentTransport(controller, 1000, 1000);
+        AgentTransport.setCurrent(new AgentTransport.Agent("agent-1", channel));
+    }
+
+    @After
+    public void tearDown() {
+        AgentTransport.setCurrent(null);
+    }
+
+    @Test
+    public void sendsFromTheAgent() throws IOException {
+        FlowdockResponse response = transport.post(url, DATA, DATA.length);
+        assertSame(channel.response, response);
+        assertEquals(1, channel.calls);
+        assertEquals(0, controller.calls);
+    }
+
+    @Test
+    public void fallsBackWhenTheAgentCannotConnect() throws IOException {
+        channel.failure = new ConnectException("Connection refused");
+        assertSame(controller.response, transport.post(url, DATA, DATA.length));
+        assertEquals(1, controller.calls);
+
+        // the agent is skipped for the following requests
+        assertSame(controller.response, transport.post(url, DATA, DATA.length));
+        assertEquals(1, channel.calls);
+        assertEquals(2, controller.calls);
+    }
+
+    @Test
+    public void fallsBackWhenTheAgentCannotResolveTheHost() throws IOException {
+        channel.failure = new UnknownHostException("api.flowdock.com");
+        assertSame(controller.response, transport.post(url, DATA, DATA.length));
+    }
+
+    @Test
+    public void fallsBackOnAConnectTimeout() throws IOException {
+        channel.failure = new SocketTimeoutException("connect timed out");
+        assertSame(controller.response, transport.post(url, DATA, DATA.length));
+    }
+
+    @Test
+    public void fallsBackWhenTheChannelIsClosed() throws IOException {
+        channel.failure = new IOException("remote call failed", new ChannelClosedException(new IOException("EOF")));
+        assertSame(controller.response, transport.post(url, DATA, DATA.length));
+        assertEquals(1, controller.calls);
+
+        transport.post(url, DATA, DATA.length);
+        assertEquals(1, channel.calls);
+    }
+
+    @Test
+    public void throwsFailuresAfterTheAgentConnected() throws IOException {
+        channel.failure = new SocketTimeoutException("Read timed out");
+        try {
+            transport.post(url, DATA, DATA.length);
+            fail();
+        } catch(SocketTimeoutException expected) {
+        }
+        assertEquals(0, controller.calls);
+
+        // the agent is still used
+        channel.failure = null;
+        assertSame(channel.response, transport.post(url, DATA, DATA.length));
+        assertEquals(2, channel.calls);
+    }
+
+    @Test
+    public void sendsFromTheControllerWithoutAnAgent() throws IOException {
+        AgentTransport.setCurrent(null);
+        assertSame(controller.response, transport.post(url, DATA, DATA.length));
+        assertEquals(0, channel.calls);
+    }
+
+    private static final class CountingTransport implements FlowdockTransport {
+        private final FlowdockResponse response = new FlowdockResponse(200, "OK", "{}");
+        private int calls;
+
+        public FlowdockResponse post(URL url, byte[] data, int length) {
+            calls++;
+            return response;
+        }
+    }
+
+    /**
+     * Channel to an agent that answers without running the request, or fails with
+     * the exception the request or the channel would have thrown.
+     */
+    private static final class FakeChannel implements VirtualChannel {
+        private final FlowdockResponse response = new FlowdockResponse(200, "OK", "{}");
+        private IOException failure;
+        private int calls;
+
+        @SuppressWarnings("unchecked")
+        public <V, T extends Throwable> V call(Callable<V, T> callable) throws IOException {
+            calls++;
+            if(failure != null)
+                throw failure;
+            return (V) response;
+        }
+
+        public <V, T extends Throwable> Future<V> callAsync(Callable<V, T> callable) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+        }
+
+        public void join() {
+        }
+
+        public void join(long timeout) {
+        }
+
+        public <T> T export(Class<T> type, T instance) {
+            return instance;
+        }
+
+        public void syncLocalIO() {
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.flowdock.jenkins;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BuildStatsTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("flowdock-build-stats", ".txt");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void countsTheBuildsOfEachJob() {
+        BuildStats stats = new BuildStats(null);
+        stats.record("job-a", BuildResult.SUCCESS, 1000L, false);
+        stats.record("job-a", BuildResult.FAILURE, 2000L, true);
+        stats.record("job-a", BuildResult.FIXED, 1500L, true);
+        stats.record("job-b", BuildResult.UNSTABLE, 500L, false);
+        assertEquals(2, stats.size());
+
+        BuildStats.Window window = stats.roll(0L);
+        BuildStats.JobStats jobA = job(window, "job-a");
+        assertEquals(3, jobA.getBuilds());
+        assertEquals(2, jobA.getSuccesses());
+        assertEquals(1, jobA.getFailures());
+        assertEquals(2, jobA.getTransitions());
+        assertEquals(3, jobA.getDurations().getCount());
+        assertEquals(1, job(window, "job-b").getCount(BuildResult.UNSTABLE));
+    }
+
+    @Test
+    public void rollsOnceTheIntervalHasPassed() {
+        BuildStats stats = new BuildStats(null);
+        stats.record("job", BuildResult.SUCCESS, 1000L, false);
+        assertNull(stats.roll(HOUR));
+
+        BuildStats.Window ended = stats.roll(0L);
+        assertNotNull(ended);
+        assertTrue(ended.getEnd() >= ended.getStart());
+        assertEquals(0, stats.size());
+        stats.record("job", BuildResult.SUCCESS, 1000L, false);
+        assertEquals(1, job(ended, "job").getBuilds());
+    }
+
+    @Test
+    public void keepsTheCountersAcrossRestarts() {
+        BuildStats stats = new BuildStats(file);
+        stats.record("folder/job", BuildResult.FAILURE, 1000L, true);
+        stats.record("folder/job", BuildResult.FAILURE, 3000L, false);
+        stats.save();
+
+        BuildStats.JobStats job = job(new BuildStats(file).roll(0L), "folder/job");
+        assertEquals(2, job.getCount(BuildResult.FAILURE));
+        assertEquals(1, job.getTransitions());
+        assertEquals(2, job.getDurations().getCount());
+    }
+
+    @Test
+    public void readsTheFilesOfEarlierVersions() throws IOException {
+        BuildStats stats = new BuildStats(file);
+        stats.record("job", BuildResult.SUCCESS, 1000L, false);
+        stats.save();
+        // earlier versions saved the flow token and tags before the job name
+        List<String> lines = read();
+        String[] fields = lines.get(1).split("\t");
+        lines.set(1, fields[0] + "\t" + fields[1] + "\t" + fields[2] + "\ttoken\ttag1,tag2\t" + fields[3]);
+        lines.add("not\ta\tnumber\tjob");
+        write(lines);
+
+        BuildStats loaded = new BuildStats(file);
+        assertEquals(1, loaded.size());
+        assertEquals(1, job(loaded.roll(0L), "job").getCount(BuildResult.SUCCESS));
+    }
+
+    private static BuildStats.JobStats job(BuildStats.Window window, String name) {
+        for(BuildStats.JobStats job : window.getJobs()) {
+            if(job.getName().equals(name))
+                return job;
+        }
+        throw new AssertionError("no statistics for " + name);
+    }
+
+    private List<String> read() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void write(List<String> lines) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for(String line : lines) {
+                writer.write(line + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.flowdock.jenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ChangeIndexTest {
+    private final AbstractProject project = project("job");
+
+    @Test
+    public void collectsTheCommitsOfFailingBuilds() {
+        ChangeIndex index = new ChangeIndex(null);
+        assertEquals(0, index.record(build(1, Result.FAILURE), changes(1, 2), 2).getCount());
+
+        ChangeIndex.EarlierChanges earlier = index.record(build(2, Result.FAILURE), changes(2, 1), 1);
+        assertEquals(2, earlier.getCount());
+        assertEquals("1-0", earlier.getChanges().get(0).getCommitId());
+
+        earlier = index.record(build(3, Result.SUCCESS), changes(3, 1), 1);
+        assertEquals(3, earlier.getCount());
+        // newest first
+        assertEquals(2, earlier.getChanges().get(0).getBuild());
+        assertEquals(1, earlier.getChanges().get(2).getBuild());
+    }
+
+    @Test
+    public void successfulBuildClearsTheCommits() {
+        ChangeIndex index = new ChangeIndex(null);
+        index.record(build(1, Result.FAILURE), changes(1, 2), 2);
+        index.record(build(2, Result.SUCCESS), changes(2, 1), 1);
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.record(build(3, Result.FAILURE), changes(3, 1), 1).getCount());
+    }
+
+    @Test
+    public void countsTheCommitsThatAreNotKept() {
+        ChangeIndex index = new ChangeIndex(null);
+        for(int number = 1; number <= 3; number++) {
+            // the notification only lists 10 of the 150 commits of each build
+            index.record(build(number, Result.FAILURE), changes(number, 10), 150);
+        }
+        ChangeIndex.EarlierChanges earlier = index.record(build(4, Result.FAILURE), changes(4, 1), 1);
+        assertEquals(450, earlier.getCount());
+        assertEquals(30, earlier.getChanges().size());
+
+        for(int number = 5; number <= 30; number++) {
+            index.record(build(number, Result.FAILURE), changes(number, 10), 10);
+        }
+        earlier = index.record(build(31, Result.SUCCESS), changes(31, 1), 1);
+        assertEquals(450 + 1 + 26 * 10, earlier.getCount());
+        assertEquals(ChangeIndex.MAX_CHANGES_PER_JOB, earlier.getChanges().size());
+    }
+
+    @Test
+    public void ignoresBuildsOlderThanTheRecordedOne() {
+        ChangeIndex index = new ChangeIndex(null);
+        index.record(build(5, Result.FAILURE), changes(5, 1), 1);
+        assertTrue(index.record(build(4, Result.FAILURE), changes(4, 1), 1).getChanges().isEmpty());
+        assertEquals(1, index.record(build(6, Result.FAILURE), changes(6, 1), 1).getCount());
+    }
+
+    @Test
+    public void renamedJobKeepsItsCommits() {
+        ChangeIndex index = new ChangeIndex(null);
+        index.record(build(1, Result.FAILURE), changes(1, 2), 2);
+        index.rename("job", "renamed");
+
+        AbstractProject renamed = project("renamed");
+        AbstractBuild next = build(2, Result.FAILURE);
+        when(next.getProject()).thenReturn(renamed);
+        assertEquals(2, index.record(next, changes(2, 1), 1).getCount());
+    }
+
+    private static List<Change> changes(int build, int count) {
+        List<Change> changes = new ArrayList<Change>();
+        for(int i = 0; i < count; i++) {
+            changes.add(new Change(build + "-" + i, "author", "commit " + i, build));
+        }
+        return changes;
+    }
+
+    private static AbstractProject project(String name) {
+        AbstractProject project = mock(AbstractProject.class);
+        when(project.getFullName()).thenReturn(name);
+        return project;
+    }
+
+    private AbstractBuild build(int number, Result result) {
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getProject()).thenReturn(project);
+        when(build.getNumber()).thenReturn(number);
+        when(build.getResult()).thenReturn(result);
+        return build;
+    }
+}
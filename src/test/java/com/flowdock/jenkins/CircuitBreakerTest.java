@@ -0,0 +1,87 @@
+package com.flowdock.jenkins;
+
+import com.flowdock.jenkins.CircuitBreaker.State;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("flow", 3, HOUR);
+        breaker.recordFailure("500");
+        breaker.recordFailure("500");
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure("503");
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals("503", breaker.getLastFailure());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void successResetsTheFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker("flow", 2, HOUR);
+        breaker.recordFailure("500");
+        breaker.recordSuccess();
+        breaker.recordFailure("500");
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void letsASingleProbeThroughAfterTheOpenTime() {
+        CircuitBreaker breaker = new CircuitBreaker("flow", 1, 0L);
+        breaker.recordFailure("timeout");
+        assertEquals(State.OPEN, breaker.getState());
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeOpensTheBreakerAgain() {
+        CircuitBreaker breaker = new CircuitBreaker("flow", 3, 0L);
+        for(int i = 0; i < 3; i++) {
+            breaker.recordFailure("500");
+        }
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure("500");
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(4, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void releasedProbeCanBeTakenByTheNextRequest() {
+        CircuitBreaker breaker = new CircuitBreaker("flow", 1, 0L);
+        breaker.recordFailure("timeout");
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        breaker.releaseProbe();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void releasingWithoutAProbeKeepsTheState() {
+        CircuitBreaker breaker = new CircuitBreaker("flow", 1, HOUR);
+        breaker.releaseProbe();
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.recordFailure("500");
+        breaker.releaseProbe();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+}
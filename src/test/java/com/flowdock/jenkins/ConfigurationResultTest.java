@@ -0,0 +1,40 @@
+package com.flowdock.jenkins;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigurationResultTest {
+    @Test
+    public void summaryCountsTheFailedConfigurations() {
+        List<ConfigurationResult> configurations = Arrays.asList(
+            new ConfigurationResult("jdk=6", BuildResult.SUCCESS, null),
+            new ConfigurationResult("jdk=7", BuildResult.FAILURE, null),
+            new ConfigurationResult("jdk=8", BuildResult.UNSTABLE, null));
+        assertEquals("2 of 3 configurations failed", ConfigurationResult.summary(configurations));
+    }
+
+    @Test
+    public void fixedConfigurationsAreSuccessful() {
+        List<ConfigurationResult> configurations = Arrays.asList(
+            new ConfigurationResult("jdk=6", BuildResult.SUCCESS, null),
+            new ConfigurationResult("jdk=7", BuildResult.FIXED, null));
+        assertEquals("all 2 configurations were successful", ConfigurationResult.summary(configurations));
+    }
+
+    @Test
+    public void tableLinksTheConfigurationsAndHighlightsFailures() {
+        String table = ConfigurationResult.asHtmlTable(Arrays.asList(
+            new ConfigurationResult("os=<linux>", BuildResult.SUCCESS, "http://jenkins/job/m/os=linux/1/"),
+            new ConfigurationResult("os=windows", BuildResult.FAILURE, null)));
+
+        assertTrue(table, table.contains("<p>1 of 2 configurations failed</p>"));
+        assertTrue(table, table.contains("<a href=\"http://jenkins/job/m/os=linux/1/\">os=&lt;linux&gt;</a></td><td>"
+            + BuildResult.SUCCESS + "</td>"));
+        assertTrue(table, table.contains("<td>os=windows</td><td><strong>" + BuildResult.FAILURE + "</strong></td>"));
+    }
+}
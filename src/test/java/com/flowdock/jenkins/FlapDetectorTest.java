@@ -0,0 +1,97 @@
+package com.flowdock.jenkins;
+
+import com.flowdock.jenkins.FlapDetector.Status;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FlapDetectorTest {
+    @Test
+    public void startsFlappingAtTheThreshold() {
+        FlapDetector detector = new FlapDetector(10, 50, 100);
+        assertEquals(Status.STABLE, detector.record("job", BuildResult.SUCCESS));
+        assertEquals(Status.STABLE, detector.record("job", BuildResult.FAILURE));
+        assertEquals(Status.STABLE, detector.record("job", BuildResult.FIXED));
+        // three flips in four results
+        assertEquals(Status.STARTED, detector.record("job", BuildResult.FAILURE));
+        assertEquals(Status.FLAPPING, detector.record("job", BuildResult.SUCCESS));
+        assertEquals(4, detector.getFlips("job"));
+        assertEquals(5, detector.getResults("job"));
+    }
+
+    @Test
+    public void needsAFewResultsBeforeFlapping() {
+        FlapDetector detector = new FlapDetector(10, 1, 100);
+        assertEquals(Status.STABLE, detector.record("job", BuildResult.SUCCESS));
+        assertEquals(Status.STABLE, detector.record("job", BuildResult.FAILURE));
+        assertEquals(Status.STABLE, detector.record("job", BuildResult.SUCCESS));
+        assertEquals(Status.STARTED, detector.record("job", BuildResult.SUCCESS));
+    }
+
+    @Test
+    public void stopsFlappingOnlyBelowHalfTheThreshold() {
+        FlapDetector detector = new FlapDetector(10, 50, 100);
+        record(detector, "SFSF");
+        // the flips among the last ten results drop as the failures leave the window
+        assertEquals(Status.FLAPPING, detector.record("job", BuildResult.SUCCESS));
+        for(int i = 0; i < 5; i++) {
+            assertEquals(Status.FLAPPING, detector.record("job", BuildResult.SUCCESS));
+        }
+        assertEquals(4, detector.getFlips("job"));
+        // 3 flips in 9 pairs is below the threshold to start, but not below half of it
+        assertEquals(Status.FLAPPING, detector.record("job", BuildResult.SUCCESS));
+        assertEquals(3, detector.getFlips("job"));
+        assertEquals(Status.STOPPED, detector.record("job", BuildResult.SUCCESS));
+        assertEquals(2, detector.getFlips("job"));
+        assertEquals(Status.STABLE, detector.record("job", BuildResult.SUCCESS));
+    }
+
+    @Test
+    public void doesNotStartBetweenHalfAndFullThreshold() {
+        FlapDetector detector = new FlapDetector(10, 50, 100);
+        // 3 flips in 9 pairs, above half the threshold but below it
+        assertEquals(Status.STABLE, record(detector, "SSSFFFSSSF"));
+        assertEquals(3, detector.getFlips("job"));
+    }
+
+    @Test
+    public void abortedBuildsAreNotCounted() {
+        FlapDetector detector = new FlapDetector(10, 50, 100);
+        record(detector, "SFSF");
+        assertEquals(Status.FLAPPING, detector.record("job", BuildResult.ABORTED));
+        assertEquals(Status.FLAPPING, detector.record("job", BuildResult.NOT_BUILT));
+        assertEquals(4, detector.getResults("job"));
+        assertEquals(Status.STABLE, detector.record("other", BuildResult.ABORTED));
+        assertEquals(0, detector.getResults("other"));
+    }
+
+    @Test
+    public void forgetsTheLeastRecentlyBuiltJobs() {
+        FlapDetector detector = new FlapDetector(10, 50, 2);
+        detector.record("first", BuildResult.SUCCESS);
+        detector.record("second", BuildResult.SUCCESS);
+        detector.record("first", BuildResult.FAILURE);
+        detector.record("third", BuildResult.SUCCESS);
+        assertEquals(2, detector.size());
+        assertEquals(0, detector.getResults("second"));
+        assertEquals(2, detector.getResults("first"));
+    }
+
+    @Test
+    public void windowHasAMinimumSize() {
+        assertEquals(FlapDetector.MIN_WINDOW, new FlapDetector(1, 50, 100).getWindow());
+    }
+
+    /**
+     * Records the results of "job", S for success and F for failure.
+     *
+     * @return the status after the last result.
+     */
+    private static Status record(FlapDetector detector, String results) {
+        Status status = null;
+        for(char result : results.toCharArray()) {
+            status = detector.record("job", result == 'S' ? BuildResult.SUCCESS : BuildResult.FAILURE);
+        }
+        return status;
+    }
+}
@@ -0,0 +1,65 @@
+package com.flowdock.jenkins;
+
+import com.flowdock.jenkins.exception.FlowdockException;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FlowdockAPITest {
+    private static final String TOKEN = "0123456789abcdef0123456789abcdef";
+    private static final byte[] DATA = "content=x".getBytes();
+
+    @Test
+    public void errorsDontRevealTheFlowToken() {
+        FlowdockAPI api = new FlowdockAPI("https://api.flowdock.com/v1", TOKEN,
+            respondingWith(new FlowdockResponse(404, "Not Found", "{\"message\":\"flow not found\"}")));
+        try {
+            api.post(FlowdockAPI.TEAM_INBOX_PATH, DATA);
+            fail();
+        } catch(FlowdockException ex) {
+            assertEquals(404, ex.getStatus());
+            assertFalse(ex.isRetryable());
+            assertFalse(ex.getMessage(), ex.getMessage().contains(TOKEN));
+            assertTrue(ex.getMessage(), ex.getMessage().contains("/messages/team_inbox/012345..."));
+        }
+    }
+
+    @Test
+    public void serverErrorsAreRetryable() {
+        FlowdockAPI api = new FlowdockAPI("https://api.flowdock.com/v1", TOKEN,
+            respondingWith(new FlowdockResponse(503, "Service Unavailable", "")));
+        try {
+            api.post(FlowdockAPI.CHAT_PATH, DATA);
+            fail();
+        } catch(FlowdockException ex) {
+            assertTrue(ex.isRetryable());
+        }
+    }
+
+    @Test
+    public void invalidUrlIsNotRetryable() {
+        FlowdockAPI api = new FlowdockAPI("api.flowdock.com/v1", TOKEN,
+            respondingWith(new FlowdockResponse(200, "OK", "{}")));
+        try {
+            api.post(FlowdockAPI.TEAM_INBOX_PATH, DATA);
+            fail();
+        } catch(FlowdockException ex) {
+            assertEquals(0, ex.getStatus());
+            assertFalse(ex.isRetryable());
+            assertFalse(ex.getMessage(), ex.getMessage().contains(TOKEN));
+        }
+    }
+
+    private static FlowdockTransport respondingWith(final FlowdockResponse response) {
+        return new FlowdockTransport() {
+            public FlowdockResponse post(URL url, byte[] data, int length) {
+                return response;
+            }
+        };
+    }
+}
@@ -0,0 +1,244 @@
+package com.flowdock.jenkins;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlowdockDispatcherTest {
+    private FlowdockDispatcher dispatcher;
+
+    private File dir;
+
+    @After
+    public void tearDown() {
+        if(dispatcher != null)
+            dispatcher.shutdown();
+        if(dir != null) {
+            File[] files = dir.listFiles();
+            if(files != null) {
+                for(File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void discardNewestDropsTheNewNotification() throws InterruptedException {
+        dispatcher = new FlowdockDispatcher(1, 1, OverflowPolicy.DISCARD_NEWEST, blockingTransport(), 2, 10, null);
+        Results running = new Results();
+        Results queued = new Results();
+        Results overflow = new Results();
+        fillQueue(running, queued);
+
+        assertFalse(dispatcher.dispatch(notification("flow-c", overflow)));
+        assertTrue(overflow.await().get(0).contains("Notification dropped"));
+        release.countDown();
+        assertSent(running);
+        assertSent(queued);
+    }
+
+    @Test
+    public void discardOldestDropsTheQueuedNotification() throws InterruptedException {
+        dispatcher = new FlowdockDispatcher(1, 1, OverflowPolicy.DISCARD_OLDEST, blockingTransport(), 2, 10, null);
+        Results running = new Results();
+        Results queued = new Results();
+        Results overflow = new Results();
+        fillQueue(running, queued);
+
+        assertTrue(dispatcher.dispatch(notification("flow-c", overflow)));
+        assertTrue(queued.await().get(0).contains("Notification dropped"));
+        release.countDown();
+        assertSent(running);
+        assertSent(overflow);
+    }
+
+    @Test
+    public void sendInCallerDeliversBeforeReturning() throws InterruptedException {
+        dispatcher = new FlowdockDispatcher(1, 1, OverflowPolicy.SEND_IN_CALLER, blockingTransport(), 2, 10, null);
+        Results running = new Results();
+        Results queued = new Results();
+        Results overflow = new Results();
+        fillQueue(running, queued);
+
+        assertTrue(dispatcher.dispatch(notification("flow-c", overflow)));
+        assertSent(overflow);
+        release.countDown();
+        assertSent(running);
+        assertSent(queued);
+    }
+
+    @Test
+    public void offeredNotificationIsNeverSentInTheCaller() throws InterruptedException {
+        dispatcher = new FlowdockDispatcher(1, 1, OverflowPolicy.SEND_IN_CALLER, blockingTransport(), 2, 10, null);
+        Results running = new Results();
+        Results queued = new Results();
+        Results overflow = new Results();
+        fillQueue(running, queued);
+
+        assertFalse(dispatcher.offer(notification("flow-c", overflow)));
+        assertTrue(overflow.await().get(0).contains("Notification dropped"));
+        release.countDown();
+        assertSent(queued);
+    }
+
+    @Test
+    public void sendsToEveryFlow() throws InterruptedException {
+        release.countDown();
+        dispatcher = new FlowdockDispatcher(1, 10, OverflowPolicy.DISCARD_NEWEST, blockingTransport(), 2, 10, null);
+        Results results = new Results();
+        dispatcher.dispatch(notification("flow-a, flow-b,flow-c", results));
+
+        List<String> delivered = results.await();
+        assertEquals(3, delivered.size());
+        assertTrue(delivered.get(0), delivered.get(0).startsWith("Flow flow-a"));
+        assertTrue(delivered.get(2), delivered.get(2).startsWith("Flow flow-c"));
+    }
+
+    @Test
+    public void reportsMissingFlowTokens() throws InterruptedException {
+        dispatcher = new FlowdockDispatcher(1, 10, OverflowPolicy.DISCARD_NEWEST, blockingTransport(), 2, 10, null);
+        Results results = new Results();
+        dispatcher.dispatch(notification("", results));
+
+        assertEquals("No flow tokens configured, notification not sent", results.await().get(0));
+    }
+
+    @Test
+    public void queuedFlowsGetTheirOwnTimeout() throws InterruptedException {
+        // one flow at a time, each taking 400 ms, so the last one starts after the timeout of the first
+        dispatcher = new FlowdockDispatcher(1, 10, OverflowPolicy.DISCARD_NEWEST, slowTransport(400L), 1, 1, null);
+        Results results = new Results();
+        dispatcher.dispatch(notification("flow-a,flow-b,flow-c,flow-d", results));
+
+        List<String> delivered = results.await();
+        assertEquals(4, delivered.size());
+        for(String result : delivered) {
+            assertTrue(result, result.endsWith("Team Inbox notification sent successfully"));
+        }
+    }
+
+    @Test
+    public void singleFlowTimesOut() throws InterruptedException {
+        dispatcher = new FlowdockDispatcher(1, 10, OverflowPolicy.DISCARD_NEWEST, slowTransport(60000L), 1, 1, null);
+        Results results = new Results();
+        dispatcher.dispatch(notification("flow-a", results));
+
+        List<String> delivered = results.await();
+        assertEquals(1, delivered.size());
+        assertTrue(delivered.get(0), delivered.get(0).contains("no result in 1 seconds"));
+    }
+
+    @Test
+    public void outboxIsSyncedByTheWorker() throws IOException, InterruptedException {
+        dir = File.createTempFile("flowdock-outbox", "");
+        assertTrue(dir.delete());
+        final List<Thread> syncing = new CopyOnWriteArrayList<Thread>();
+        FlowdockOutbox outbox = new FlowdockOutbox(dir, 100) {
+            @Override
+            public void commit() throws IOException {
+                syncing.add(Thread.currentThread());
+                super.commit();
+            }
+        };
+        dispatcher = new FlowdockDispatcher(1, 10, OverflowPolicy.DISCARD_NEWEST, slowTransport(0L), 1, 1, outbox);
+        Results results = new Results();
+        dispatcher.dispatch(notification("flow-a,flow-b", results));
+
+        assertEquals(2, results.await().size());
+        assertFalse(syncing.isEmpty());
+        assertFalse(syncing.contains(Thread.currentThread()));
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    /**
+     * Blocks the worker with a notification to a flow that doesn't answer until
+     * released, and queues a second one behind it.
+     */
+    private void fillQueue(Results running, Results queued) throws InterruptedException {
+        assertTrue(dispatcher.dispatch(notification("blocked-a", running)));
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        assertTrue(dispatcher.dispatch(notification("blocked-b", queued)));
+        assertEquals(1, dispatcher.getQueueSize());
+    }
+
+    /**
+     * Transport answering right away, except for the flows whose token starts with
+     * "blocked" which wait for {@link #release}.
+     */
+    private FlowdockTransport blockingTransport() {
+        return new FlowdockTransport() {
+            public FlowdockResponse post(URL url, byte[] data, int length) throws IOException {
+                if(url.getPath().contains("/blocked")) {
+                    sending.countDown();
+                    try {
+                        release.await();
+                    } catch(InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return new FlowdockResponse(200, "OK", "{}");
+            }
+        };
+    }
+
+    private static void assertSent(Results results) throws InterruptedException {
+        List<String> delivered = results.await();
+        assertEquals(1, delivered.size());
+        assertTrue(delivered.get(0), delivered.get(0).endsWith("Team Inbox notification sent successfully"));
+    }
+
+    static FlowdockNotification notification(String flowTokens, FlowdockNotification.DeliveryListener listener) {
+        TeamInboxMessage message = new TeamInboxMessage();
+        message.setSubject("Build #1 passed");
+        message.setContent("content");
+        return new FlowdockNotification(null, null, "http://localhost/v1", flowTokens, null, message, null, listener);
+    }
+
+    /**
+     * Transport answering after the given time, or failing when interrupted.
+     */
+    static FlowdockTransport slowTransport(final long millis) {
+        return new FlowdockTransport() {
+            public FlowdockResponse post(URL url, byte[] data, int length) throws IOException {
+                try {
+                    Thread.sleep(millis);
+                } catch(InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                return new FlowdockResponse(200, "OK", "{}");
+            }
+        };
+    }
+
+    static final class Results implements FlowdockNotification.DeliveryListener {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile List<String> results;
+
+        public void delivered(List<String> results) {
+            this.results = results;
+            done.countDown();
+        }
+
+        List<String> await() throws InterruptedException {
+            assertTrue("not delivered", done.await(10, TimeUnit.SECONDS));
+            return results;
+        }
+    }
+}
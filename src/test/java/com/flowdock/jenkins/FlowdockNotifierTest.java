@@ -0,0 +1,132 @@
+package com.flowdock.jenkins;
+
+import hudson.matrix.MatrixBuild;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.util.XStream2;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlowdockNotifierTest {
+    // the notifier as saved in config.xml by the versions before notification profiles
+    private static final String PRE_PROFILE_CONFIG =
+        "<com.flowdock.jenkins.FlowdockNotifier>\n" +
+        "  <flowToken>0123456789abcdef, fedcba9876543210</flowToken>\n" +
+        "  <notificationTags>jenkins, ci</notificationTags>\n" +
+        "  <chatNotification>true</chatNotification>\n" +
+        "  <notifyMap>\n" +
+        "    <entry><com.flowdock.jenkins.BuildResult>SUCCESS</com.flowdock.jenkins.BuildResult><boolean>false</boolean></entry>\n" +
+        "    <entry><com.flowdock.jenkins.BuildResult>FAILURE</com.flowdock.jenkins.BuildResult><boolean>true</boolean></entry>\n" +
+        "    <entry><com.flowdock.jenkins.BuildResult>FIXED</com.flowdock.jenkins.BuildResult><boolean>true</boolean></entry>\n" +
+        "    <entry><com.flowdock.jenkins.BuildResult>UNSTABLE</com.flowdock.jenkins.BuildResult><boolean>true</boolean></entry>\n" +
+        "    <entry><com.flowdock.jenkins.BuildResult>ABORTED</com.flowdock.jenkins.BuildResult><boolean>false</boolean></entry>\n" +
+        "    <entry><com.flowdock.jenkins.BuildResult>NOT_BUILT</com.flowdock.jenkins.BuildResult><boolean>false</boolean></entry>\n" +
+        "  </notifyMap>\n" +
+        "  <notifySuccess>false</notifySuccess>\n" +
+        "  <notifyFailure>true</notifyFailure>\n" +
+        "  <notifyFixed>true</notifyFixed>\n" +
+        "  <notifyUnstable>true</notifyUnstable>\n" +
+        "  <notifyAborted>false</notifyAborted>\n" +
+        "  <notifyNotBuilt>false</notifyNotBuilt>\n" +
+        "</com.flowdock.jenkins.FlowdockNotifier>";
+
+    @Test
+    public void migratesJobsConfiguredBeforeProfiles() {
+        FlowdockNotifier notifier = (FlowdockNotifier) new XStream2().fromXML(PRE_PROFILE_CONFIG);
+
+        assertNull(notifier.getProfile());
+        assertEquals("0123456789abcdef, fedcba9876543210", notifier.getFlowToken());
+        assertEquals("jenkins, ci", notifier.getNotificationTags());
+        assertTrue(notifier.getChatNotification());
+        assertFalse(notifier.getNotifySuccess());
+        assertTrue(notifier.getNotifyFailure());
+        assertTrue(notifier.getNotifyFixed());
+        assertTrue(notifier.getNotifyUnstable());
+        assertFalse(notifier.getNotifyAborted());
+        assertFalse(notifier.getNotifyNotBuilt());
+        assertFalse(notifier.getNotifyStateChangeOnly());
+        assertFalse(notifier.getAggregateMatrix());
+        assertFalse(notifier.getPeriodicSummary());
+    }
+
+    @Test
+    public void jobReferencingAProfileKeepsNoSettings() {
+        FlowdockNotifier notifier = (FlowdockNotifier) new XStream2().fromXML(
+            "<com.flowdock.jenkins.FlowdockNotifier>\n" +
+            "  <profile>team</profile>\n" +
+            "  <aggregateMatrix>true</aggregateMatrix>\n" +
+            "  <periodicSummary>false</periodicSummary>\n" +
+            "</com.flowdock.jenkins.FlowdockNotifier>");
+
+        assertEquals("team", notifier.getProfile());
+        assertNull(notifier.getFlowToken());
+        assertTrue(notifier.getAggregateMatrix());
+    }
+
+    @Test
+    public void optionsAreBoundThroughSetters() {
+        FlowdockNotifier notifier = new FlowdockNotifier("token", "tags", "false",
+            "true", "true", "true", "false", "false", "false");
+        notifier.setNotifyStateChangeOnly(true);
+        notifier.setAggregateMatrix(true);
+        notifier.setPeriodicSummary(true);
+
+        assertEquals("token", notifier.getFlowToken());
+        assertTrue(notifier.getNotifySuccess());
+        assertFalse(notifier.getNotifyUnstable());
+        assertTrue(notifier.getNotifyStateChangeOnly());
+        assertTrue(notifier.getAggregateMatrix());
+        assertTrue(notifier.getPeriodicSummary());
+
+        notifier.setProfile(" team ");
+        assertEquals("team", notifier.getProfile());
+        assertNull(notifier.getFlowToken());
+        // a blank profile keeps the settings of the job
+        FlowdockNotifier own = new FlowdockNotifier("token", "tags", "false",
+            "true", "true", "true", "false", "false", "false");
+        own.setProfile("");
+        assertNull(own.getProfile());
+        assertEquals("token", own.getFlowToken());
+    }
+
+    @Test
+    public void aggregatesMatrixBuildsOnlyWhenEnabled() {
+        FlowdockNotifier notifier = new FlowdockNotifier("token", "tags", "false",
+            "true", "true", "true", "true", "true", "true");
+        MatrixBuild build = mock(MatrixBuild.class);
+        assertNull(notifier.createAggregator(build, null, null));
+
+        notifier.setAggregateMatrix(true);
+        assertNotNull(notifier.createAggregator(build, null, null));
+    }
+
+    @Test
+    public void configurationBuildLeavesItsResultToTheMatrixBuild() {
+        FlowdockNotifier notifier = new FlowdockNotifier("token", "tags", "false",
+            "true", "true", "true", "true", "true", "true");
+        notifier.setAggregateMatrix(true);
+        AbstractProject matrix = mock(AbstractProject.class);
+        AbstractProject configuration = mock(AbstractProject.class);
+        when(configuration.getRootProject()).thenReturn(matrix);
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getProject()).thenReturn(configuration);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        BuildListener listener = mock(BuildListener.class);
+        when(listener.getLogger()).thenReturn(new PrintStream(log));
+
+        // nothing is recorded or sent, which would need the descriptor of a running Jenkins
+        assertTrue(notifier.perform(build, null, listener));
+        assertTrue(log.toString(), log.toString().contains("combined notification of the matrix build"));
+    }
+}
@@ -0,0 +1,95 @@
+package com.flowdock.jenkins;
+
+import hudson.AbortException;
+import hudson.model.Job;
+import hudson.model.Run;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlowdockNotifyStepTest {
+    private final FlowdockNotifier.DescriptorImpl descriptor = mock(FlowdockNotifier.DescriptorImpl.class);
+    private final Run run = mock(Run.class);
+
+    @Before
+    public void setUp() {
+        Job job = mock(Job.class);
+        when(job.getFullName()).thenReturn("folder/deploy");
+        when(run.getParent()).thenReturn(job);
+        when(run.getNumber()).thenReturn(5);
+        when(descriptor.apiUrl()).thenReturn("https://api.flowdock.com/v1");
+        when(descriptor.getProfile("team")).thenReturn(
+            new NotificationProfile("team", "profile-token", "profile-tag", false, true, true, true, true, true, true, false));
+    }
+
+    @Test
+    public void sendsWithTheSettingsOfTheProfile() throws AbortException {
+        FlowdockNotifyStep step = new FlowdockNotifyStep("Deployed to staging");
+        step.setProfile("team");
+        FlowdockNotification notification = step.createNotification(run, descriptor, null, null);
+
+        assertEquals("profile-token", notification.getFlowToken());
+        assertEquals("https://api.flowdock.com/v1", notification.getApiUrl());
+        assertEquals("profile-tag", notification.getTeamInboxMessage().getTags());
+        assertEquals("folder/deploy build 5", notification.getTeamInboxMessage().getSubject());
+        assertEquals("Deployed to staging", notification.getTeamInboxMessage().getContent());
+        assertNull(notification.getChatMessage());
+        assertNull(notification.getBuildResult());
+    }
+
+    @Test
+    public void stepArgumentsOverrideTheProfile() throws AbortException {
+        FlowdockNotifyStep step = new FlowdockNotifyStep("Deployed to staging");
+        step.setProfile("team");
+        step.setFlowToken(" step-token ");
+        step.setTags("deploy");
+        step.setSubject("Deployment");
+        step.setChat(true);
+        FlowdockNotification notification = step.createNotification(run, descriptor, null, null);
+
+        assertEquals("step-token", notification.getFlowToken());
+        assertEquals("deploy", notification.getTeamInboxMessage().getTags());
+        assertEquals("Deployment", notification.getTeamInboxMessage().getSubject());
+        assertEquals("Deployed to staging", notification.getChatMessage().getContent());
+        assertEquals("deploy", notification.getChatMessage().getTags());
+    }
+
+    @Test
+    public void blankArgumentsAreNotSet() {
+        FlowdockNotifyStep step = new FlowdockNotifyStep("message");
+        step.setProfile(" ");
+        step.setFlowToken("");
+        step.setTags(null);
+        assertNull(step.getProfile());
+        assertNull(step.getFlowToken());
+        assertNull(step.getTags());
+    }
+
+    @Test
+    public void failsForAnUnknownProfile() {
+        FlowdockNotifyStep step = new FlowdockNotifyStep("message");
+        step.setProfile("other");
+        try {
+            step.createNotification(run, descriptor, null, null);
+            fail();
+        } catch(AbortException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("other"));
+        }
+    }
+
+    @Test
+    public void failsWithoutAFlowToken() {
+        try {
+            new FlowdockNotifyStep("message").createNotification(run, descriptor, null, null);
+            fail();
+        } catch(AbortException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("no flow API token"));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.flowdock.jenkins;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlowdockOutboxTest {
+    private static final String API_URL = "https://api.flowdock.com/v1/messages";
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("flowdock-outbox", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void recoversPendingPostsAfterRestart() throws IOException {
+        FlowdockOutbox outbox = new FlowdockOutbox(dir, 100);
+        OutboxEntry sent = outbox.add(API_URL, "token1", "/team_inbox", bytes("first"));
+        outbox.add(API_URL, "token2", "/chat", bytes("second"));
+        outbox.commit();
+        outbox.done(sent);
+        outbox.close();
+
+        FlowdockOutbox recovered = new FlowdockOutbox(dir, 100);
+        List<OutboxEntry> pending = recovered.claimPending(10);
+        assertEquals(1, pending.size());
+        OutboxEntry entry = pending.get(0);
+        assertEquals(API_URL, entry.getApiUrl());
+        assertEquals("token2", entry.getFlowToken());
+        assertEquals("/chat", entry.getPath());
+        assertArrayEquals(bytes("second"), entry.getData());
+
+        // new posts don't reuse the ids of the recovered ones
+        OutboxEntry added = recovered.add(API_URL, "token3", "/chat", bytes("third"));
+        assertTrue(added.getId() > entry.getId());
+        recovered.close();
+    }
+
+    @Test
+    public void claimedPostsAreClaimedOnlyOnce() throws IOException {
+        FlowdockOutbox outbox = new FlowdockOutbox(dir, 100);
+        OutboxEntry entry = outbox.add(API_URL, "token", "/chat", bytes("message"));
+        assertEquals(0, outbox.claimPending(10).size());
+
+        outbox.release(entry);
+        assertEquals(1, outbox.claimPending(10).size());
+        assertEquals(0, outbox.claimPending(10).size());
+
+        outbox.done(entry);
+        outbox.release(entry);
+        assertEquals(0, outbox.claimPending(10).size());
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    @Test
+    public void dropsTheOldestPostWhenFull() throws IOException {
+        FlowdockOutbox outbox = new FlowdockOutbox(dir, 2);
+        for(int i = 1; i <= 3; i++) {
+            outbox.release(outbox.add(API_URL, "token", "/chat", bytes("message " + i)));
+        }
+        List<OutboxEntry> pending = outbox.claimPending(10);
+        assertEquals(2, pending.size());
+        assertArrayEquals(bytes("message 2"), pending.get(0).getData());
+        assertArrayEquals(bytes("message 3"), pending.get(1).getData());
+        outbox.close();
+    }
+
+    @Test
+    public void staysBoundedWhileAllPostsAreBeingSent() throws IOException {
+        FlowdockOutbox outbox = new FlowdockOutbox(dir, 2);
+        OutboxEntry first = outbox.add(API_URL, "token", "/chat", bytes("message 1"));
+        for(int i = 2; i <= 5; i++) {
+            // every post stays claimed, as if it was still being sent
+            outbox.add(API_URL, "token", "/chat", bytes("message " + i));
+        }
+        assertEquals(2, outbox.getPendingCount());
+
+        // the sender of a dropped post settling it doesn't affect the others
+        outbox.done(first);
+        assertEquals(2, outbox.getPendingCount());
+        outbox.close();
+
+        FlowdockOutbox recovered = new FlowdockOutbox(dir, 2);
+        List<OutboxEntry> pending = recovered.claimPending(10);
+        assertEquals(2, pending.size());
+        assertArrayEquals(bytes("message 4"), pending.get(0).getData());
+        assertArrayEquals(bytes("message 5"), pending.get(1).getData());
+        recovered.close();
+    }
+
+    @Test
+    public void ignoresAnIncompleteLastRecord() throws IOException {
+        FlowdockOutbox outbox = new FlowdockOutbox(dir, 100);
+        outbox.add(API_URL, "token", "/chat", bytes("complete"));
+        outbox.add(API_URL, "token", "/chat", bytes("cut short by a crash"));
+        outbox.close();
+
+        RandomAccessFile file = new RandomAccessFile(segment(), "rw");
+        try {
+            file.setLength(file.length() - 5);
+        } finally {
+            file.close();
+        }
+
+        FlowdockOutbox recovered = new FlowdockOutbox(dir, 100);
+        List<OutboxEntry> pending = recovered.claimPending(10);
+        assertEquals(1, pending.size());
+        assertArrayEquals(bytes("complete"), pending.get(0).getData());
+        recovered.close();
+    }
+
+    @Test
+    public void ignoresTheRestOfASegmentAfterAChecksumMismatch() throws IOException {
+        FlowdockOutbox outbox = new FlowdockOutbox(dir, 100);
+        outbox.add(API_URL, "token", "/chat", bytes("intact"));
+        outbox.add(API_URL, "token", "/chat", bytes("corrupted"));
+        outbox.add(API_URL, "token", "/chat", bytes("after the corruption"));
+        outbox.close();
+
+        RandomAccessFile file = new RandomAccessFile(segment(), "rw");
+        try {
+            // each record is its length, a CRC32 and the payload
+            long second = 12 + file.readInt();
+            long position = second + 12 + 5;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        FlowdockOutbox recovered = new FlowdockOutbox(dir, 100);
+        List<OutboxEntry> pending = recovered.claimPending(10);
+        assertEquals(1, pending.size());
+        assertArrayEquals(bytes("intact"), pending.get(0).getData());
+        recovered.close();
+    }
+
+    private File segment() {
+        File[] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private static byte[] bytes(String value) throws IOException {
+        return value.getBytes("UTF-8");
+    }
+}
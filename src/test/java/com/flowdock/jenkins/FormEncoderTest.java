@@ -0,0 +1,96 @@
+package com.flowdock.jenkins;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class FormEncoderTest {
+    private static final String[] VALUES = {
+        "",
+        "plain",
+        "spaces and symbols: &=+%/?#~*._-",
+        "<h3>Build #12 failed</h3>\n<a href=\"http://jenkins/job/x/12/\">x</a>",
+        "äöü ß €",
+        "日本語",
+        "emoji 👍 and more",
+        "\u0000\u007f\u0080߿ࠀ￿"
+    };
+
+    @Test
+    public void encodesLikeUrlEncoder() throws UnsupportedEncodingException {
+        for(String value : VALUES) {
+            FormEncoder encoder = new FormEncoder().field("content", value);
+            assertEquals("content=" + URLEncoder.encode(value, "UTF-8"), encoder.toString());
+        }
+    }
+
+    @Test
+    public void decodesBackToTheSameValues() throws UnsupportedEncodingException {
+        FormEncoder encoder = new FormEncoder(16);
+        for(int i = 0; i < VALUES.length; i++) {
+            encoder.field("field" + i, VALUES[i]);
+        }
+        String[] fields = new String(encoder.toByteArray(), "US-ASCII").split("&");
+        assertEquals(VALUES.length, fields.length);
+        for(int i = 0; i < VALUES.length; i++) {
+            String[] field = fields[i].split("=", 2);
+            assertEquals("field" + i, field[0]);
+            assertEquals(VALUES[i], URLDecoder.decode(field[1], "UTF-8"));
+        }
+    }
+
+    @Test
+    public void encodesUnpairedSurrogatesAsQuestionMarks() throws UnsupportedEncodingException {
+        String value = "a\ud83db\udc4d";
+        assertEquals("v=" + URLEncoder.encode(value, "UTF-8"), new FormEncoder().field("v", value).toString());
+        assertEquals("v=a%3Fb%3F", new FormEncoder().field("v", value).toString());
+    }
+
+    @Test
+    public void nullValueIsEmpty() {
+        assertEquals("a=&b=1", new FormEncoder().field("a", null).field("b", "1").toString());
+    }
+
+    @Test
+    public void leavesOutWhitespaceOnRequest() {
+        FormEncoder encoder = new FormEncoder().fieldWithoutWhitespace("tags", " jenkins,\tbuild fail\n");
+        assertEquals("tags=jenkins%2Cbuildfail", encoder.toString());
+    }
+
+    @Test
+    public void growsPastTheInitialCapacity() throws UnsupportedEncodingException {
+        StringBuilder value = new StringBuilder();
+        for(int i = 0; i < 1000; i++) {
+            value.append("€ ");
+        }
+        FormEncoder encoder = new FormEncoder(16).field("content", value);
+        assertEquals(encoder.toString().length(), encoder.size());
+        assertEquals(value.toString(), URLDecoder.decode(encoder.toString().substring("content=".length()), "UTF-8"));
+    }
+
+    @Test
+    public void threadEncoderIsReusedEmpty() {
+        FormEncoder encoder = FormEncoder.forThread().field("a", "1");
+        FormEncoder again = FormEncoder.forThread();
+        assertSame(encoder, again);
+        assertEquals(0, again.size());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void postDataIsTheEncodedMessage() throws UnsupportedEncodingException {
+        ChatMessage message = new ChatMessage();
+        message.setContent("Build #1 failed");
+        message.setTags("jenkins, build-1");
+        FormEncoder encoder = new FormEncoder();
+        message.writePostData(encoder);
+        assertEquals(encoder.toString(), message.asPostData());
+        assertEquals("content=Build+%231+failed&external_user_name=Jenkins&tags=jenkins%2Cbuild-1",
+            message.asPostData());
+    }
+}
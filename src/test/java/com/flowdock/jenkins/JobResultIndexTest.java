@@ -0,0 +1,177 @@
+package com.flowdock.jenkins;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JobResultIndexTest {
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("flowdock-results", ".txt");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void usesTheRecordedResultOfTheBuildBefore() {
+        JobResultIndex index = new JobResultIndex(null);
+        AbstractProject project = project("job");
+        index.record(build(project, 4, Result.FAILURE, null));
+
+        AbstractBuild next = build(project, 5, Result.SUCCESS, null);
+        assertEquals(Result.FAILURE, index.previousResult(next));
+        verify(next, never()).getPreviousBuild();
+    }
+
+    @Test
+    public void loadsThePreviousBuildAfterUnrecordedBuilds() {
+        JobResultIndex index = new JobResultIndex(null);
+        AbstractProject project = project("job");
+        index.record(build(project, 4, Result.FAILURE, null));
+
+        // build 5 fixed the job while the notifier was disabled
+        AbstractBuild unrecorded = build(project, 5, Result.SUCCESS, null);
+        assertEquals(Result.SUCCESS, index.previousResult(build(project, 6, Result.SUCCESS, unrecorded)));
+    }
+
+    @Test
+    public void loadsThePreviousBuildOfAnUnknownJob() {
+        JobResultIndex index = new JobResultIndex(null);
+        AbstractProject project = project("job");
+        assertNull(index.previousResult(build(project, 1, Result.SUCCESS, null)));
+
+        AbstractBuild previous = build(project, 1, Result.UNSTABLE, null);
+        assertEquals(Result.UNSTABLE, index.previousResult(build(project, 2, Result.SUCCESS, previous)));
+    }
+
+    @Test
+    public void keepsTheLatestOfBuildsFinishingOutOfOrder() {
+        JobResultIndex index = new JobResultIndex(null);
+        AbstractProject project = project("job");
+        index.record(build(project, 8, Result.FAILURE, null));
+        index.record(build(project, 7, Result.SUCCESS, null));
+
+        assertEquals(Result.FAILURE, index.previousResult(build(project, 9, Result.SUCCESS, null)));
+    }
+
+    @Test
+    public void renamedJobKeepsItsResult() throws IOException {
+        write("12\tFAILURE\tfolder/old name\n", "7\tSUCCESS\tother\n");
+        JobResultIndex index = new JobResultIndex(file);
+        index.rename("folder/old name", "renamed/new name");
+        index.save();
+
+        assertEquals(2, index.size());
+        assertEquals(lines("12\tFAILURE\trenamed/new name", "7\tSUCCESS\tother"), read());
+    }
+
+    @Test
+    public void renamingAnUnknownJobChangesNothing() throws IOException {
+        write("7\tSUCCESS\tother\n");
+        JobResultIndex index = new JobResultIndex(file);
+        index.rename("unknown", "new name");
+        index.save();
+
+        assertEquals(1, index.size());
+        assertEquals(lines("7\tSUCCESS\tother"), read());
+    }
+
+    @Test
+    public void deletedJobIsForgotten() throws IOException {
+        write("12\tFAILURE\tdeleted\n", "7\tSUCCESS\tother\n");
+        JobResultIndex index = new JobResultIndex(file);
+        index.remove("deleted");
+        index.remove("never built");
+        index.save();
+
+        assertEquals(1, index.size());
+        assertEquals(lines("7\tSUCCESS\tother"), read());
+    }
+
+    @Test
+    public void skipsInvalidLines() throws IOException {
+        write("not a number\tFAILURE\tbroken\n", "3\tSUCCESS\n", "\n", "5\tUNSTABLE\tjob with\ttab\n");
+        JobResultIndex index = new JobResultIndex(file);
+
+        assertEquals(1, index.size());
+        index.save();
+        assertEquals(lines("5\tUNSTABLE\tjob with\ttab"), read());
+    }
+
+    private static AbstractProject project(String name) {
+        AbstractProject project = mock(AbstractProject.class);
+        when(project.getFullName()).thenReturn(name);
+        return project;
+    }
+
+    private static AbstractBuild build(AbstractProject project, int number, Result result, AbstractBuild previous) {
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getProject()).thenReturn(project);
+        when(build.getNumber()).thenReturn(number);
+        when(build.getResult()).thenReturn(result);
+        when(build.getPreviousBuild()).thenReturn(previous);
+        return build;
+    }
+
+    private void write(String... lines) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for(String line : lines) {
+                writer.write(line);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private List<String> read() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        // the order of the jobs in the file is not defined
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static List<String> lines(String... lines) {
+        List<String> sorted = new ArrayList<String>();
+        Collections.addAll(sorted, lines);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
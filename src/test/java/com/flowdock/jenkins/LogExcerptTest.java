@@ -0,0 +1,115 @@
+package com.flowdock.jenkins;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogExcerptTest {
+    private static final long NO_TIMEOUT = 60 * 1000L;
+
+    private File log;
+
+    @Before
+    public void createLog() throws IOException {
+        log = File.createTempFile("flowdock-log", ".txt");
+    }
+
+    @After
+    public void deleteLog() {
+        log.delete();
+    }
+
+    @Test
+    public void readsTheLastLinesOldestFirst() throws IOException {
+        write("one\ntwo\nthree\nfour\n");
+        assertEquals(Arrays.asList("three", "four"), excerpt(2).read(log));
+        assertEquals(Arrays.asList("one", "two", "three", "four"), excerpt(10).read(log));
+    }
+
+    @Test
+    public void readsALastLineWithoutNewline() throws IOException {
+        write("one\r\ntwo\r\nthree");
+        assertEquals(Arrays.asList("one", "two", "three"), excerpt(10).read(log));
+    }
+
+    @Test
+    public void joinsLinesAcrossChunkBoundaries() throws IOException {
+        // lines of varying length put the 8 KB chunk boundaries in the middle of lines
+        List<String> lines = new ArrayList<String>();
+        StringBuilder content = new StringBuilder();
+        for(int i = 0; i < 1000; i++) {
+            StringBuilder line = new StringBuilder("line ").append(i).append(' ');
+            for(int j = 0; j < i % 97; j++) {
+                line.append(j % 2 == 0 ? 'x' : '€');
+            }
+            lines.add(line.toString());
+            content.append(line).append('\n');
+        }
+        write(content.toString());
+
+        LogExcerpt excerpt = new LogExcerpt(300, null, 1024 * 1024, NO_TIMEOUT);
+        assertEquals(lines.subList(700, 1000), excerpt.read(log));
+    }
+
+    @Test
+    public void truncatesLongLines() throws IOException {
+        StringBuilder longLine = new StringBuilder();
+        for(int i = 0; i < 20 * 1024; i++) {
+            longLine.append((char) ('a' + i % 26));
+        }
+        write("before\n" + longLine + "\nafter\n");
+
+        List<String> lines = excerpt(10).read(log);
+        assertEquals(3, lines.size());
+        assertEquals("before", lines.get(0));
+        assertEquals(longLine.substring(0, 500) + "...", lines.get(1));
+        assertEquals("after", lines.get(2));
+    }
+
+    @Test
+    public void keepsOnlyLinesMatchingTheFilter() throws IOException {
+        write("[INFO] compiling\n[ERROR] first\n[INFO] testing\n[ERROR] second\n");
+        LogExcerpt excerpt = new LogExcerpt(10, Pattern.compile("ERROR"), 1024, NO_TIMEOUT);
+        assertEquals(Arrays.asList("[ERROR] first", "[ERROR] second"), excerpt.read(log));
+    }
+
+    @Test
+    public void stopsAtTheSizeLimit() throws IOException {
+        write("0123456789\n0123456789\n0123456789\n");
+        LogExcerpt excerpt = new LogExcerpt(10, null, 25, NO_TIMEOUT);
+        assertEquals(Arrays.asList("0123456789", "0123456789"), excerpt.read(log));
+    }
+
+    @Test
+    public void emptyOrMissingLogHasNoLines() throws IOException {
+        write("");
+        assertTrue(excerpt(10).read(log).isEmpty());
+        assertTrue(excerpt(10).read(new File(log.getPath() + ".missing")).isEmpty());
+        assertTrue(new LogExcerpt(0, null, 1024, NO_TIMEOUT).read(log).isEmpty());
+    }
+
+    private static LogExcerpt excerpt(int lines) {
+        return new LogExcerpt(lines, null, 1024 * 1024, NO_TIMEOUT);
+    }
+
+    private void write(String content) throws IOException {
+        OutputStream out = new FileOutputStream(log);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
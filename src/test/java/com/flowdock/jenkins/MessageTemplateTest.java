@@ -0,0 +1,102 @@
+package com.flowdock.jenkins;
+
+import com.flowdock.jenkins.MessageTemplate.Escaping;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTemplateTest {
+    @Test
+    public void replacesVariables() throws Exception {
+        Values values = new Values().with("PROJECT", "app").with("BUILD_NUMBER", "12");
+        assertEquals("app build 12 done", render("${PROJECT} build ${ BUILD_NUMBER } done", Escaping.NONE, values));
+        assertEquals("app", render("${PROJECT}", Escaping.NONE, values));
+    }
+
+    @Test
+    public void undefinedVariablesAreEmpty() throws Exception {
+        assertEquals("build  done", render("build ${UNKNOWN} done", Escaping.NONE, new Values()));
+    }
+
+    @Test
+    public void doubleDollarIsALiteralDollar() throws Exception {
+        Values values = new Values().with("PRICE", "5");
+        assertEquals("$5", render("$$${PRICE}", Escaping.NONE, values));
+        assertEquals("${PRICE}", render("$${PRICE}", Escaping.NONE, values));
+        assertEquals("$$", render("$$$$", Escaping.NONE, values));
+    }
+
+    @Test
+    public void keepsUnterminatedAndEmptyVariablesAsText() throws Exception {
+        Values values = new Values().with("A", "a");
+        assertEquals("${A", render("${A", Escaping.NONE, values));
+        assertEquals("a ${", render("${A} ${", Escaping.NONE, values));
+        assertEquals("${} a", render("${} ${A}", Escaping.NONE, values));
+        assertEquals("cost $ and $A", render("cost $ and $A", Escaping.NONE, values));
+        assertEquals("ends with $", render("ends with $", Escaping.NONE, values));
+    }
+
+    @Test
+    public void escapesValuesForHtml() throws Exception {
+        Values values = new Values().with("MESSAGE", "<b>\"Tom\" & 'Jerry'</b>");
+        assertEquals("<p>&lt;b&gt;&quot;Tom&quot; &amp; &#39;Jerry&#39;&lt;/b&gt;</p>",
+            render("<p>${MESSAGE}</p>", Escaping.HTML, values));
+    }
+
+    @Test
+    public void escapesValuesForMarkdown() throws Exception {
+        Values values = new Values().with("MESSAGE", "fix *all* the [things](url) #1");
+        assertEquals("fix \\*all\\* the \\[things\\]\\(url\\) \\#1", render("${MESSAGE}", Escaping.MARKDOWN, values));
+    }
+
+    @Test
+    public void doesNotEscapeFormattedValues() throws Exception {
+        Values values = new Values().with("COMMITS", "<ul><li>fix</li></ul>").formatted("COMMITS");
+        assertEquals("<ul><li>fix</li></ul>", render("${COMMITS}", Escaping.HTML, values));
+    }
+
+    @Test
+    public void compiledTemplatesAreCached() {
+        MessageTemplate template = MessageTemplate.compile("${A} and ${B}", Escaping.HTML);
+        assertSame(template, MessageTemplate.compile("${A} and ${B}", Escaping.HTML));
+        assertTrue(template.uses("B"));
+        assertFalse(template.uses("C"));
+        assertFalse(template == MessageTemplate.compile("${A} and ${B}", Escaping.MARKDOWN));
+    }
+
+    private static String render(String template, Escaping escaping, Values values) throws Exception {
+        return MessageTemplate.compile(template, escaping).render(values);
+    }
+
+    private static final class Values implements MessageTemplate.Variables {
+        private final Map<String, String> values = new HashMap<String, String>();
+        private final Set<String> formatted = new HashSet<String>();
+
+        Values with(String name, String value) {
+            values.put(name, value);
+            return this;
+        }
+
+        Values formatted(String name) {
+            formatted.add(name);
+            return this;
+        }
+
+        public String get(String name, Escaping escaping) throws IOException, InterruptedException {
+            return values.get(name);
+        }
+
+        public boolean isFormatted(String name, Escaping escaping) {
+            return formatted.contains(name);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.flowdock.jenkins;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.flowdock.jenkins.FlowdockDispatcherTest.notification;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationCoalescerTest {
+    private final List<String> posts = new CopyOnWriteArrayList<String>();
+    private final FlowdockDispatcher dispatcher = new FlowdockDispatcher(1, 10, OverflowPolicy.DISCARD_NEWEST,
+        new FlowdockTransport() {
+            public FlowdockResponse post(URL url, byte[] data, int length) throws UnsupportedEncodingException {
+                posts.add(URLDecoder.decode(new String(data, 0, length, "UTF-8"), "UTF-8"));
+                return new FlowdockResponse(200, "OK", "{}");
+            }
+        }, 1, 10, null);
+    private NotificationCoalescer coalescer;
+
+    @After
+    public void tearDown() {
+        if(coalescer != null)
+            coalescer.shutdown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void sendsAFullBatchAsOneDigest() throws InterruptedException {
+        coalescer = new NotificationCoalescer(dispatcher, 60000L, 3, false);
+        FlowdockDispatcherTest.Results[] results = new FlowdockDispatcherTest.Results[3];
+        for(int i = 0; i < results.length; i++) {
+            results[i] = new FlowdockDispatcherTest.Results();
+            assertTrue(coalescer.add(notification("flow-a", results[i])));
+        }
+
+        for(FlowdockDispatcherTest.Results result : results) {
+            List<String> delivered = result.await();
+            assertEquals(1, delivered.size());
+            assertTrue(delivered.get(0), delivered.get(0).startsWith("In a digest of 3 builds: "));
+        }
+        assertEquals(1, posts.size());
+    }
+
+    @Test
+    public void sendsABatchOnceItsWindowHasPassed() throws InterruptedException {
+        coalescer = new NotificationCoalescer(dispatcher, 100L, 20, false);
+        FlowdockDispatcherTest.Results first = new FlowdockDispatcherTest.Results();
+        FlowdockDispatcherTest.Results second = new FlowdockDispatcherTest.Results();
+        coalescer.add(notification("flow-a", first));
+        coalescer.add(notification("flow-a", second));
+
+        assertEquals(1, first.await().size());
+        assertEquals(1, second.await().size());
+        assertEquals(1, posts.size());
+    }
+
+    @Test
+    public void keepsFlowsInSeparateBatches() throws InterruptedException {
+        coalescer = new NotificationCoalescer(dispatcher, 60000L, 20, false);
+        FlowdockDispatcherTest.Results a = new FlowdockDispatcherTest.Results();
+        FlowdockDispatcherTest.Results b = new FlowdockDispatcherTest.Results();
+        coalescer.add(notification("flow-a", a));
+        coalescer.add(notification("flow-b", b));
+        coalescer.shutdown();
+
+        // a single notification is sent as it is, not as a digest
+        assertTrue(a.await().get(0).startsWith("Flow flow-a"));
+        assertTrue(b.await().get(0).startsWith("Flow flow-b"));
+        assertEquals(2, posts.size());
+    }
+
+    @Test
+    public void sendsUrgentNotificationsRightAway() throws InterruptedException {
+        coalescer = new NotificationCoalescer(dispatcher, 60000L, 20, true);
+        FlowdockDispatcherTest.Results results = new FlowdockDispatcherTest.Results();
+        TeamInboxMessage message = new TeamInboxMessage();
+        message.setSubject("Build #2 failed");
+        message.setContent("content");
+        coalescer.add(new FlowdockNotification(null, null, "http://localhost/v1", "flow-a", BuildResult.FAILURE,
+            message, null, results));
+
+        assertEquals(1, results.await().size());
+        assertEquals(1, posts.size());
+    }
+
+    @Test
+    public void notificationAddedAfterShutdownIsNotHeld() throws InterruptedException {
+        coalescer = new NotificationCoalescer(dispatcher, 60000L, 20, false);
+        coalescer.shutdown();
+        FlowdockDispatcherTest.Results results = new FlowdockDispatcherTest.Results();
+        assertTrue(coalescer.add(notification("flow-a", results)));
+
+        assertEquals(1, results.await().size());
+    }
+
+    @Test
+    public void droppedBatchCompletesItsParts() throws InterruptedException {
+        coalescer = new NotificationCoalescer(dispatcher, 60000L, 2, false);
+        dispatcher.shutdown();
+        FlowdockDispatcherTest.Results first = new FlowdockDispatcherTest.Results();
+        FlowdockDispatcherTest.Results second = new FlowdockDispatcherTest.Results();
+        assertTrue(coalescer.add(notification("flow-a", first)));
+        assertFalse(coalescer.add(notification("flow-a", second)));
+
+        for(FlowdockDispatcherTest.Results result : new FlowdockDispatcherTest.Results[] { first, second }) {
+            List<String> delivered = result.await();
+            assertEquals(1, delivered.size());
+            assertTrue(delivered.get(0), delivered.get(0).contains("dropped"));
+        }
+        assertTrue(posts.isEmpty());
+    }
+}
@@ -0,0 +1,195 @@
+package com.flowdock.jenkins;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NotificationContextTest {
+    private static final String ROOT_URL = "http://jenkins.example.com/";
+
+    @Test
+    public void readsTheNamesOfTheBuild() {
+        AbstractBuild build = build(12, 0);
+        NotificationContext context = NotificationContext.of(build, BuildResult.FAILURE, new EnvVars(), ROOT_URL);
+
+        assertEquals("flowdock-plugin", context.getProjectName());
+        assertEquals("", context.getConfiguration());
+        assertEquals("#12", context.getDisplayName());
+        assertEquals("12", context.getBuildNumber());
+        assertEquals("flowdock-plugin #12", context.getFullDisplayName());
+        assertEquals(ROOT_URL + "job/flowdock-plugin/12/", context.getBuildLink());
+        assertEquals(Result.FAILURE, context.getResult());
+        assertNull(NotificationContext.of(build, BuildResult.FAILURE, new EnvVars(), null).getBuildLink());
+    }
+
+    @Test
+    public void namesTheMatrixConfiguration() {
+        AbstractProject matrix = mock(AbstractProject.class);
+        when(matrix.getDisplayName()).thenReturn("matrix");
+        AbstractBuild build = build(3, 0);
+        AbstractProject configuration = build.getProject();
+        when(configuration.getDisplayName()).thenReturn("jdk=7");
+        when(configuration.getRootProject()).thenReturn(matrix);
+        NotificationContext context = NotificationContext.of(build, BuildResult.SUCCESS, new EnvVars(), ROOT_URL);
+
+        assertEquals("matrix", context.getProjectName());
+        assertEquals(" on jdk=7", context.getConfiguration());
+        assertEquals("jdk=7", context.getConfigurationName());
+    }
+
+    @Test
+    public void keepsTheNewestCommitsAndCountsAll() {
+        AbstractBuild build = build(7, 5);
+        NotificationContext context = NotificationContext.of(build, BuildResult.FAILURE, new EnvVars(), ROOT_URL);
+
+        List<ChangeLogSet.Entry> commits = context.getCommits(2);
+        assertEquals(2, commits.size());
+        assertEquals("commit-4", commits.get(0).getCommitId());
+        assertEquals("commit-3", commits.get(1).getCommitId());
+        assertEquals(5, context.getCommitCount());
+
+        // fewer commits are taken from the ones already read
+        assertEquals("commit-4", context.getCommits(1).get(0).getCommitId());
+        assertEquals(1, context.getBuildChanges(1).size());
+        assertEquals(7, context.getBuildChanges(1).get(0).getBuild());
+        verify(build, times(1)).getChangeSet();
+
+        // more commits read the change set again
+        assertEquals(4, context.getCommits(4).size());
+        assertEquals("commit-1", context.getBuildChanges(4).get(3).getCommitId());
+        verify(build, times(2)).getChangeSet();
+    }
+
+    @Test
+    public void listsTheEarlierCommitsAfterTheBuildCommits() {
+        NotificationContext context = NotificationContext.of(build(7, 2), BuildResult.FAILURE, new EnvVars(), ROOT_URL);
+        assertFalse(context.hasEarlierChanges());
+
+        List<Change> earlier = Arrays.asList(new Change("earlier-1", "author", "msg", 6),
+            new Change("earlier-0", "author", "msg", 5));
+        context.setEarlierChanges(new ChangeIndex.EarlierChanges(earlier, 40));
+
+        assertTrue(context.hasEarlierChanges());
+        List<Change> changes = context.getChanges(3);
+        assertEquals(3, changes.size());
+        assertEquals("commit-1", changes.get(0).getCommitId());
+        assertEquals("commit-0", changes.get(1).getCommitId());
+        assertEquals("earlier-1", changes.get(2).getCommitId());
+        assertEquals(42, context.getChangeCount());
+    }
+
+    @Test
+    public void readsTheEnvironmentOnce() throws Exception {
+        AbstractBuild build = build(7, 0);
+        EnvVars env = new EnvVars();
+        env.put("BUILD_NUMBER", "7");
+        when(build.getEnvironment(any(TaskListener.class))).thenReturn(env);
+        NotificationContext context = NotificationContext.of(build, BuildResult.SUCCESS, null);
+
+        assertEquals("build-7", context.expand("build-$BUILD_NUMBER"));
+        assertEquals("build-7", context.expand("build-$BUILD_NUMBER"));
+        assertEquals("7", context.expand("$BUILD_NUMBER"));
+        assertNull(context.expand(null));
+        verify(build, times(1)).getEnvironment(any(TaskListener.class));
+    }
+
+    @Test
+    public void hasNoLogExcerptForSuccessfulBuilds() {
+        AbstractBuild build = build(7, 0);
+        NotificationContext context = NotificationContext.of(build, BuildResult.SUCCESS, new EnvVars(), ROOT_URL);
+
+        assertTrue(context.getLogExcerpt(new LogExcerpt(10, null, 1024, 1000L)).isEmpty());
+        verify(build, times(0)).getLogFile();
+    }
+
+    /**
+     * A build of a freestyle project with the given number of commits, the oldest
+     * first as in a change set.
+     */
+    @SuppressWarnings("unchecked")
+    private static AbstractBuild build(int number, int commits) {
+        AbstractProject project = mock(AbstractProject.class);
+        when(project.getDisplayName()).thenReturn("flowdock-plugin");
+        when(project.getRootProject()).thenReturn(project);
+
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getProject()).thenReturn(project);
+        when(build.getResult()).thenReturn(Result.FAILURE);
+        when(build.getNumber()).thenReturn(number);
+        when(build.getDisplayName()).thenReturn("#" + number);
+        when(build.getFullDisplayName()).thenReturn("flowdock-plugin #" + number);
+        when(build.getUrl()).thenReturn("job/flowdock-plugin/" + number + "/");
+        when(build.getChangeSet()).thenReturn(new FakeChangeLogSet(build, commits));
+        return build;
+    }
+
+    private static final class FakeChangeLogSet extends ChangeLogSet<FakeEntry> {
+        private final List<FakeEntry> entries = new ArrayList<FakeEntry>();
+
+        FakeChangeLogSet(AbstractBuild<?, ?> build, int commits) {
+            super(build);
+            for(int i = 0; i < commits; i++) {
+                entries.add(new FakeEntry("commit-" + i));
+            }
+        }
+
+        @Override
+        public boolean isEmptySet() {
+            return entries.isEmpty();
+        }
+
+        public Iterator<FakeEntry> iterator() {
+            return entries.iterator();
+        }
+    }
+
+    private static final class FakeEntry extends ChangeLogSet.Entry {
+        private final String commitId;
+
+        FakeEntry(String commitId) {
+            this.commitId = commitId;
+        }
+
+        @Override
+        public String getMsg() {
+            return "message of " + commitId;
+        }
+
+        @Override
+        public User getAuthor() {
+            return null;
+        }
+
+        @Override
+        public String getCommitId() {
+            return commitId;
+        }
+
+        @Override
+        public Collection<String> getAffectedPaths() {
+            return Collections.emptyList();
+        }
+    }
+}
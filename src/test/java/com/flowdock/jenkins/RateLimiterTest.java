@@ -0,0 +1,103 @@
+package com.flowdock.jenkins;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void spacesRequestsOnceTheBurstIsUsed() {
+        // 60 per minute, one request a second
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(60);
+        long now = System.nanoTime();
+        assertEquals(0L, bucket.reserve(now));
+        long previous = bucket.reserve(now);
+        for(int i = 0; i < 5; i++) {
+            long wait = bucket.reserve(now);
+            assertEquals(SECOND, wait - previous);
+            previous = wait;
+        }
+    }
+
+    @Test
+    public void burstCoversASecondOfRequests() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(600);
+        long now = System.nanoTime();
+        int free = 0;
+        while(bucket.reserve(now) == 0L) {
+            free++;
+        }
+        assertEquals(10, free);
+    }
+
+    @Test
+    public void refillsWhileIdle() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(60);
+        long now = System.nanoTime();
+        assertEquals(0L, bucket.reserve(now));
+        assertEquals(SECOND, bucket.reserve(now));
+
+        long later = now + 10 * SECOND;
+        assertEquals(0L, bucket.reserve(later));
+        assertEquals(SECOND, bucket.reserve(later));
+    }
+
+    @Test
+    public void refundedSlotIsGivenToTheNextRequest() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(60);
+        long now = System.nanoTime();
+        assertEquals(0L, bucket.reserve(now));
+        assertEquals(SECOND, bucket.reserve(now));
+        bucket.refund();
+        assertEquals(SECOND, bucket.reserve(now));
+        assertEquals(2 * SECOND, bucket.reserve(now));
+    }
+
+    @Test
+    public void throttlingWaitsForRetryAfterAndHalvesTheRate() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(60);
+        bucket.throttle(5000L);
+        long now = System.nanoTime();
+        long first = bucket.reserve(now);
+        assertTrue("waited " + first, first > 4 * SECOND && first <= 5 * SECOND);
+        assertEquals(2 * SECOND, bucket.reserve(now) - first);
+    }
+
+    @Test
+    public void acceptedRequestsRestoreTheRate() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(60);
+        bucket.throttle(0L);
+        for(int i = 0; i < 20; i++) {
+            bucket.recover();
+        }
+        long now = System.nanoTime();
+        long first = bucket.reserve(now);
+        assertEquals(SECOND, bucket.reserve(now) - first);
+    }
+
+    @Test
+    public void failsWhenTheWaitPassesTheDeadline() throws IOException {
+        RateLimiter limiter = new RateLimiter(0, 60);
+        long deadline = System.currentTimeMillis() + 100L;
+        limiter.acquire("flow", deadline);
+        for(int i = 0; i < 3; i++) {
+            try {
+                limiter.acquire("flow", deadline);
+                fail("the second request has to wait a second");
+            } catch(IOException expected) {
+                // the request could not be sent in time, and gave back its slot
+            }
+        }
+        // the failed requests didn't push back the next slot
+        limiter.acquire("flow", System.currentTimeMillis() + 1500L);
+        // other flows have their own bucket
+        limiter.acquire("other flow", deadline);
+    }
+}
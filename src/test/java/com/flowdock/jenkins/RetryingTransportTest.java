@@ -0,0 +1,133 @@
+package com.flowdock.jenkins;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryingTransportTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final byte[] DATA = "content=x".getBytes();
+
+    private URL url;
+    private ScriptedTransport delegate;
+
+    @Before
+    public void setUp() throws IOException {
+        url = new URL("https://api.flowdock.com/v1/messages/team_inbox/token");
+        delegate = new ScriptedTransport();
+    }
+
+    @Test
+    public void retriesServerErrors() throws IOException {
+        delegate.answer(response(503), response(200));
+        RetryingTransport transport = new RetryingTransport(delegate, 3, HOUR, 5, HOUR);
+
+        assertEquals(200, transport.post(url, DATA, DATA.length).getStatus());
+        assertEquals(2, delegate.calls);
+    }
+
+    @Test
+    public void retriesIOErrors() throws IOException {
+        delegate.answer(new SocketTimeoutException("Read timed out"), response(200));
+        RetryingTransport transport = new RetryingTransport(delegate, 3, HOUR, 5, HOUR);
+
+        assertEquals(200, transport.post(url, DATA, DATA.length).getStatus());
+        assertEquals(2, delegate.calls);
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws IOException {
+        delegate.answer(response(404), response(200));
+        RetryingTransport transport = new RetryingTransport(delegate, 3, HOUR, 5, HOUR);
+
+        assertEquals(404, transport.post(url, DATA, DATA.length).getStatus());
+        assertEquals(1, delegate.calls);
+    }
+
+    @Test
+    public void returnsTheLastResponseWhenOutOfRetries() throws IOException {
+        delegate.answer(response(500));
+        RetryingTransport transport = new RetryingTransport(delegate, 0, HOUR, 5, HOUR);
+
+        assertEquals(500, transport.post(url, DATA, DATA.length).getStatus());
+        assertEquals(1, delegate.calls);
+    }
+
+    @Test
+    public void stopsAtTheDeadline() throws IOException {
+        delegate.answer(new SocketTimeoutException("Read timed out"), response(200));
+        RetryingTransport transport = new RetryingTransport(delegate, 3, 0L, 5, HOUR);
+
+        try {
+            transport.post(url, DATA, DATA.length);
+            fail();
+        } catch(SocketTimeoutException expected) {
+        }
+        assertEquals(1, delegate.calls);
+    }
+
+    @Test
+    public void doesNotWaitForARetryAfterBeyondTheDeadline() throws IOException {
+        delegate.answer(new FlowdockResponse(429, "Too Many Requests", "", HOUR), response(200));
+        RetryingTransport transport = new RetryingTransport(delegate, 3, 60000L, 5, HOUR);
+
+        long start = System.currentTimeMillis();
+        assertEquals(429, transport.post(url, DATA, DATA.length).getStatus());
+        assertTrue(System.currentTimeMillis() - start < 10000L);
+        assertEquals(1, delegate.calls);
+    }
+
+    @Test
+    public void failsFastWhileTheCircuitIsOpen() throws IOException {
+        delegate.answer(response(503), response(200));
+        RetryingTransport transport = new RetryingTransport(delegate, 0, HOUR, 1, HOUR);
+        transport.post(url, DATA, DATA.length);
+
+        try {
+            transport.post(url, DATA, DATA.length);
+            fail();
+        } catch(IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("https://api.flowdock.com"));
+        }
+        assertEquals(1, delegate.calls);
+        assertEquals(1, transport.getCircuitBreakers().size());
+        assertEquals(CircuitBreaker.State.OPEN, transport.getCircuitBreakers().get(0).getState());
+    }
+
+    private static FlowdockResponse response(int status) {
+        return new FlowdockResponse(status, "status " + status, "{}");
+    }
+
+    /**
+     * Transport giving the scripted responses or throwing the scripted exceptions in
+     * turn, repeating the last one.
+     */
+    private static final class ScriptedTransport implements FlowdockTransport {
+        private final Queue<Object> answers = new LinkedList<Object>();
+        private Object last;
+        private int calls;
+
+        void answer(Object... answers) {
+            this.answers.addAll(Arrays.asList(answers));
+        }
+
+        public FlowdockResponse post(URL url, byte[] data, int length) throws IOException {
+            calls++;
+            if(!answers.isEmpty())
+                last = answers.remove();
+            if(last instanceof IOException)
+                throw (IOException) last;
+            return (FlowdockResponse) last;
+        }
+    }
+}
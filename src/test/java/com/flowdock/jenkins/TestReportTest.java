@@ -0,0 +1,101 @@
+package com.flowdock.jenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.tasks.test.AbstractTestResultAction;
+import hudson.tasks.test.TestResult;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestReportTest {
+    private final AbstractBuild build = mock(AbstractBuild.class);
+    private final AbstractTestResultAction action = mock(AbstractTestResultAction.class);
+
+    @Test
+    public void noSummaryWithoutTestResults() {
+        assertNull(new TestReport(10, 1000L).summarize(build));
+    }
+
+    @Test
+    public void countsPassingTestsWithoutLoadingThem() {
+        results(120, 0, 2);
+        TestSummary summary = new TestReport(10, 1000L).summarize(build);
+
+        assertEquals("2 skipped, 118 passed", summary.getCounts());
+        assertTrue(summary.getFailures().isEmpty());
+        assertTrue(summary.isFailuresRead());
+        verify(action, never()).getFailedTests();
+    }
+
+    @Test
+    public void listsTheLongestFailuresFirst() {
+        results(50, 4, 0);
+        doReturn(Arrays.asList(test("a", 0.5f), test("b", 3f), test("c", 1.25f), test("d", 0.1f)))
+            .when(action).getFailedTests();
+        TestSummary summary = new TestReport(2, 1000L).summarize(build);
+
+        assertEquals("4 failed, 46 passed", summary.getCounts());
+        assertTrue(summary.isFailuresRead());
+        List<TestSummary.FailedTest> failures = summary.getFailures();
+        assertEquals(2, failures.size());
+        assertEquals("b", failures.get(0).getName());
+        assertEquals("c", failures.get(1).getName());
+        assertEquals("1.25 s", failures.get(1).getDurationString());
+    }
+
+    @Test
+    public void onlyCountsTooManyFailures() {
+        results(1000, TestReport.MAX_FAILURES_READ + 1, 0);
+        TestSummary summary = new TestReport(10, 1000L).summarize(build);
+
+        assertEquals(TestReport.MAX_FAILURES_READ + 1, summary.getFailed());
+        assertFalse(summary.isFailuresRead());
+        verify(action, never()).getFailedTests();
+    }
+
+    @Test
+    public void onlyCountsFailuresThatTakeTooLongToLoad() {
+        results(10, 1, 0);
+        doAnswer(new Answer<List<TestResult>>() {
+            public List<TestResult> answer(InvocationOnMock invocation) throws InterruptedException {
+                Thread.sleep(2000L);
+                return Collections.singletonList(test("slow", 1f));
+            }
+        }).when(action).getFailedTests();
+
+        long start = System.currentTimeMillis();
+        TestSummary summary = new TestReport(10, 100L).summarize(build);
+        assertTrue(System.currentTimeMillis() - start < 1500L);
+        assertFalse(summary.isFailuresRead());
+        assertEquals("1 failed, 9 passed", summary.getCounts());
+    }
+
+    private void results(int total, int failed, int skipped) {
+        when(build.getAction(AbstractTestResultAction.class)).thenReturn(action);
+        when(action.getTotalCount()).thenReturn(total);
+        when(action.getFailCount()).thenReturn(failed);
+        when(action.getSkipCount()).thenReturn(skipped);
+    }
+
+    private static TestResult test(String name, float duration) {
+        TestResult test = mock(TestResult.class);
+        when(test.getFullDisplayName()).thenReturn(name);
+        when(test.getDuration()).thenReturn(duration);
+        return test;
+    }
+}